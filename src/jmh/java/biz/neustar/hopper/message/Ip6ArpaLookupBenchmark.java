@@ -0,0 +1,93 @@
+package biz.neustar.hopper.message;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import biz.neustar.hopper.record.NSRecord;
+import biz.neustar.hopper.record.PTRRecord;
+import biz.neustar.hopper.record.Record;
+import biz.neustar.hopper.record.SOARecord;
+import biz.neustar.hopper.resolver.SetResponse;
+
+/**
+ * Measures lookups of PTR records in a reverse IPv6 zone, whose names have 34
+ * labels, in lookups per second. Names are either parsed once up front or
+ * decoded from a query for every lookup.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@State(Scope.Thread)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class Ip6ArpaLookupBenchmark {
+
+    /* 2001:db8::/48 */
+    private static final String ORIGIN = "0.0.0.0.8.b.d.0.1.0.0.2.ip6.arpa.";
+
+    /** The number of PTR records in the zone. */
+    @Param({ "10000" })
+    public int records;
+
+    private Zone zone;
+    private Name[] names;
+    private byte[][] queries;
+    private int next;
+
+    @Setup
+    public void setup() throws IOException {
+        Name origin = Name.fromString(ORIGIN);
+        Name host = Name.fromString("host.example.");
+        List<Record> list = new ArrayList<Record>();
+        list.add(new SOARecord(origin, DClass.IN, 3600, host,
+                Name.fromString("admin.example."), 1, 3600, 600, 86400, 60));
+        list.add(new NSRecord(origin, DClass.IN, 3600, host));
+        Random random = new Random(1);
+        names = new Name[records];
+        queries = new byte[records][];
+        for (int i = 0; i < records; i++) {
+            StringBuilder sb = new StringBuilder();
+            for (int j = 0; j < 20; j++) {
+                sb.append(Integer.toHexString(random.nextInt(16))).append('.');
+            }
+            sb.append(ORIGIN);
+            Name name = Name.fromString(sb.toString());
+            list.add(new PTRRecord(name, DClass.IN, 3600, host));
+            names[i] = name;
+            queries[i] = Message.newQuery(Record.newRecord(name, Type.PTR,
+                    DClass.IN)).toWire();
+        }
+        zone = new Zone(origin, list);
+    }
+
+    @Benchmark
+    public SetResponse lookup() {
+        int i = next;
+        next = (i + 1 == names.length) ? 0 : i + 1;
+        return zone.findRecords(names[i], Type.PTR);
+    }
+
+    @Benchmark
+    public SetResponse decodeAndLookup() throws IOException {
+        int i = next;
+        next = (i + 1 == queries.length) ? 0 : i + 1;
+        DNSInput in = new DNSInput(queries[i]);
+        in.jump(Header.LENGTH);
+        return zone.findRecords(new Name(in), Type.PTR);
+    }
+}
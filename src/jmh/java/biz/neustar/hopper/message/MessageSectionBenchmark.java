@@ -0,0 +1,99 @@
+package biz.neustar.hopper.message;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import biz.neustar.hopper.record.AAAARecord;
+import biz.neustar.hopper.record.ARecord;
+import biz.neustar.hopper.record.OPTRecord;
+import biz.neustar.hopper.record.RRSet;
+import biz.neustar.hopper.record.Record;
+
+/**
+ * Measures rendering of and access to the sections of large responses, in
+ * operations per second. The answer section holds A and AAAA records for a
+ * number of names, and the additional section ends with an OPT record.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@State(Scope.Thread)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class MessageSectionBenchmark {
+
+    /** The number of records in the answer and additional sections. */
+    @Param({ "100", "500" })
+    public int records;
+
+    private Message message;
+    private Name last;
+
+    @Setup
+    public void setup() throws IOException {
+        Name origin = Name.fromString("example.");
+        message = Message.newQuery(Record.newRecord(
+                Name.fromString("www", origin), Type.ANY, DClass.IN));
+        message.getHeader().setFlag(Flag.QR);
+        byte[] v4 = new byte[4];
+        byte[] v6 = new byte[16];
+        for (int i = 0; i < records; i++) {
+            Name name = Name.fromString("host" + (i / 2), origin);
+            v4[3] = (byte) i;
+            v6[15] = (byte) i;
+            message.addRecord(new ARecord(name, DClass.IN, 3600,
+                    InetAddress.getByAddress(v4)), Section.ANSWER);
+            message.addRecord(new AAAARecord(name, DClass.IN, 3600,
+                    InetAddress.getByAddress(v6)), Section.ADDITIONAL);
+            last = name;
+        }
+        message.addRecord(new OPTRecord(4096, 0, 0), Section.ADDITIONAL);
+    }
+
+    @Benchmark
+    public byte[] toWire() {
+        return message.toWire();
+    }
+
+    @Benchmark
+    public byte[] toWireTruncated() {
+        return message.toWire(4096);
+    }
+
+    @Benchmark
+    public OPTRecord getOPT() {
+        return message.getOPT();
+    }
+
+    @Benchmark
+    public boolean findRRset() {
+        return message.findRRset(last, Type.AAAA);
+    }
+
+    @Benchmark
+    public RRSet[] getSectionRRsets() {
+        return message.getSectionRRsets(Section.ANSWER);
+    }
+
+    @Benchmark
+    public long iterateSection() {
+        long ttl = 0;
+        for (Record record : message.getSection(Section.ANSWER)) {
+            ttl += record.getTTL();
+        }
+        return ttl;
+    }
+}
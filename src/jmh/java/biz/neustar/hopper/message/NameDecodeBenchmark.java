@@ -0,0 +1,169 @@
+package biz.neustar.hopper.message;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import biz.neustar.hopper.exception.WireParseException;
+import biz.neustar.hopper.record.Record;
+import biz.neustar.hopper.util.Master;
+
+/**
+ * Measures the decoding of names from wire format messages, in names per
+ * second, and of whole messages, in messages per second.
+ * <p>
+ * The corpus is a directory of captured messages, one raw message per file,
+ * given with {@code -p corpus=<dir>}. By default queries and responses are
+ * built from the records of the zone transfer in the testdata directory.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@State(Scope.Thread)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class NameDecodeBenchmark {
+
+    private static final String DEFAULT_ZONE =
+            "testdata/marty.biz.axfr.2002029056";
+
+    /** A directory of captured messages, or empty for the default corpus. */
+    @Param({ "" })
+    public String corpus;
+
+    /** Whether names are interned. */
+    @Param({ "false", "true" })
+    public boolean intern;
+
+    private byte[][] messages;
+
+    /* Pairs of message index and position of each name in the corpus. */
+    private int[] names;
+
+    private int nextName;
+    private int nextMessage;
+
+    @Setup
+    public void setup() throws IOException {
+        List<byte[]> wire = corpus.isEmpty() ? buildCorpus()
+                : readCorpus(new File(corpus));
+        messages = wire.toArray(new byte[wire.size()][]);
+        int[] positions = new int[64];
+        int count = 0;
+        for (int i = 0; i < messages.length; i++) {
+            for (int pos : ownerNames(messages[i])) {
+                if (count + 2 > positions.length) {
+                    positions = Arrays.copyOf(positions, 2 * positions.length);
+                }
+                positions[count++] = i;
+                positions[count++] = pos;
+            }
+        }
+        names = Arrays.copyOf(positions, count);
+        Name.setInternPool(intern ? new NamePool(1 << 16) : null);
+    }
+
+    @TearDown
+    public void tearDown() {
+        Name.setInternPool(null);
+    }
+
+    /* One query and one response for each record of the zone. */
+    private static List<byte[]> buildCorpus() throws IOException {
+        List<byte[]> wire = new ArrayList<byte[]>();
+        Master master = new Master(DEFAULT_ZONE, Name.root);
+        Record record;
+        while ((record = master.nextRecord()) != null) {
+            Message query = Message.newQuery(Record.newRecord(
+                    record.getName(), record.getType(), record.getDClass()));
+            wire.add(query.toWire());
+            Message response = new Message(query.getHeader().getID());
+            response.getHeader().setFlag(Flag.QR);
+            response.addRecord(query.getQuestion(), Section.QUESTION);
+            response.addRecord(record, Section.ANSWER);
+            wire.add(response.toWire());
+        }
+        return wire;
+    }
+
+    private static List<byte[]> readCorpus(File dir) throws IOException {
+        File[] files = dir.listFiles();
+        if (files == null || files.length == 0) {
+            throw new IOException("no messages in " + dir);
+        }
+        Arrays.sort(files);
+        List<byte[]> wire = new ArrayList<byte[]>();
+        for (File file : files) {
+            wire.add(Files.readAllBytes(file.toPath()));
+        }
+        return wire;
+    }
+
+    /* The positions of the question and owner names of a message. */
+    private static List<Integer> ownerNames(byte[] b) {
+        List<Integer> positions = new ArrayList<Integer>();
+        int questions = u16(b, 4);
+        int records = u16(b, 6) + u16(b, 8) + u16(b, 10);
+        int pos = Header.LENGTH;
+        for (int i = 0; i < questions + records; i++) {
+            positions.add(pos);
+            pos = skipName(b, pos);
+            if (i < questions) {
+                pos += 4;
+            } else {
+                pos += 10 + u16(b, pos + 8);
+            }
+        }
+        return positions;
+    }
+
+    private static int skipName(byte[] b, int pos) {
+        while (true) {
+            int len = b[pos] & 0xFF;
+            if ((len & 0xC0) == 0xC0) {
+                return pos + 2;
+            }
+            pos += len + 1;
+            if (len == 0) {
+                return pos;
+            }
+        }
+    }
+
+    private static int u16(byte[] b, int pos) {
+        return ((b[pos] & 0xFF) << 8) | (b[pos + 1] & 0xFF);
+    }
+
+    @Benchmark
+    public Name decodeName() throws WireParseException {
+        int i = nextName;
+        nextName = (i + 2 == names.length) ? 0 : i + 2;
+        DNSInput in = new DNSInput(messages[names[i]]);
+        in.jump(names[i + 1]);
+        return new Name(in);
+    }
+
+    @Benchmark
+    public Message parseMessage() throws IOException {
+        int i = nextMessage;
+        nextMessage = (i + 1 == messages.length) ? 0 : i + 1;
+        return new Message(messages[i]);
+    }
+}
@@ -0,0 +1,75 @@
+package biz.neustar.hopper.message;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import biz.neustar.hopper.record.AAAARecord;
+import biz.neustar.hopper.record.ARecord;
+import biz.neustar.hopper.record.NSRecord;
+import biz.neustar.hopper.record.Record;
+
+/**
+ * Measures rendering of referral responses, in messages per second. The
+ * authority section delegates a zone to a number of name servers in several
+ * parent domains, with A and AAAA glue for each in the additional section, so
+ * most of the names rendered are compressed.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@State(Scope.Thread)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ReferralRenderBenchmark {
+
+    /** The number of name servers in the referral. */
+    @Param({ "13", "100" })
+    public int servers;
+
+    private Message message;
+
+    @Setup
+    public void setup() throws IOException {
+        Name zone = Name.fromString("delegated.example.com.");
+        message = Message.newQuery(Record.newRecord(
+                Name.fromString("www", zone), Type.A, DClass.IN));
+        message.getHeader().setFlag(Flag.QR);
+        byte[] v4 = new byte[4];
+        byte[] v6 = new byte[16];
+        for (int i = 0; i < servers; i++) {
+            Name parent = Name.fromString("dns" + (i % 4) + ".example.net.");
+            Name ns = Name.fromString("ns" + i, parent);
+            v4[3] = (byte) i;
+            v6[15] = (byte) i;
+            message.addRecord(new NSRecord(zone, DClass.IN, 86400, ns),
+                    Section.AUTHORITY);
+            message.addRecord(new ARecord(ns, DClass.IN, 86400,
+                    InetAddress.getByAddress(v4)), Section.ADDITIONAL);
+            message.addRecord(new AAAARecord(ns, DClass.IN, 86400,
+                    InetAddress.getByAddress(v6)), Section.ADDITIONAL);
+        }
+    }
+
+    @Benchmark
+    public byte[] toWire() {
+        return message.toWire();
+    }
+
+    @Benchmark
+    public byte[] toWireUdp() {
+        return message.toWire(1232);
+    }
+}
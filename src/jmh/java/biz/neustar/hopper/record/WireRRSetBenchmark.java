@@ -0,0 +1,90 @@
+package biz.neustar.hopper.record;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.util.Iterator;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import biz.neustar.hopper.message.Compression;
+import biz.neustar.hopper.message.DClass;
+import biz.neustar.hopper.message.DNSOutput;
+import biz.neustar.hopper.message.Name;
+import biz.neustar.hopper.message.Section;
+
+/**
+ * Measures rendering of an RRset into a response, in RRsets per second, from
+ * Record objects and from the pre-encoded {@link WireRRSet}. The RRset holds
+ * either AAAA records or MX records, whose targets are compressed.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@State(Scope.Thread)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class WireRRSetBenchmark {
+
+    /** The type of the records. */
+    @Param({ "AAAA", "MX" })
+    public String type;
+
+    /** The number of records in the RRset. */
+    @Param({ "4", "16" })
+    public int records;
+
+    private RRSet rrset;
+    private WireRRSet wire;
+    private DNSOutput out;
+    private Compression c;
+
+    @Setup
+    public void setup() throws IOException {
+        Name name = Name.fromString("www.example.com.");
+        rrset = new RRSet();
+        byte[] v6 = new byte[16];
+        for (int i = 0; i < records; i++) {
+            if (type.equals("MX")) {
+                rrset.addRR(new MXRecord(name, DClass.IN, 3600, i,
+                        Name.fromString("mx" + i + ".example.com.")));
+            } else {
+                v6[15] = (byte) i;
+                rrset.addRR(new AAAARecord(name, DClass.IN, 3600,
+                        InetAddress.getByAddress(v6)));
+            }
+        }
+        wire = new WireRRSet(rrset);
+        out = new DNSOutput();
+        c = new Compression();
+    }
+
+    @Benchmark
+    public int records() {
+        out.reset();
+        c.reset();
+        Iterator<Record> it = rrset.rrs(false);
+        while (it.hasNext()) {
+            it.next().toWire(out, Section.ANSWER, c);
+        }
+        return out.current();
+    }
+
+    @Benchmark
+    public int wire() {
+        out.reset();
+        c.reset();
+        wire.toWire(out, c);
+        return out.current();
+    }
+}
@@ -0,0 +1,101 @@
+package biz.neustar.hopper.resolver;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import biz.neustar.hopper.message.DClass;
+import biz.neustar.hopper.message.Name;
+import biz.neustar.hopper.message.Type;
+import biz.neustar.hopper.record.ARecord;
+import biz.neustar.hopper.record.RRSet;
+
+/**
+ * Measures the throughput of a Cache shared by 1 to 64 threads, in operations
+ * per second. Each thread looks up random names among those cached, and a
+ * given percentage of operations instead replace the entry of a random name,
+ * as responses from upstream would.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@State(Scope.Benchmark)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class CacheContentionBenchmark {
+
+    /** The number of names in the cache. */
+    @Param({ "10000" })
+    public int names;
+
+    /** The percentage of operations that add an RRset. */
+    @Param({ "0", "10" })
+    public int writePercent;
+
+    private Cache cache;
+    private Name[] keys;
+    private RRSet[] rrsets;
+
+    @Setup
+    public void setup() throws IOException {
+        cache = new Cache();
+        keys = new Name[names];
+        rrsets = new RRSet[names];
+        Name origin = Name.fromString("example.");
+        for (int i = 0; i < names; i++) {
+            keys[i] = Name.fromString("host" + i, origin);
+            rrsets[i] = new RRSet(new ARecord(keys[i], DClass.IN, 86400,
+                    InetAddress.getByAddress(new byte[] { 10, 0,
+                            (byte) (i >> 8), (byte) i })));
+            cache.addRRset(rrsets[i], Credibility.NORMAL);
+        }
+    }
+
+    private SetResponse operate() {
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        int i = random.nextInt(names);
+        if (random.nextInt(100) < writePercent) {
+            cache.addRRset(rrsets[i], Credibility.NORMAL);
+            return null;
+        }
+        return cache.lookupRecords(keys[i], Type.A, Credibility.NORMAL);
+    }
+
+    @Benchmark
+    @Threads(1)
+    public SetResponse threads1() {
+        return operate();
+    }
+
+    @Benchmark
+    @Threads(4)
+    public SetResponse threads4() {
+        return operate();
+    }
+
+    @Benchmark
+    @Threads(16)
+    public SetResponse threads16() {
+        return operate();
+    }
+
+    @Benchmark
+    @Threads(64)
+    public SetResponse threads64() {
+        return operate();
+    }
+}
@@ -2,83 +2,240 @@
 
 package biz.neustar.hopper.message;
 
+import java.util.Arrays;
+
 import biz.neustar.hopper.config.Options;
 
 /**
- * DNS Name Compression object.
- * 
+ * DNS Name Compression object. Names are kept in an open-addressed hash table
+ * backed by parallel arrays, so adding a name does not allocate. Entries refer
+ * to the suffix of a name by the array holding it and the offset of its first
+ * label, so the suffixes of a name can be added and looked up without
+ * creating a Name for each. A Compression object can be reused for another
+ * message after calling {@link #reset}.
+ *
  * @see Message
  * @see Name
- * 
+ *
  * @author Brian Wellington
  */
 
 public class Compression {
 
-    private static class Entry {
-        Name name;
-        int pos;
-        Entry next;
-    }
-
-    private static final int TABLE_SIZE = 17;
+    private static final int INITIAL_TABLE_SIZE = 64;
     private static final int MAX_POINTER = 0x3FFF;
-    private Entry[] table;
-    private boolean verbose = Options.check("verbosecompression");
-    private boolean caseSensitiveCompression = Options.check("case-sensitive-compression");
+    private byte[][] arrays;
+    private int[] offsets;
+    private int[] hashes;
+    private int[] positions;
+    private int size;
+    private int saved;
+    private boolean verbose;
+    private boolean caseSensitiveCompression;
 
     /**
      * Creates a new Compression object.
      */
     public Compression() {
-        table = new Entry[TABLE_SIZE];
+        allocate(INITIAL_TABLE_SIZE);
+        readOptions();
+    }
+
+    private void allocate(int capacity) {
+        arrays = new byte[capacity][];
+        offsets = new int[capacity];
+        hashes = new int[capacity];
+        positions = new int[capacity];
+    }
+
+    private void readOptions() {
+        verbose = Options.check("verbosecompression");
+        caseSensitiveCompression = Options.check("case-sensitive-compression");
+    }
+
+    /**
+     * Removes all entries, so that this object can be used to render another
+     * message. The table keeps its current capacity.
+     */
+    public void reset() {
+        if (size > 0) {
+            Arrays.fill(arrays, null);
+            size = 0;
+        }
+        saved = 0;
+        readOptions();
+    }
+
+    /* Whether names are only compressed to names of the same case. */
+    boolean isCaseSensitive() {
+        return caseSensitiveCompression;
+    }
+
+    /* Counts the bytes saved by writing a pointer instead of a name. */
+    void saved(int bytes) {
+        saved += bytes;
+    }
+
+    /**
+     * Returns the number of bytes saved by compression since this object was
+     * created or last reset.
+     */
+    public int getBytesSaved() {
+        return saved;
+    }
+
+    private static int spread(int h) {
+        return h ^ (h >>> 16);
+    }
+
+    private boolean matches(int slot, int hash, byte[] array, int off) {
+        if (hashes[slot] != hash) {
+            return false;
+        }
+        byte[] a = arrays[slot];
+        int p = offsets[slot];
+        if (a == array && p == off) {
+            return true;
+        }
+        while (true) {
+            int len = a[p];
+            if (len != array[off]) {
+                return false;
+            }
+            for (int i = 1; i <= len; i++) {
+                byte b1 = a[p + i];
+                byte b2 = array[off + i];
+                if (b1 != b2 && (caseSensitiveCompression
+                        || Name.lowercase(b1) != Name.lowercase(b2))) {
+                    return false;
+                }
+            }
+            if (len == 0) {
+                return true;
+            }
+            p += len + 1;
+            off += len + 1;
+        }
+    }
+
+    private void grow() {
+        rehash(arrays.length * 2, Integer.MAX_VALUE);
+    }
+
+    /*
+     * Moves the entries into a table of the given capacity, dropping those at
+     * or after the given position.
+     */
+    private void rehash(int capacity, int end) {
+        byte[][] oldArrays = arrays;
+        int[] oldOffsets = offsets;
+        int[] oldHashes = hashes;
+        int[] oldPositions = positions;
+        allocate(capacity);
+        size = 0;
+        int mask = capacity - 1;
+        for (int i = 0; i < oldArrays.length; i++) {
+            if (oldArrays[i] == null || oldPositions[i] >= end) {
+                continue;
+            }
+            int slot = oldHashes[i] & mask;
+            while (arrays[slot] != null) {
+                slot = (slot + 1) & mask;
+            }
+            arrays[slot] = oldArrays[i];
+            offsets[slot] = oldOffsets[i];
+            hashes[slot] = oldHashes[i];
+            positions[slot] = oldPositions[i];
+            size++;
+        }
+    }
+
+    /*
+     * Removes the entries at or after a position, for names that were
+     * rendered and then backed out of the message. The table is rebuilt, which
+     * only happens when a message is truncated.
+     */
+    void discard(int pos) {
+        for (int i = 0; i < arrays.length; i++) {
+            if (arrays[i] != null && positions[i] >= pos) {
+                rehash(arrays.length, pos);
+                return;
+            }
+        }
     }
 
     /**
      * Adds a compression entry mapping a name to a position in a message.
-     * 
+     *
      * @param pos
      *            The position at which the name is added.
      * @param name
      *            The name being added to the message.
      */
     public void add(int pos, Name name) {
+        add(pos, name.array(), name.arrayOffset(), caseSensitiveCompression
+                ? name.hashCodeCaseSensitive() : name.hashCode());
+    }
+
+    /*
+     * Adds an entry for the name starting at an offset of an array, whose
+     * hash code (case-sensitive if compression is) is given.
+     */
+    void add(int pos, byte[] array, int off, int hash) {
         if (pos > MAX_POINTER) {
             return;
         }
-        int hashCode = caseSensitiveCompression ? name.hashCodeCaseSensitive() : name.hashCode();
-        int row = (hashCode & 0x7FFFFFFF) % TABLE_SIZE;
-        Entry entry = new Entry();
-        entry.name = name;
-        entry.pos = pos;
-        entry.next = table[row];
-        table[row] = entry;
+        if ((size + 1) * 2 > arrays.length) {
+            grow();
+        }
+        hash = spread(hash);
+        int mask = arrays.length - 1;
+        int slot = hash & mask;
+        while (arrays[slot] != null) {
+            slot = (slot + 1) & mask;
+        }
+        arrays[slot] = array;
+        offsets[slot] = off;
+        hashes[slot] = hash;
+        positions[slot] = pos;
+        size++;
         if (verbose) {
-            System.err.println("Adding " + name + " at " + pos);
+            System.err.println("Adding " + Name.describe(array, off) + " at "
+                    + pos);
         }
     }
 
     /**
      * Retrieves the position of the given name, if it has been previously
      * included in the message.
-     * 
+     *
      * @param name
      *            The name to find in the compression table.
      * @return The position of the name, or -1 if not found.
      */
     public int get(Name name) {
-        int hashCode = caseSensitiveCompression ? name.hashCodeCaseSensitive() : name.hashCode();
-        int row = (hashCode & 0x7FFFFFFF) % TABLE_SIZE;
+        return get(name.array(), name.arrayOffset(), caseSensitiveCompression
+                ? name.hashCodeCaseSensitive() : name.hashCode());
+    }
+
+    /*
+     * Retrieves the position of the name starting at an offset of an array,
+     * or -1.
+     */
+    int get(byte[] array, int off, int hash) {
+        hash = spread(hash);
+        int mask = arrays.length - 1;
         int pos = -1;
-        for (Entry entry = table[row]; entry != null; entry = entry.next) {
-            boolean isEqual = caseSensitiveCompression ? entry.name.equalsCaseSensitive(name)
-                    : entry.name.equals(name);
-            if (isEqual) {
-                pos = entry.pos;
+        for (int slot = hash & mask; arrays[slot] != null;
+                slot = (slot + 1) & mask) {
+            if (matches(slot, hash, array, off)) {
+                pos = positions[slot];
+                break;
             }
         }
         if (verbose) {
-            System.err.println("Looking for " + name + ", found " + pos);
+            System.err.println("Looking for " + Name.describe(array, off)
+                    + ", found " + pos);
         }
         return pos;
     }
@@ -2,6 +2,8 @@
 
 package biz.neustar.hopper.message;
 
+import java.nio.ByteBuffer;
+
 import biz.neustar.hopper.exception.WireParseException;
 
 /**
@@ -13,6 +15,8 @@ import biz.neustar.hopper.exception.WireParseException;
 public class DNSInput {
 
     private byte[] array;
+    private int offset;
+    private int length;
     private int pos;
     private int end;
     private int saved_pos;
@@ -25,13 +29,65 @@ public class DNSInput {
      *            The byte array to read from
      */
     public DNSInput(byte[] input) {
+        this(input, 0, input.length);
+    }
+
+    /**
+     * Creates a new DNSInput over a region of a byte array. The array is not
+     * copied; positions reported by this stream (and compression pointers in
+     * the data) are relative to the start of the region.
+     * 
+     * @param input
+     *            The byte array to read from
+     * @param offset
+     *            The index in the array at which the data starts.
+     * @param length
+     *            The number of bytes of data.
+     * @throws IllegalArgumentException
+     *             The region is not within the array.
+     */
+    public DNSInput(byte[] input, int offset, int length) {
+        if (offset < 0 || length < 0 || offset + length > input.length) {
+            throw new IllegalArgumentException("invalid region of input");
+        }
         array = input;
+        this.offset = offset;
+        this.length = length;
         pos = 0;
-        end = array.length;
+        end = length;
         saved_pos = -1;
         saved_end = -1;
     }
 
+    /**
+     * Creates a new DNSInput over the remaining bytes of a buffer. If the
+     * buffer is backed by an accessible array, the data is read in place;
+     * otherwise the remaining bytes are copied once. The position of the
+     * buffer is not modified.
+     * 
+     * @param input
+     *            The buffer to read from
+     */
+    public DNSInput(ByteBuffer input) {
+        this(arrayOf(input), offsetOf(input), input.remaining());
+    }
+
+    private static byte[] arrayOf(ByteBuffer input) {
+        if (input.hasArray()) {
+            return input.array();
+        }
+        byte[] copy = new byte[input.remaining()];
+        input.duplicate().get(copy);
+        return copy;
+    }
+
+    private static int offsetOf(ByteBuffer input) {
+        if (input.hasArray()) {
+            return input.arrayOffset() + input.position();
+        }
+        return 0;
+    }
+
     /**
      * Returns the current position.
      */
@@ -63,7 +119,7 @@ public class DNSInput {
      *             remainder of the input.
      */
     public void setActive(int len) {
-        if (len > array.length - pos) {
+        if (len > length - pos) {
             throw new IllegalArgumentException("cannot set active "
                     + "region past end of input");
         }
@@ -75,7 +131,7 @@ public class DNSInput {
      * restricted to part of the input.
      */
     public void clearActive() {
-        end = array.length;
+        end = length;
     }
 
     /**
@@ -94,7 +150,7 @@ public class DNSInput {
      *            The end of the active region.
      */
     public void restoreActive(int pos) {
-        if (pos > array.length) {
+        if (pos > length) {
             throw new IllegalArgumentException("cannot set active "
                     + "region past end of input");
         }
@@ -111,12 +167,12 @@ public class DNSInput {
      *             The index is not within the input.
      */
     public void jump(int index) {
-        if (index >= array.length) {
+        if (index >= length) {
             throw new IllegalArgumentException("cannot jump past "
                     + "end of input");
         }
         pos = index;
-        end = array.length;
+        end = length;
     }
 
     /**
@@ -144,6 +200,32 @@ public class DNSInput {
         saved_end = -1;
     }
 
+    /* The underlying array, for in-place parsing of names. */
+    byte[] array() {
+        return array;
+    }
+
+    /* The index in the array of position 0. */
+    int arrayOffset() {
+        return offset;
+    }
+
+    /* The end of the active region. */
+    int limit() {
+        return end;
+    }
+
+    /* The length of the input. */
+    int length() {
+        return length;
+    }
+
+    /* Moves past data already parsed in place. */
+    void skip(int n) throws WireParseException {
+        require(n);
+        pos += n;
+    }
+
     /**
      * Reads an unsigned 8 bit value from the stream, as an int.
      * 
@@ -153,7 +235,7 @@ public class DNSInput {
      */
     public int readU8() throws WireParseException {
         require(1);
-        return (array[pos++] & 0xFF);
+        return (array[offset + pos++] & 0xFF);
     }
 
     /**
@@ -165,8 +247,8 @@ public class DNSInput {
      */
     public int readU16() throws WireParseException {
         require(2);
-        int b1 = array[pos++] & 0xFF;
-        int b2 = array[pos++] & 0xFF;
+        int b1 = array[offset + pos++] & 0xFF;
+        int b2 = array[offset + pos++] & 0xFF;
         return ((b1 << 8) + b2);
     }
 
@@ -179,10 +261,10 @@ public class DNSInput {
      */
     public long readU32() throws WireParseException {
         require(4);
-        int b1 = array[pos++] & 0xFF;
-        int b2 = array[pos++] & 0xFF;
-        int b3 = array[pos++] & 0xFF;
-        int b4 = array[pos++] & 0xFF;
+        int b1 = array[offset + pos++] & 0xFF;
+        int b2 = array[offset + pos++] & 0xFF;
+        int b3 = array[offset + pos++] & 0xFF;
+        int b4 = array[offset + pos++] & 0xFF;
         return (((long) b1 << 24) + (b2 << 16) + (b3 << 8) + b4);
     }
 
@@ -202,7 +284,7 @@ public class DNSInput {
     public void readByteArray(byte[] b, int off, int len)
             throws WireParseException {
         require(len);
-        System.arraycopy(array, pos, b, off, len);
+        System.arraycopy(array, offset + pos, b, off, len);
         pos += len;
     }
 
@@ -216,7 +298,7 @@ public class DNSInput {
     public byte[] readByteArray(int len) throws WireParseException {
         require(len);
         byte[] out = new byte[len];
-        System.arraycopy(array, pos, out, 0, len);
+        System.arraycopy(array, offset + pos, out, 0, len);
         pos += len;
         return out;
     }
@@ -230,7 +312,7 @@ public class DNSInput {
     public byte[] readByteArray() {
         int len = remaining();
         byte[] out = new byte[len];
-        System.arraycopy(array, pos, out, 0, len);
+        System.arraycopy(array, offset + pos, out, 0, len);
         pos += len;
         return out;
     }
@@ -245,7 +327,7 @@ public class DNSInput {
      */
     public byte[] readCountedString() throws WireParseException {
         require(1);
-        int len = array[pos++] & 0xFF;
+        int len = array[offset + pos++] & 0xFF;
         return readByteArray(len);
     }
 
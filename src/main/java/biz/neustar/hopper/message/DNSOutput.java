@@ -2,6 +2,9 @@
 
 package biz.neustar.hopper.message;
 
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+
 /**
  * A class for rendering DNS messages.
  * 
@@ -11,6 +14,8 @@ package biz.neustar.hopper.message;
 public class DNSOutput {
 
     private byte[] array;
+    private int offset;
+    private int limit;
     private int pos;
     private int saved_pos;
 
@@ -21,7 +26,31 @@ public class DNSOutput {
      *            The initial size
      */
     public DNSOutput(int size) {
-        array = new byte[size];
+        this(new byte[size], 0, size);
+    }
+
+    /**
+     * Create a new DNSOutput that renders into a region of an existing array.
+     * Positions are relative to the start of the region. If the output grows
+     * past the end of the region, it continues in a newly allocated array and
+     * the existing array is no longer written to.
+     * 
+     * @param b
+     *            The array to render into.
+     * @param off
+     *            The index in the array at which the output starts.
+     * @param len
+     *            The number of bytes available in the array.
+     * @throws IllegalArgumentException
+     *             The region is not within the array.
+     */
+    public DNSOutput(byte[] b, int off, int len) {
+        if (off < 0 || len < 0 || off + len > b.length) {
+            throw new IllegalArgumentException("invalid region of output");
+        }
+        array = b;
+        offset = off;
+        limit = off + len;
         pos = 0;
         saved_pos = -1;
     }
@@ -40,6 +69,23 @@ public class DNSOutput {
         return pos;
     }
 
+    /**
+     * Discards the contents of the stream, so that it can be used to render
+     * another message. The current storage is kept.
+     */
+    public void reset() {
+        pos = 0;
+        saved_pos = -1;
+    }
+
+    /**
+     * Returns the number of bytes that can be written before the stream has
+     * to allocate more storage.
+     */
+    int capacity() {
+        return limit - offset;
+    }
+
     private void check(long val, int bits) {
         long max = 1;
         max <<= bits;
@@ -50,16 +96,18 @@ public class DNSOutput {
     }
 
     private void need(int n) {
-        if (array.length - pos >= n) {
+        if (limit - offset - pos >= n) {
             return;
         }
-        int newsize = array.length * 2;
+        int newsize = (limit - offset) * 2;
         if (newsize < pos + n) {
             newsize = pos + n;
         }
         byte[] newarray = new byte[newsize];
-        System.arraycopy(array, 0, newarray, 0, pos);
+        System.arraycopy(array, offset, newarray, 0, pos);
         array = newarray;
+        offset = 0;
+        limit = newsize;
     }
 
     /**
@@ -108,7 +156,7 @@ public class DNSOutput {
     public void writeU8(int val) {
         check(val, 8);
         need(1);
-        array[pos++] = (byte) (val & 0xFF);
+        array[offset + pos++] = (byte) (val & 0xFF);
     }
 
     /**
@@ -120,8 +168,8 @@ public class DNSOutput {
     public void writeU16(int val) {
         check(val, 16);
         need(2);
-        array[pos++] = (byte) ((val >>> 8) & 0xFF);
-        array[pos++] = (byte) (val & 0xFF);
+        array[offset + pos++] = (byte) ((val >>> 8) & 0xFF);
+        array[offset + pos++] = (byte) (val & 0xFF);
     }
 
     /**
@@ -137,8 +185,8 @@ public class DNSOutput {
         if (where > pos - 2)
             throw new IllegalArgumentException("cannot write past "
                     + "end of data");
-        array[where++] = (byte) ((val >>> 8) & 0xFF);
-        array[where++] = (byte) (val & 0xFF);
+        array[offset + where++] = (byte) ((val >>> 8) & 0xFF);
+        array[offset + where++] = (byte) (val & 0xFF);
     }
 
     /**
@@ -150,10 +198,10 @@ public class DNSOutput {
     public void writeU32(long val) {
         check(val, 32);
         need(4);
-        array[pos++] = (byte) ((val >>> 24) & 0xFF);
-        array[pos++] = (byte) ((val >>> 16) & 0xFF);
-        array[pos++] = (byte) ((val >>> 8) & 0xFF);
-        array[pos++] = (byte) (val & 0xFF);
+        array[offset + pos++] = (byte) ((val >>> 24) & 0xFF);
+        array[offset + pos++] = (byte) ((val >>> 16) & 0xFF);
+        array[offset + pos++] = (byte) ((val >>> 8) & 0xFF);
+        array[offset + pos++] = (byte) (val & 0xFF);
     }
 
     /**
@@ -168,7 +216,7 @@ public class DNSOutput {
      */
     public void writeByteArray(byte[] b, int off, int len) {
         need(len);
-        System.arraycopy(b, off, array, pos, len);
+        System.arraycopy(b, off, array, offset + pos, len);
         pos += len;
     }
 
@@ -194,17 +242,51 @@ public class DNSOutput {
             throw new IllegalArgumentException("Invalid counted string");
         }
         need(1 + s.length);
-        array[pos++] = (byte) (s.length & 0xFF);
+        array[offset + pos++] = (byte) (s.length & 0xFF);
         writeByteArray(s, 0, s.length);
     }
 
+    /* The array holding the output, for reading it in place. */
+    byte[] array() {
+        return array;
+    }
+
+    /* The index in the array of position 0. */
+    int arrayOffset() {
+        return offset;
+    }
+
     /**
      * Returns a byte array containing the current contents of the stream.
      */
     public byte[] toByteArray() {
         byte[] out = new byte[pos];
-        System.arraycopy(array, 0, out, 0, pos);
+        System.arraycopy(array, offset, out, 0, pos);
         return out;
     }
 
+    /**
+     * Moves the current contents of the stream into a buffer, starting at the
+     * buffer's position, which is then advanced past the data. Nothing is
+     * copied if the data was rendered in place into the buffer's backing
+     * array.
+     * 
+     * @param buffer
+     *            The buffer to write to.
+     * @throws BufferOverflowException
+     *             The data does not fit in the remaining space of the buffer;
+     *             the buffer is not modified.
+     */
+    void writeTo(ByteBuffer buffer) {
+        if (pos > buffer.remaining()) {
+            throw new BufferOverflowException();
+        }
+        if (buffer.hasArray() && buffer.array() == array
+                && buffer.arrayOffset() + buffer.position() == offset) {
+            buffer.position(buffer.position() + pos);
+        } else {
+            buffer.put(array, offset, pos);
+        }
+    }
+
 }
@@ -136,6 +136,11 @@ public class Header implements Cloneable {
         return getFlag(flag.getValue());
     }
 
+    /* The flags word as rendered, holding the flags, opcode and rcode. */
+    int getFlagsWord() {
+        return flags;
+    }
+
     boolean[] getFlags() {
         boolean[] array = new boolean[16];
         for (int i = 0; i < array.length; i++) {
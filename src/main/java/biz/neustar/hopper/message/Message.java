@@ -3,11 +3,13 @@
 package biz.neustar.hopper.message;
 
 import java.io.IOException;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
-import java.util.HashSet;
-import java.util.LinkedList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
 import java.util.List;
-import java.util.Set;
+import java.util.Map;
 
 import biz.neustar.hopper.exception.WireParseException;
 import biz.neustar.hopper.record.OPTRecord;
@@ -44,6 +46,34 @@ public class Message implements Cloneable {
     int tsigState;
     int sig0start;
 
+    /*
+     * For a lazily parsed message: the wire format it was parsed from, the
+     * position of each section and of the end of the last one, and the
+     * sections not decoded yet, one bit for each section.
+     */
+    private byte[] wire;
+    private int wireOffset;
+    private int[] sectionStart;
+    private int undecoded;
+
+    /* The sections have not been changed since the message was parsed. */
+    private boolean verbatim;
+
+    /*
+     * The positions of the first OPT record and of a final TSIG record in the
+     * additional section of a lazily parsed message, or -1.
+     */
+    private int optPosition = -1;
+    private int tsigPosition = -1;
+    private OPTRecord opt;
+
+    /*
+     * The index of the first OPT record in the additional section, -1 if there
+     * is none, or OPT_UNKNOWN until the section is searched.
+     */
+    private int optIndex = OPT_UNKNOWN;
+    private static final int OPT_UNKNOWN = -2;
+
     /* The message was not signed */
     static final int TSIG_UNSIGNED = 0;
 
@@ -152,6 +182,167 @@ public class Message implements Cloneable {
         this(new DNSInput(b));
     }
 
+    /**
+     * Creates a new Message from its DNS wire format representation, decoding
+     * only the header and the question section. The other sections are
+     * decoded when first used; the OPT and TSIG records can be read without
+     * decoding the additional section. Until the sections are changed, the
+     * message is rendered by copying them from the wire format.
+     * <p>
+     * The message refers to the array it was parsed from, which must not be
+     * modified while the message is in use. Errors in records outside the
+     * question section are found when their section is decoded, and are
+     * reported as an IllegalStateException.
+     * 
+     * @param b
+     *            A byte array containing the DNS Message.
+     */
+    public static Message newLazy(byte[] b) throws IOException {
+        return newLazy(b, 0, b.length);
+    }
+
+    /**
+     * Creates a new Message from the DNS wire format representation in a
+     * region of an array, decoding only the header and the question section.
+     * 
+     * @param b
+     *            The array holding the DNS Message.
+     * @param off
+     *            The offset of the message in the array.
+     * @param len
+     *            The length of the message.
+     * @see #newLazy(byte[])
+     */
+    public static Message newLazy(byte[] b, int off, int len)
+            throws IOException {
+        DNSInput in = new DNSInput(b, off, len);
+        Message m = new Message(new Header(in));
+        if (!m.scan(in)) {
+            // a truncated message keeps what could be parsed
+            return new Message(new DNSInput(b, off, len));
+        }
+        m.wire = b;
+        m.wireOffset = off;
+        m.verbatim = true;
+        return m;
+    }
+
+    /*
+     * Decodes the question section and finds the positions of the other
+     * sections. Returns false if a truncated message ends early.
+     */
+    private boolean scan(DNSInput in) throws IOException {
+        boolean isUpdate = (header.getOpcode() == Opcode.UPDATE);
+        sectionStart = new int[5];
+        try {
+            sectionStart[Section.QUESTION] = in.current();
+            int count = header.getCount(Section.QUESTION);
+            if (count > 0) {
+                sections[Section.QUESTION] = new ArrayList<Record>(count);
+            }
+            for (int j = 0; j < count; j++) {
+                sections[Section.QUESTION].add(Record.fromWire(in,
+                        Section.QUESTION, isUpdate));
+            }
+            for (int i = Section.ANSWER; i <= Section.ADDITIONAL; i++) {
+                sectionStart[i] = in.current();
+                count = header.getCount(i);
+                for (int j = 0; j < count; j++) {
+                    int pos = in.current();
+                    Name.skip(in);
+                    int type = in.readU16();
+                    in.skip(6);
+                    int length = in.readU16();
+                    if (type == Type.TSIG) {
+                        tsigstart = pos;
+                    }
+                    if (type == Type.SIG && length >= 2) {
+                        in.save();
+                        if (in.readU16() == 0) {
+                            sig0start = pos;
+                        }
+                        in.restore();
+                    }
+                    if (i == Section.ADDITIONAL) {
+                        if (type == Type.OPT && optPosition < 0) {
+                            optPosition = pos;
+                        }
+                        if (type == Type.TSIG && j == count - 1) {
+                            tsigPosition = pos;
+                        }
+                    }
+                    in.skip(length);
+                }
+                if (count > 0) {
+                    undecoded |= 1 << i;
+                }
+            }
+            sectionStart[4] = in.current();
+        } catch (WireParseException e) {
+            if (!header.isFlagSet(Flag.TC)) {
+                throw e;
+            }
+            return false;
+        }
+        size = in.current();
+        return true;
+    }
+
+    /* Returns a section, decoding it first if the message is lazy. */
+    private List<Record> section(int section) {
+        if ((undecoded & (1 << section)) != 0) {
+            decode(section);
+        }
+        return sections[section];
+    }
+
+    private void decode(int section) {
+        undecoded &= ~(1 << section);
+        boolean isUpdate = (header.getOpcode() == Opcode.UPDATE);
+        int end = sectionStart[section + 1];
+        DNSInput in = new DNSInput(wire, wireOffset, sectionStart[4]);
+        in.jump(sectionStart[section]);
+        List<Record> list = new ArrayList<Record>(header.getCount(section));
+        try {
+            while (in.current() < end) {
+                list.add(Record.fromWire(in, section, isUpdate));
+            }
+        } catch (IOException e) {
+            throw new IllegalStateException("invalid record in "
+                    + Section.longString(section) + " section", e);
+        }
+        sections[section] = list;
+        if (undecoded == 0 && !verbatim) {
+            wire = null;
+        }
+    }
+
+    /* Decodes the record at a position of a lazily parsed message. */
+    private Record decodeAt(int position, int section) {
+        DNSInput in = new DNSInput(wire, wireOffset, sectionStart[4]);
+        in.jump(position);
+        try {
+            return Record.fromWire(in, section,
+                    header.getOpcode() == Opcode.UPDATE);
+        } catch (IOException e) {
+            throw new IllegalStateException("invalid record in "
+                    + Section.longString(section) + " section", e);
+        }
+    }
+
+    /* Called before a section is changed; sections are no longer copied. */
+    private List<Record> modify(int section) {
+        List<Record> list = section(section);
+        if (section == Section.ADDITIONAL) {
+            optIndex = OPT_UNKNOWN;
+        }
+        verbatim = false;
+        if (undecoded == 0) {
+            wire = null;
+        }
+        return list;
+    }
+
     /**
      * Replaces the Header with a new one.
      * 
@@ -177,8 +368,8 @@ public class Message implements Cloneable {
      * @see Section
      */
     public void addRecord(Record r, int section) {
-        if (sections[section] == null) {
-            sections[section] = new LinkedList<Record>();
+        if (modify(section) == null) {
+            sections[section] = new ArrayList<Record>();
         }
         header.incCount(section);
         sections[section].add(r);
@@ -191,8 +382,8 @@ public class Message implements Cloneable {
      * @see Section
      */
     public void addRecordWithoutHeaderUpdate(Record r, int section) {
-        if (sections[section] == null) {
-            sections[section] = new LinkedList<Record>();
+        if (modify(section) == null) {
+            sections[section] = new ArrayList<Record>();
         }
         sections[section].add(r);
     }
@@ -205,7 +396,8 @@ public class Message implements Cloneable {
      * @see Section
      */
     public boolean removeRecord(Record r, int section) {
-        if (sections[section] != null && sections[section].remove(r)) {
+        List<Record> l = modify(section);
+        if (l != null && l.remove(r)) {
             header.decCount(section);
             return true;
         } else {
@@ -221,6 +413,7 @@ public class Message implements Cloneable {
      * @see Section
      */
     public void removeAllRecords(int section) {
+        modify(section);
         sections[section] = null;
         header.setCount(section, 0);
     }
@@ -232,7 +425,8 @@ public class Message implements Cloneable {
      * @see Section
      */
     public boolean findRecord(Record r, int section) {
-        return (sections[section] != null && sections[section].contains(r));
+        List<Record> l = section(section);
+        return (l != null && l.contains(r));
     }
 
     /**
@@ -243,7 +437,7 @@ public class Message implements Cloneable {
      */
     public boolean findRecord(Record r) {
         for (int i = Section.ANSWER; i <= Section.ADDITIONAL; i++)
-            if (sections[i] != null && sections[i].contains(r)) {
+            if (findRecord(r, i)) {
                 return true;
             }
         return false;
@@ -257,11 +451,12 @@ public class Message implements Cloneable {
      * @see Section
      */
     public boolean findRRset(Name name, int type, int section) {
-        if (sections[section] == null) {
+        List<Record> l = section(section);
+        if (l == null) {
             return false;
         }
-        for (int i = 0; i < sections[section].size(); i++) {
-            Record r = (Record) sections[section].get(i);
+        for (int i = 0; i < l.size(); i++) {
+            Record r = (Record) l.get(i);
             if (r.getType() == type && name.equals(r.getName())) {
                 return true;
             }
@@ -289,7 +484,7 @@ public class Message implements Cloneable {
      * @see Section
      */
     public Record getQuestion() {
-        List<Record> l = sections[Section.QUESTION];
+        List<Record> l = section(Section.QUESTION);
         if (l == null || l.size() == 0) {
             return null;
         }
@@ -308,6 +503,12 @@ public class Message implements Cloneable {
         if (count == 0) {
             return null;
         }
+        if ((undecoded & (1 << Section.ADDITIONAL)) != 0) {
+            if (tsigPosition < 0) {
+                return null;
+            }
+            return (TSIGRecord) decodeAt(tsigPosition, Section.ADDITIONAL);
+        }
         List<Record> l = sections[Section.ADDITIONAL];
         Record rec = l.get(count - 1);
         if (rec.getType() != Type.TSIG) {
@@ -341,12 +542,26 @@ public class Message implements Cloneable {
      * @see Section
      */
     public OPTRecord getOPT() {
-        Record[] additional = getSectionArray(Section.ADDITIONAL);
-        for (int i = 0; i < additional.length; i++)
-            if (additional[i] instanceof OPTRecord) {
-                return (OPTRecord) additional[i];
+        if ((undecoded & (1 << Section.ADDITIONAL)) != 0) {
+            if (opt == null && optPosition >= 0) {
+                opt = (OPTRecord) decodeAt(optPosition, Section.ADDITIONAL);
+            }
+            return opt;
+        }
+        List<Record> additional = sections[Section.ADDITIONAL];
+        if (additional == null) {
+            return null;
+        }
+        if (optIndex == OPT_UNKNOWN) {
+            optIndex = -1;
+            for (int i = 0; i < additional.size(); i++) {
+                if (additional.get(i) instanceof OPTRecord) {
+                    optIndex = i;
+                    break;
+                }
             }
-        return null;
+        }
+        return (optIndex < 0 ? null : (OPTRecord) additional.get(optIndex));
     }
 
     /**
@@ -370,13 +585,29 @@ public class Message implements Cloneable {
      * @see Section
      */
     public Record[] getSectionArray(int section) {
-        if (sections[section] == null) {
+        List<Record> l = section(section);
+        if (l == null) {
             return emptyRecordArray;
         }
-        List<Record> l = sections[section];
         return l.toArray(new Record[l.size()]);
     }
 
+    /**
+     * Returns a read-only view of the records in the given section, which is
+     * empty if the section is empty. Unlike {@link #getSectionArray(int)} the
+     * records are not copied; the view reflects later changes to the section.
+     * 
+     * @see Record
+     * @see Section
+     */
+    public List<Record> getSection(int section) {
+        List<Record> l = section(section);
+        if (l == null) {
+            return Collections.emptyList();
+        }
+        return Collections.unmodifiableList(l);
+    }
+
     private static boolean sameSet(Record r1, Record r2) {
         return (r1.getRRsetType() == r2.getRRsetType()
                 && r1.getDClass() == r2.getDClass() && r1.getName().equals(
@@ -391,135 +622,211 @@ public class Message implements Cloneable {
      * @see Section
      */
     public RRSet[] getSectionRRsets(int section) {
-        if (sections[section] == null) {
+        List<Record> l = section(section);
+        if (l == null) {
             return emptyRRsetArray;
         }
-        List<RRSet> sets = new LinkedList<RRSet>();
-        Record[] recs = getSectionArray(section);
-        Set<Name> hash = new HashSet<Name>();
-        for (int i = 0; i < recs.length; i++) {
-            Name name = recs[i].getName();
-            boolean newset = true;
-            if (hash.contains(name)) {
-                for (int j = sets.size() - 1; j >= 0; j--) {
-                    RRSet set = sets.get(j);
-                    if (set.getType() == recs[i].getRRsetType()
-                            && set.getDClass() == recs[i].getDClass()
-                            && set.getName().equals(name)) {
-                        set.addRR(recs[i]);
-                        newset = false;
-                        break;
-                    }
-                }
+        return toRRsets(l);
+    }
+
+    /*
+     * Groups records into RRsets in a single pass, keeping the order in which
+     * the first record of each RRset appears.
+     */
+    static RRSet[] toRRsets(List<Record> records) {
+        Map<RRsetKey, RRSet> sets = new LinkedHashMap<RRsetKey, RRSet>();
+        RRsetKey probe = new RRsetKey();
+        for (int i = 0; i < records.size(); i++) {
+            Record rec = records.get(i);
+            probe.set(rec);
+            RRSet set = sets.get(probe);
+            if (set == null) {
+                sets.put(new RRsetKey().set(rec), new RRSet(rec));
+            } else {
+                set.addRR(rec);
             }
-            if (newset) {
-                RRSet set = new RRSet(recs[i]);
-                sets.add(set);
-                hash.add(name);
+        }
+        return sets.values().toArray(new RRSet[sets.size()]);
+    }
+
+    /* The owner name, RRset type and class of a record. */
+    private static final class RRsetKey {
+        private Name name;
+        private int type;
+        private int dclass;
+
+        RRsetKey set(Record rec) {
+            name = rec.getName();
+            type = rec.getRRsetType();
+            dclass = rec.getDClass().getValue();
+            return this;
+        }
+
+        @Override
+        public int hashCode() {
+            return (name.hashCode() * 31 + type) * 31 + dclass;
+        }
+
+        @Override
+        public boolean equals(Object arg) {
+            if (!(arg instanceof RRsetKey)) {
+                return false;
             }
+            RRsetKey key = (RRsetKey) arg;
+            return (type == key.type && dclass == key.dclass
+                    && name.equals(key.name));
         }
-        return sets.toArray(new RRSet[sets.size()]);
     }
 
     void toWire(DNSOutput out) {
-        Compression c = new Compression();
-        toWireInternal(out, c);
+        RenderContext context = RenderContext.acquire();
+        try {
+            toWireInternal(out, context.compression());
+        } finally {
+            context.release(0);
+        }
     }
 
     private void toWireInternal(DNSOutput out, Compression c) {
         header.toWire(out);
+        if (verbatim) {
+            // compression pointers are relative to the header
+            out.writeByteArray(wire, wireOffset + Header.LENGTH,
+                    sectionStart[4] - Header.LENGTH);
+            return;
+        }
         for (int i = 0; i < 4; i++) {
-            if (sections[i] == null) {
+            List<Record> l = section(i);
+            if (l == null) {
                 continue;
             }
-            for (int j = 0; j < sections[i].size(); j++) {
-                Record rec = (Record) sections[i].get(j);
+            for (int j = 0; j < l.size(); j++) {
+                Record rec = (Record) l.get(j);
                 rec.toWire(out, i, c);
             }
         }
     }
 
-    /* Returns the number of records not successfully rendered. */
+    /*
+     * Renders the records of a section that fit before the limit, an RRset at
+     * a time. An RRset that does not fit is backed out of the output and the
+     * compression table, and nothing after it is rendered, except that the
+     * OPT record is kept: reserve bytes are kept free for it until it has been
+     * rendered. Returns the number of records not rendered.
+     */
     private int sectionToWire(DNSOutput out, int section, Compression c,
-            int maxLength) {
-        int n = sections[section].size();
+            int limit, int reserve) {
+        List<Record> l = section(section);
+        int n = l.size();
+        if (section == Section.ADDITIONAL) {
+            // finds the index of the OPT record
+            getOPT();
+        }
         int pos = out.current();
         int rendered = 0;
         Record lastrec = null;
 
         for (int i = 0; i < n; i++) {
-            Record rec = (Record) sections[section].get(i);
+            Record rec = l.get(i);
             if (lastrec != null && !sameSet(rec, lastrec)) {
                 pos = out.current();
                 rendered = i;
             }
             lastrec = rec;
+            if (section == Section.ADDITIONAL && i == optIndex) {
+                reserve = 0;
+            }
             rec.toWire(out, section, c);
-            if (out.current() > maxLength) {
+            if (out.current() > limit - reserve) {
                 out.jump(pos);
-                return n - rendered;
+                c.discard(pos);
+                int skipped = n - rendered;
+                if (section == Section.ADDITIONAL && reserve > 0) {
+                    l.get(optIndex).toWire(out, section, c);
+                    skipped--;
+                }
+                return skipped;
             }
         }
         return 0;
     }
 
-    /* Returns true if the message could be rendered. */
-    private boolean toWire(DNSOutput out, int maxLength) {
+    /* The length of an OPT record in wire format. */
+    private static int optLength(OPTRecord opt) {
+        // root owner name, type, class, ttl and rdata length
+        int length = 11;
+        for (EDNSOption option : opt.getOptions()) {
+            length += 4 + option.getData().length;
+        }
+        return length;
+    }
+
+    /*
+     * Renders the message within maxLength, truncating it an RRset at a time
+     * and signing it if a TSIG key is set. The header is written once and its
+     * counts and flags are patched in place when records are left out.
+     * Returns true if the message could be rendered.
+     */
+    private boolean toWire(DNSOutput out, int maxLength, Compression c) {
         if (maxLength < Header.LENGTH) {
             return false;
         }
 
-        Header newheader = null;
+        if (verbatim && tsigkey == null && sectionStart[4] <= maxLength) {
+            toWireInternal(out, c);
+            return true;
+        }
 
-        int tempMaxLength = maxLength;
+        int startpos = out.current();
+        int limit = startpos + maxLength;
         if (tsigkey != null) {
-            tempMaxLength -= tsigkey.recordLength();
+            limit -= tsigkey.recordLength();
+        }
+        OPTRecord opt = getOPT();
+        int reserve = (opt == null) ? 0 : optLength(opt);
+        if (startpos + Header.LENGTH + reserve > limit) {
+            opt = null;
+            reserve = 0;
         }
 
-        int startpos = out.current();
         header.toWire(out);
-        Compression c = new Compression();
+        int arcount = header.getCount(Section.ADDITIONAL);
         for (int i = 0; i < 4; i++) {
-            int skipped;
-            if (sections[i] == null) {
+            if (section(i) == null) {
                 continue;
             }
-            skipped = sectionToWire(out, i, c, tempMaxLength);
+            int skipped = sectionToWire(out, i, c, limit, reserve);
             if (skipped != 0) {
-                if (newheader == null) {
-                    newheader = (Header) header.clone();
-                }
-                if (i != Section.ADDITIONAL) {
-                    newheader.setFlag(Flag.TC);
+                out.writeU16At(header.getCount(i) - skipped,
+                        startpos + 4 + 2 * i);
+                if (i == Section.ADDITIONAL) {
+                    arcount = header.getCount(i) - skipped;
+                    break;
                 }
-                int count = newheader.getCount(i);
-                newheader.setCount(i, count - skipped);
+                int tc = 1 << (15 - Flag.TC.getValue());
+                out.writeU16At(header.getFlagsWord() | tc, startpos + 2);
                 for (int j = i + 1; j < 4; j++) {
-                    newheader.setCount(j, 0);
+                    out.writeU16At(0, startpos + 4 + 2 * j);
+                }
+                arcount = 0;
+                if (opt != null) {
+                    // a truncated response keeps its EDNS information
+                    opt.toWire(out, Section.ADDITIONAL, c);
+                    arcount = 1;
+                    out.writeU16At(arcount,
+                            startpos + 4 + 2 * Section.ADDITIONAL);
                 }
-
-                out.save();
-                out.jump(startpos);
-                newheader.toWire(out);
-                out.restore();
                 break;
             }
         }
 
         if (tsigkey != null) {
-            TSIGRecord tsigrec = tsigkey.generate(this, out.toByteArray(),
+            // the MAC is computed over the output in place
+            TSIGRecord tsigrec = tsigkey.generate(this, out.array(),
+                    out.arrayOffset() + startpos, out.current() - startpos,
                     tsigerror, querytsig);
-
-            if (newheader == null) {
-                newheader = (Header) header.clone();
-            }
             tsigrec.toWire(out, Section.ADDITIONAL, c);
-            newheader.incCount(Section.ADDITIONAL);
-
-            out.save();
-            out.jump(startpos);
-            newheader.toWire(out);
-            out.restore();
+            out.writeU16At(arcount + 1, startpos + 4 + 2 * Section.ADDITIONAL);
         }
 
         return true;
@@ -530,10 +837,15 @@ public class Message implements Cloneable {
      * Message.
      */
     public byte[] toWire() {
-        DNSOutput out = new DNSOutput();
-        toWire(out);
-        size = out.current();
-        return out.toByteArray();
+        RenderContext context = RenderContext.acquire();
+        try {
+            DNSOutput out = context.output();
+            toWireInternal(out, context.compression());
+            size = out.current();
+            return out.toByteArray();
+        } finally {
+            context.release(size);
+        }
     }
 
     /**
@@ -552,10 +864,80 @@ public class Message implements Cloneable {
      * @see TSIG
      */
     public byte[] toWire(int maxLength) {
-        DNSOutput out = new DNSOutput();
-        toWire(out, maxLength);
-        size = out.current();
-        return out.toByteArray();
+        RenderContext context = RenderContext.acquire();
+        try {
+            DNSOutput out = context.output();
+            toWire(out, maxLength, context.compression());
+            size = out.current();
+            return out.toByteArray();
+        } finally {
+            context.release(size);
+        }
+    }
+
+    /**
+     * Renders the wire format representation of the Message into a buffer,
+     * starting at the buffer's position, which is advanced past the message.
+     * If the buffer is backed by an array the message is rendered in place.
+     * 
+     * @param buffer
+     *            The buffer to render into.
+     * @return The number of bytes written.
+     * @throws BufferOverflowException
+     *             The message does not fit in the remaining space of the
+     *             buffer; the buffer's position is not changed.
+     */
+    public int toWire(ByteBuffer buffer) {
+        RenderContext context = RenderContext.acquire();
+        try {
+            DNSOutput out = newOutput(buffer, context);
+            toWireInternal(out, context.compression());
+            out.writeTo(buffer);
+            size = out.current();
+            return size;
+        } finally {
+            context.release(0);
+        }
+    }
+
+    /**
+     * Renders the wire format representation of the Message into a buffer,
+     * starting at the buffer's position, which is advanced past the message.
+     * This has the same truncation and TSIG signing behavior as
+     * {@link #toWire(int)}, with the maximum length further limited to the
+     * space remaining in the buffer.
+     * 
+     * @param buffer
+     *            The buffer to render into.
+     * @param maxLength
+     *            The maximum length of the message.
+     * @return The number of bytes written, or 0 if the message could not be
+     *         rendered into the specified length.
+     * @see Flag
+     * @see TSIG
+     */
+    public int toWire(ByteBuffer buffer, int maxLength) {
+        RenderContext context = RenderContext.acquire();
+        try {
+            DNSOutput out = newOutput(buffer, context);
+            toWire(out, Math.min(maxLength, buffer.remaining()),
+                    context.compression());
+            out.writeTo(buffer);
+            size = out.current();
+            return size;
+        } finally {
+            context.release(0);
+        }
+    }
+
+    private static DNSOutput newOutput(ByteBuffer buffer,
+            RenderContext context) {
+        if (buffer.hasArray()) {
+            return new DNSOutput(buffer.array(),
+                    buffer.arrayOffset() + buffer.position(),
+                    buffer.remaining());
+        }
+        return context.output();
     }
 
     /**
@@ -594,9 +976,7 @@ public class Message implements Cloneable {
 
         StringBuffer sb = new StringBuffer();
 
-        Record[] records = getSectionArray(i);
-        for (int j = 0; j < records.length; j++) {
-            Record rec = records[j];
+        for (Record rec : getSection(i)) {
             if (i == Section.QUESTION) {
                 sb.append(";;\t" + rec.getName());
                 sb.append(", type = " + Type.string(rec.getType()));
@@ -654,8 +1034,8 @@ public class Message implements Cloneable {
 	public Object clone() {
         Message m = new Message();
         for (int i = 0; i < sections.length; i++) {
-            if (sections[i] != null) {
-                m.sections[i] = new LinkedList<Record>(sections[i]);
+            if (section(i) != null) {
+                m.sections[i] = new ArrayList<Record>(sections[i]);
             }
         }
         m.header = (Header) header.clone();
@@ -5,6 +5,10 @@ package biz.neustar.hopper.message;
 import java.io.IOException;
 import java.io.Serializable;
 import java.text.DecimalFormat;
+import java.util.Arrays;
+import java.util.Comparator;
+
+import com.google.common.primitives.UnsignedBytes;
 
 import biz.neustar.hopper.config.Options;
 import biz.neustar.hopper.exception.NameTooLongException;
@@ -36,6 +40,16 @@ public class Name implements Comparable<Name>, Serializable {
      */
     private long offsets;
 
+    /*
+     * The offsets of all labels, for names with more labels than fit in
+     * offsets. Built on first use, once the name is complete; names made by
+     * removing labels from such a name share its table, starting at
+     * tableBase.
+     */
+    private transient volatile byte[] offsetTable;
+
+    private transient int tableBase;
+
     /* Precomputed hashcode. */
     private int hashcode;
 
@@ -44,6 +58,9 @@ public class Name implements Comparable<Name>, Serializable {
      */
     private int hashCodeCaseSensitive;
 
+    /* The canonical key, computed on first use. */
+    private transient volatile byte[] canonicalKey;
+
     private static final byte[] emptyLabel = new byte[] { (byte) 0 };
     private static final byte[] wildLabel = new byte[] { (byte) 1, (byte) '*' };
 
@@ -71,11 +88,25 @@ public class Name implements Comparable<Name>, Serializable {
     /* Used to efficiently convert bytes to lowercase */
     private static final byte lowercase[] = new byte[256];
 
+    /* Powers of the multiplier of the hash function, for suffix hashes. */
+    private static final int powersOf9[] = new int[MAXNAME + 1];
+
     /* Used in wildcard names. */
     private static final Name wild;
 
+    /* Orders canonical keys, comparing a word at a time where possible. */
+    private static final Comparator<byte[]> keyOrder = UnsignedBytes
+            .lexicographicalComparator();
+
+    /* The pool of interned names, or null. */
+    private static volatile NamePool internPool;
+
     static {
         byteFormat.setMinimumIntegerDigits(3);
+        powersOf9[0] = 1;
+        for (int i = 1; i < powersOf9.length; i++) {
+            powersOf9[i] = powersOf9[i - 1] * 9;
+        }
         for (int i = 0; i < lowercase.length; i++) {
             if (i < 'A' || i > 'Z') {
                 lowercase[i] = (byte) i;
@@ -114,12 +145,28 @@ public class Name implements Comparable<Name>, Serializable {
             int shift = 8 * (7 - n);
             return ((int) (offsets >>> shift) & 0xFF);
         } else {
-            int pos = offset(MAXOFFSETS - 1);
-            for (int i = MAXOFFSETS - 1; i < n; i++) {
+            byte[] table = offsetTable;
+            if (table == null) {
+                table = buildOffsetTable();
+                offsetTable = table;
+            }
+            return (table[tableBase + n] & 0xFF);
+        }
+    }
+
+    private final byte[] buildOffsetTable() {
+        int labels = getlabels();
+        byte[] table = new byte[labels];
+        int pos = 0;
+        for (int i = 0; i < labels; i++) {
+            if (i < MAXOFFSETS) {
+                pos = offset(i);
+            } else {
                 pos += (name[pos] + 1);
             }
-            return (pos);
+            table[i] = (byte) pos;
         }
+        return table;
     }
 
     private final void setlabels(int labels) {
@@ -183,6 +230,13 @@ public class Name implements Comparable<Name>, Serializable {
         setlabels(newlabels);
     }
 
+    private static int hash(int code, byte[] array, int start, int end) {
+        for (int i = start; i < end; i++) {
+            code += ((code << 3) + lowercase[(array[i] & 0xFF)]);
+        }
+        return code;
+    }
+
     private static TextParseException parseException(String str, String message) {
         return new TextParseException("'" + str + "': " + message);
     }
@@ -370,59 +424,179 @@ public class Name implements Comparable<Name>, Serializable {
     }
 
     /**
-     * Create a new name from DNS a wire format message
+     * Sets the pool of interned names, used for names read from the wire and
+     * from master files. Null, the default, disables interning.
+     * 
+     * @param pool
+     *            The pool, or null.
+     */
+    public static void setInternPool(NamePool pool) {
+        internPool = pool;
+    }
+
+    /**
+     * Returns the pool of interned names, or null if interning is disabled.
+     */
+    public static NamePool getInternPool() {
+        return internPool;
+    }
+
+    /**
+     * Create a new name from DNS a wire format message. If an intern pool is
+     * set, the name shares its data with the pooled copy.
      * 
      * @param in
      *            A stream containing the DNS message which is currently
      *            positioned at the start of the name to be read.
      */
     public Name(DNSInput in) throws WireParseException {
-        int len, pos;
+        byte[] b = in.array();
+        int base = in.arrayOffset();
+        int start = in.current();
+
+        // first pass: check the name and find its length and hash code,
+        // following compression pointers
+        int pos = start;
+        int limit = in.limit();
+        int length = 0;
+        int labels = 0;
+        int code = 0;
+        int next = -1;
+        boolean verbose = false;
         boolean done = false;
-        byte[] label = new byte[MAXLABEL + 1];
-        boolean savedState = false;
-
         while (!done) {
-            len = in.readU8();
+            if (pos >= limit) {
+                throw new WireParseException("end of input");
+            }
+            int len = b[base + pos] & 0xFF;
             switch (len & LABEL_MASK) {
             case LABEL_NORMAL:
-                if (getlabels() >= MAXLABELS) {
+                if (labels >= MAXLABELS) {
                     throw new WireParseException("too many labels");
                 }
-                if (len == 0) {
-                    append(emptyLabel, 0, 1);
-                    done = true;
-                } else {
-                    label[0] = (byte) len;
-                    in.readByteArray(label, 1, len);
-                    append(label, 0, 1);
+                if (len >= limit - pos) {
+                    throw new WireParseException("end of input");
+                }
+                length += len + 1;
+                if (length > MAXNAME) {
+                    throw new NameTooLongException();
                 }
+                code = hash(code, b, base + pos, base + pos + len + 1);
+                labels++;
+                pos += len + 1;
+                done = (len == 0);
                 break;
             case LABEL_COMPRESSION:
-                pos = in.readU8();
-                pos += ((len & ~LABEL_MASK) << 8);
-                if (Options.check("verbosecompression"))
-                    System.err.println("currently " + in.current()
-                            + ", pointer to " + pos);
-
-                if (pos >= in.current() - 2) {
-                    throw new WireParseException("bad compression");
+                if (pos + 2 > limit) {
+                    throw new WireParseException("end of input");
                 }
-                if (!savedState) {
-                    in.save();
-                    savedState = true;
+                int target = ((len & ~LABEL_MASK) << 8)
+                        + (b[base + pos + 1] & 0xFF);
+                if (next < 0) {
+                    verbose = Options.check("verbosecompression");
+                    next = pos + 2;
                 }
-                in.jump(pos);
-                if (Options.check("verbosecompression"))
-                    System.err.println("current name '" + this
-                            + "', seeking to " + pos);
+                if (verbose) {
+                    System.err.println("currently " + (pos + 2)
+                            + ", pointer to " + target);
+                }
+                if (target >= pos) {
+                    throw new WireParseException("bad compression");
+                }
+                pos = target;
+                limit = in.length();
                 break;
             default:
                 throw new WireParseException("bad label type");
             }
         }
-        if (savedState) {
-            in.restore();
+        in.skip((next < 0 ? pos : next) - start);
+
+        NamePool pool = internPool;
+        if (pool != null) {
+            Name pooled = pool.lookup(code);
+            if (pooled != null && pooled.getlabels() == labels
+                    && pooled.offset(0) == 0 && pooled.name.length == length
+                    && walk(b, base, start, pooled.name, true)) {
+                pool.hit();
+                name = pooled.name;
+                offsets = pooled.offsets;
+                hashcode = pooled.hashcode;
+                hashCodeCaseSensitive = pooled.hashCodeCaseSensitive;
+                canonicalKey = pooled.canonicalKey;
+                offsetTable = pooled.offsetTable;
+                tableBase = pooled.tableBase;
+                return;
+            }
+            pool.miss();
+        }
+
+        // second pass: copy the labels into an array of the exact size
+        name = new byte[length];
+        walk(b, base, start, name, false);
+        for (int i = 0, p = 0; i < labels && i < MAXOFFSETS; i++) {
+            setoffset(i, p);
+            p += (name[p] + 1);
+        }
+        setlabels(labels);
+        hashcode = code;
+        if (pool != null) {
+            pool.add(this);
+        }
+    }
+
+    /*
+     * Copies a name checked by the first pass of Name(DNSInput) into dst, or
+     * compares it with dst if compare is set, following compression pointers.
+     * Returns false if the comparison failed.
+     */
+    private static boolean walk(byte[] b, int base, int pos, byte[] dst,
+            boolean compare) {
+        int dpos = 0;
+        while (true) {
+            int len = b[base + pos] & 0xFF;
+            if ((len & LABEL_MASK) == LABEL_COMPRESSION) {
+                pos = ((len & ~LABEL_MASK) << 8) + (b[base + pos + 1] & 0xFF);
+                continue;
+            }
+            if (compare) {
+                for (int i = 0; i <= len; i++) {
+                    if (dst[dpos + i] != b[base + pos + i]) {
+                        return false;
+                    }
+                }
+            } else {
+                System.arraycopy(b, base + pos, dst, dpos, len + 1);
+            }
+            if (len == 0) {
+                return true;
+            }
+            dpos += len + 1;
+            pos += len + 1;
+        }
+    }
+
+    /*
+     * Moves past a name in wire format without decoding it, for callers that
+     * only need the structure of a message. Compression pointers are not
+     * followed, so they are only checked when the name is decoded.
+     */
+    static void skip(DNSInput in) throws WireParseException {
+        while (true) {
+            int len = in.readU8();
+            switch (len & LABEL_MASK) {
+            case LABEL_NORMAL:
+                if (len == 0) {
+                    return;
+                }
+                in.skip(len);
+                break;
+            case LABEL_COMPRESSION:
+                in.skip(1);
+                return;
+            default:
+                throw new WireParseException("bad label type");
+            }
         }
     }
 
@@ -455,6 +629,12 @@ public class Name implements Comparable<Name>, Serializable {
         for (int i = 0; i < MAXOFFSETS && i < slabels - n; i++) {
             setoffset(i, src.offset(i + n));
         }
+        if (slabels - n > MAXOFFSETS) {
+            // the offsets of the remaining labels are the same
+            src.offset(slabels - 1);
+            offsetTable = src.offsetTable;
+            tableBase = src.tableBase + n;
+        }
     }
 
     /**
@@ -704,33 +884,66 @@ public class Name implements Comparable<Name>, Serializable {
             throw new IllegalArgumentException("toWire() called on "
                     + "non-absolute name");
 
+        if (c == null) {
+            int off = offset(0);
+            out.writeByteArray(name, off, name.length - off);
+            return;
+        }
+
+        // The hash code of each suffix follows from the cached hash code of
+        // the name and that of the labels already written, since
+        // hash(prefix + suffix) = hash(prefix) * 9^length(suffix)
+        // + hash(suffix).
+        boolean caseSensitive = c.isCaseSensitive();
+        int code = caseSensitive ? hashCodeCaseSensitive() : hashCode();
+        int prefix = 0;
         int labels = labels();
         for (int i = 0; i < labels - 1; i++) {
-            Name tname;
-            if (i == 0) {
-                tname = this;
-            } else {
-                tname = new Name(this, i);
-            }
-            int pos = -1;
-            if (c != null) {
-                pos = c.get(tname);
-            }
+            int off = offset(i);
+            int hash = code - prefix * powersOf9[name.length - off];
+            int pos = c.get(name, off, hash);
             if (pos >= 0) {
                 pos |= (LABEL_MASK << 8);
                 out.writeU16(pos);
+                c.saved(name.length - off - 2);
                 return;
-            } else {
-                if (c != null) {
-                    c.add(out.current(), tname);
-                }
-                int off = offset(i);
-                out.writeByteArray(name, off, name[off] + 1);
+            }
+            c.add(out.current(), name, off, hash);
+            int end = off + name[off] + 1;
+            out.writeByteArray(name, off, end - off);
+            for (int j = off; j < end; j++) {
+                int b = caseSensitive ? (name[j] & 0xFF)
+                        : lowercase[name[j] & 0xFF];
+                prefix += (prefix << 3) + b;
             }
         }
         out.writeU8(0);
     }
 
+    /* The array holding the name, for compression. */
+    byte[] array() {
+        return name;
+    }
+
+    /* The index of the first label of the name in its array. */
+    int arrayOffset() {
+        return offset(0);
+    }
+
+    static byte lowercase(byte b) {
+        return lowercase[b & 0xFF];
+    }
+
+    /* Formats the name starting at an offset of an array, for tracing. */
+    static String describe(byte[] array, int off) {
+        try {
+            return new Name(Arrays.copyOfRange(array, off, array.length))
+                    .toString();
+        } catch (IOException e) {
+            return "?";
+        }
+    }
+
     /**
      * Emit a Name in DNS wire format
      * 
@@ -847,6 +1060,10 @@ public class Name implements Comparable<Name>, Serializable {
             return false;
         }
         Name d = (Name) arg;
+        if (d.name == name && d.offsets == offsets) {
+            // shared data, as with interned names
+            return true;
+        }
         if (d.hashcode == 0) {
             d.hashCode();
         }
@@ -859,6 +1076,11 @@ public class Name implements Comparable<Name>, Serializable {
         if (d.labels() != labels()) {
             return false;
         }
+        byte[] key = canonicalKey;
+        byte[] dkey = d.canonicalKey;
+        if (key != null && dkey != null) {
+            return Arrays.equals(key, dkey);
+        }
         return equals(d.name, d.offset(0));
     }
 
@@ -895,11 +1117,7 @@ public class Name implements Comparable<Name>, Serializable {
         if (hashcode != 0) {
             return (hashcode);
         }
-        int code = 0;
-        for (int i = offset(0); i < name.length; i++) {
-            code += ((code << 3) + lowercase[(name[i] & 0xFF)]);
-        }
-        hashcode = code;
+        hashcode = hash(0, name, offset(0), name.length);
         return hashcode;
     }
 
@@ -935,28 +1153,63 @@ public class Name implements Comparable<Name>, Serializable {
         if (this == arg) {
             return (0);
         }
+        return keyOrder.compare(key(), arg.key());
+    }
+
+    /**
+     * Returns the canonical key of the name: its labels from right to left,
+     * in lowercase, each followed by a zero byte, with zero and one bytes in
+     * labels escaped as 1 1 and 1 2. Compared as unsigned bytes, keys are in
+     * the canonical order of their names, and equal names have equal keys, so
+     * the key can stand for the name in byte-ordered maps and stores.
+     * 
+     * @return A copy of the key.
+     */
+    public byte[] toCanonicalKey() {
+        return key().clone();
+    }
+
+    private byte[] key() {
+        byte[] key = canonicalKey;
+        if (key == null) {
+            key = buildKey();
+            canonicalKey = key;
+        }
+        return key;
+    }
 
+    private byte[] buildKey() {
         int labels = labels();
-        int alabels = arg.labels();
-        int compares = labels > alabels ? alabels : labels;
-
-        for (int i = 1; i <= compares; i++) {
-            int start = offset(labels - i);
-            int astart = arg.offset(alabels - i);
-            int length = name[start];
-            int alength = arg.name[astart];
-            for (int j = 0; j < length && j < alength; j++) {
-                int n = lowercase[(name[j + start + 1]) & 0xFF]
-                        - lowercase[(arg.name[j + astart + 1]) & 0xFF];
-                if (n != 0) {
-                    return (n);
+        int[] starts = new int[labels];
+        int size = 0;
+        for (int i = 0, pos = offset(0); i < labels; i++) {
+            starts[i] = pos;
+            int len = name[pos];
+            for (int j = pos + 1; j <= pos + len; j++) {
+                if ((name[j] & 0xFF) <= 1) {
+                    size++;
                 }
             }
-            if (length != alength) {
-                return (length - alength);
+            size += len + 1;
+            pos += len + 1;
+        }
+        byte[] key = new byte[size];
+        int k = 0;
+        for (int i = labels - 1; i >= 0; i--) {
+            int pos = starts[i];
+            int len = name[pos];
+            for (int j = pos + 1; j <= pos + len; j++) {
+                int b = name[j] & 0xFF;
+                if (b <= 1) {
+                    key[k++] = 1;
+                    key[k++] = (byte) (b + 1);
+                } else {
+                    key[k++] = lowercase[b];
+                }
             }
+            key[k++] = 0;
         }
-        return (labels - alabels);
+        return key;
     }
 
 }
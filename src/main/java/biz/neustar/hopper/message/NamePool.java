@@ -0,0 +1,121 @@
+package biz.neustar.hopper.message;
+
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A bounded pool of interned names. Names read from the wire or from master
+ * files are looked up in the pool, so that repeated names share one name array
+ * and precomputed hash code, and compare equal by reference.
+ * <p>
+ * The pool is a fixed size table indexed by the case-insensitive hash of the
+ * name, each slot holding the name last added to it; a hit also requires the
+ * name to match case-sensitively, so the case of names is preserved. Lookups
+ * and updates are lock-free.
+ *
+ * @see Name#setInternPool(NamePool)
+ */
+public final class NamePool {
+
+    /** The maximum number of slots. */
+    private static final int MAX_SIZE = 1 << 30;
+
+    private final AtomicReferenceArray<Name> slots;
+    private final int mask;
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+
+    /**
+     * Creates a pool.
+     *
+     * @param size
+     *            The maximum number of names in the pool, rounded up to a
+     *            power of two.
+     */
+    public NamePool(int size) {
+        if (size < 1 || size > MAX_SIZE) {
+            throw new IllegalArgumentException("invalid pool size " + size);
+        }
+        int slotCount = Integer.highestOneBit(size);
+        if (slotCount < size) {
+            slotCount <<= 1;
+        }
+        slots = new AtomicReferenceArray<Name>(slotCount);
+        mask = slotCount - 1;
+    }
+
+    private int slot(int hash) {
+        return (hash ^ (hash >>> 16)) & mask;
+    }
+
+    /**
+     * Returns the pooled name matching the given name case-sensitively, or
+     * adds the name to the pool and returns it.
+     */
+    public Name intern(Name name) {
+        int slot = slot(name.hashCode());
+        Name pooled = slots.get(slot);
+        if (pooled != null && pooled.equalsCaseSensitive(name)) {
+            hits.increment();
+            return pooled;
+        }
+        misses.increment();
+        slots.set(slot, name);
+        return name;
+    }
+
+    /**
+     * Returns the pooled name with the given hash code, or null. The caller
+     * checks that it matches and records the outcome with {@link #hit()} or
+     * {@link #miss()}.
+     *
+     * @param hash
+     *            The case-insensitive hash code of the name.
+     */
+    Name lookup(int hash) {
+        Name pooled = slots.get(slot(hash));
+        if (pooled != null && pooled.hashCode() == hash) {
+            return pooled;
+        }
+        return null;
+    }
+
+    /** Counts a lookup that found a pooled name. */
+    void hit() {
+        hits.increment();
+    }
+
+    /** Counts a lookup that did not find a pooled name. */
+    void miss() {
+        misses.increment();
+    }
+
+    /**
+     * Adds a name to the pool, replacing the name in its slot.
+     */
+    void add(Name name) {
+        slots.set(slot(name.hashCode()), name);
+    }
+
+    /** Returns the number of slots in the pool. */
+    public int size() {
+        return slots.length();
+    }
+
+    /** Returns the number of lookups that found a pooled name. */
+    public long getHits() {
+        return hits.sum();
+    }
+
+    /** Returns the number of lookups that did not find a pooled name. */
+    public long getMisses() {
+        return misses.sum();
+    }
+
+    /** Removes all names from the pool. */
+    public void clear() {
+        for (int i = 0; i < slots.length(); i++) {
+            slots.set(i, null);
+        }
+    }
+}
@@ -0,0 +1,291 @@
+package biz.neustar.hopper.message;
+
+import java.io.IOException;
+
+import biz.neustar.hopper.exception.WireParseException;
+import biz.neustar.hopper.record.Record;
+
+/**
+ * A read-only view of a simple query in wire format: a header, a single
+ * question and at most an OPT record. Fields are read directly from the wire
+ * bytes when asked for; the question name is only decoded on first use.
+ * <p>
+ * The view refers to the array it was parsed from, which must not be modified
+ * while the view is in use. Use {@link #toMessage()} when the full message is
+ * needed.
+ *
+ * @see Message
+ */
+public final class QueryView {
+
+    private static final int FLAGS = 2;
+    private static final int COUNTS = 4;
+    private static final int MAX_LABEL = 63;
+    private static final int MAX_NAME = 255;
+    /* root owner name, type, class, ttl and rdata length */
+    private static final int OPT_FIXED_LENGTH = 11;
+
+    private final byte[] array;
+    private final int offset;
+    private final int length;
+    private final int nameLength;
+    private final int optPosition;
+    private Name name;
+
+    private QueryView(byte[] array, int offset, int length, int nameLength,
+            int optPosition) {
+        this.array = array;
+        this.offset = offset;
+        this.length = length;
+        this.nameLength = nameLength;
+        this.optPosition = optPosition;
+    }
+
+    /**
+     * Parses a query from a region of an array. Only the structure of the
+     * message is checked; nothing is copied or decoded.
+     *
+     * @param b
+     *            The array holding the message.
+     * @param off
+     *            The offset of the message in the array.
+     * @param len
+     *            The length of the message.
+     * @return The view, or null if the message is not a query made of a
+     *         single question and at most an OPT record.
+     */
+    public static QueryView parse(byte[] b, int off, int len) {
+        if (off < 0 || len < Header.LENGTH || off > b.length - len) {
+            return null;
+        }
+        if ((b[off + FLAGS] & 0x80) != 0 || u16(b, off + COUNTS) != 1
+                || u16(b, off + COUNTS + 2) != 0
+                || u16(b, off + COUNTS + 4) != 0) {
+            return null;
+        }
+        int additional = u16(b, off + COUNTS + 6);
+        if (additional > 1) {
+            return null;
+        }
+        int end = off + len;
+        int pos = off + Header.LENGTH;
+        int labelLength;
+        do {
+            if (pos >= end) {
+                return null;
+            }
+            labelLength = b[pos] & 0xFF;
+            if (labelLength > MAX_LABEL) {
+                return null;
+            }
+            pos += labelLength + 1;
+        } while (labelLength != 0);
+        int nameLength = pos - off - Header.LENGTH;
+        if (nameLength > MAX_NAME) {
+            return null;
+        }
+        pos += 4;
+        int optPosition = -1;
+        if (additional == 1) {
+            if (pos + OPT_FIXED_LENGTH > end || b[pos] != 0
+                    || u16(b, pos + 1) != Type.OPT) {
+                return null;
+            }
+            optPosition = pos - off;
+            pos += OPT_FIXED_LENGTH + u16(b, pos + OPT_FIXED_LENGTH - 2);
+        }
+        if (pos != end) {
+            return null;
+        }
+        return new QueryView(b, off, len, nameLength, optPosition);
+    }
+
+    /**
+     * Parses a query from a byte array.
+     *
+     * @see #parse(byte[], int, int)
+     */
+    public static QueryView parse(byte[] b) {
+        return parse(b, 0, b.length);
+    }
+
+    private static int u16(byte[] b, int pos) {
+        return ((b[pos] & 0xFF) << 8) | (b[pos + 1] & 0xFF);
+    }
+
+    private int u16(int pos) {
+        return u16(array, offset + pos);
+    }
+
+    /** Retrieves the message ID. */
+    public int getID() {
+        return u16(0);
+    }
+
+    /** Retrieves the flags word of the header. */
+    public int getFlags() {
+        return u16(FLAGS);
+    }
+
+    /**
+     * Retrieves a flag.
+     *
+     * @see Flag
+     */
+    public boolean isFlagSet(Flag flag) {
+        // bits are indexed from left to right
+        return (getFlags() & (1 << (15 - flag.getValue()))) != 0;
+    }
+
+    /** Retrieves the message's opcode. */
+    public Opcode getOpcode() {
+        return Opcode.valueOf((getFlags() >> 11) & 0xF);
+    }
+
+    /**
+     * Retrieves the message's rcode, including the extended rcode bits of the
+     * OPT record.
+     *
+     * @see Rcode
+     */
+    public int getRcode() {
+        return (getFlags() & 0xF) + (getExtendedRcode() << 4);
+    }
+
+    /**
+     * Retrieves the record count for the given section.
+     *
+     * @see Section
+     */
+    public int getCount(int section) {
+        if (section < Section.QUESTION || section > Section.ADDITIONAL) {
+            throw new IllegalArgumentException("invalid section " + section);
+        }
+        return u16(COUNTS + 2 * section);
+    }
+
+    /**
+     * Returns the question name. It is decoded on the first call.
+     */
+    public Name getName() {
+        if (name == null) {
+            try {
+                name = new Name(new DNSInput(array, offset + Header.LENGTH,
+                        nameLength));
+            } catch (WireParseException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+        return name;
+    }
+
+    /**
+     * Returns the length of the question name in wire format.
+     */
+    public int getNameLength() {
+        return nameLength;
+    }
+
+    /** Returns the question type. */
+    public int getType() {
+        return u16(Header.LENGTH + nameLength);
+    }
+
+    /** Returns the question class. */
+    public DClass getDClass() {
+        return DClass.valueOf(u16(Header.LENGTH + nameLength + 2));
+    }
+
+    /**
+     * Returns the question as a record with no rdata, as found in the question
+     * section of a message.
+     */
+    public Record getQuestion() {
+        return Record.newRecord(getName(), getType(), getDClass());
+    }
+
+    /** Was an OPT record included in the query? */
+    public boolean hasEDNS() {
+        return optPosition >= 0;
+    }
+
+    /**
+     * Returns the payload size advertised in the OPT record, or 0 if there is
+     * none.
+     */
+    public int getPayloadSize() {
+        return hasEDNS() ? u16(optPosition + 3) : 0;
+    }
+
+    /** Returns the extended rcode of the OPT record, or 0 if there is none. */
+    public int getExtendedRcode() {
+        return hasEDNS() ? array[offset + optPosition + 5] & 0xFF : 0;
+    }
+
+    /**
+     * Returns the EDNS version of the OPT record, or -1 if there is none.
+     */
+    public int getEDNSVersion() {
+        return hasEDNS() ? array[offset + optPosition + 6] & 0xFF : -1;
+    }
+
+    /** Returns the EDNS flags of the OPT record, or 0 if there is none. */
+    public int getEDNSFlags() {
+        return hasEDNS() ? u16(optPosition + 7) : 0;
+    }
+
+    /**
+     * Is the given EDNS flag set?
+     *
+     * @see ExtendedFlag
+     */
+    public boolean isEDNSFlagSet(ExtendedFlag flag) {
+        return (getEDNSFlags() & flag.getValue()) != 0;
+    }
+
+    /**
+     * Returns the length of the rdata of the OPT record, holding its EDNS
+     * options, or 0 if there is none.
+     */
+    public int getEDNSOptionsLength() {
+        return hasEDNS() ? u16(optPosition + OPT_FIXED_LENGTH - 2) : 0;
+    }
+
+    /** Returns the length of the query in wire format. */
+    public int numBytes() {
+        return length;
+    }
+
+    /**
+     * Parses the full message.
+     *
+     * @throws IOException
+     *             The message could not be parsed.
+     */
+    public Message toMessage() throws IOException {
+        return new Message(new DNSInput(array, offset, length));
+    }
+
+    /**
+     * Returns a copy of the query in wire format.
+     */
+    public byte[] toWire() {
+        byte[] b = new byte[length];
+        System.arraycopy(array, offset, b, 0, length);
+        return b;
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder();
+        sb.append("id ").append(getID()).append(", ");
+        sb.append(getOpcode()).append(": ");
+        sb.append(getName()).append(' ').append(getDClass()).append(' ');
+        sb.append(Type.string(getType()));
+        if (hasEDNS()) {
+            sb.append(", EDNS ").append(getEDNSVersion());
+            sb.append(" udp ").append(getPayloadSize());
+        }
+        return sb.toString();
+    }
+}
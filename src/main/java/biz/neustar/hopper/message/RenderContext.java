@@ -0,0 +1,97 @@
+package biz.neustar.hopper.message;
+
+/**
+ * A per-thread {@link DNSOutput} and {@link Compression} pair that is reused
+ * for every message rendered on the thread, instead of allocating both for
+ * each message. The output buffer is sized from the messages previously
+ * rendered on the thread.
+ *
+ * <p>
+ * A context is taken with {@link #acquire()} and must be given back with
+ * {@link #release(int)} once the rendered bytes have been copied out. If the
+ * thread's context is already in use (a message rendered while rendering
+ * another one), a private context is handed out instead.
+ * </p>
+ */
+final class RenderContext {
+
+    /**
+     * The smallest output buffer allocated.
+     */
+    private static final int MIN_SIZE = 512;
+
+    /**
+     * A retained output buffer this many times larger than the size hint is
+     * given up, so that one large message does not pin a large buffer.
+     */
+    private static final int SHRINK_FACTOR = 4;
+
+    private static final ThreadLocal<RenderContext> CONTEXT =
+            new ThreadLocal<RenderContext>() {
+                @Override
+                protected RenderContext initialValue() {
+                    return new RenderContext();
+                }
+            };
+
+    private final Compression compression = new Compression();
+    private DNSOutput output;
+    private int sizeHint = MIN_SIZE;
+    private boolean inUse;
+
+    private RenderContext() {
+    }
+
+    /**
+     * Takes the calling thread's render context, with an empty compression
+     * table.
+     *
+     * @return The render context.
+     */
+    static RenderContext acquire() {
+        RenderContext context = CONTEXT.get();
+        if (context.inUse) {
+            context = new RenderContext();
+        } else {
+            context.compression.reset();
+        }
+        context.inUse = true;
+        return context;
+    }
+
+    /**
+     * Returns the compression table of this context.
+     */
+    Compression compression() {
+        return compression;
+    }
+
+    /**
+     * Returns the empty output buffer of this context.
+     */
+    DNSOutput output() {
+        if (output == null || output.capacity() > SHRINK_FACTOR * sizeHint) {
+            output = new DNSOutput(sizeHint);
+        } else {
+            output.reset();
+        }
+        return output;
+    }
+
+    /**
+     * Gives the context back to the thread.
+     *
+     * @param size
+     *            The size of the rendered message, used to size the output
+     *            buffer for later messages; 0 if unknown.
+     */
+    void release(int size) {
+        if (size > sizeHint) {
+            sizeHint = size;
+        } else if (size > 0) {
+            // decay slowly towards smaller messages
+            sizeHint = Math.max(MIN_SIZE, sizeHint - ((sizeHint - size) >> 3));
+        }
+        inUse = false;
+    }
+}
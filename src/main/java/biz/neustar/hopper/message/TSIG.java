@@ -277,6 +277,30 @@ public class TSIG implements Serializable {
      * @return The TSIG record to be added to the message
      */
     public TSIGRecord generate(Message m, byte[] b, int error, TSIGRecord old) {
+        return generate(m, b, 0, b.length, error, old);
+    }
+
+    /**
+     * Generates a TSIG record with a specific error for a message that has
+     * been rendered into a region of an array. The region is digested in
+     * place.
+     * 
+     * @param m
+     *            The message
+     * @param b
+     *            The array holding the rendered message
+     * @param off
+     *            The offset of the rendered message in the array
+     * @param len
+     *            The length of the rendered message
+     * @param error
+     *            The error
+     * @param old
+     *            If this message is a response, the TSIG from the request
+     * @return The TSIG record to be added to the message
+     */
+    public TSIGRecord generate(Message m, byte[] b, int off, int len,
+            int error, TSIGRecord old) {
         Date timeSigned;
         if (error != Rcode.BADTIME) {
             timeSigned = new Date();
@@ -305,7 +329,7 @@ public class TSIG implements Serializable {
 
         /* Digest the message */
         if (hmac != null) {
-            hmac.update(b);
+            hmac.update(b, off, len);
         }
 
         DNSOutput out = new DNSOutput();
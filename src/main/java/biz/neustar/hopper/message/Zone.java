@@ -11,6 +11,7 @@ import java.util.Map;
 import java.util.Map.Entry;
 import java.util.NoSuchElementException;
 import java.util.TreeMap;
+import java.util.concurrent.CopyOnWriteArrayList;
 
 import biz.neustar.hopper.exception.ZoneTransferException;
 import biz.neustar.hopper.record.RRSet;
@@ -43,6 +44,7 @@ public class Zone implements Serializable {
     private RRSet NS;
     private SOARecord SOA;
     private boolean hasWild;
+    private transient List<ZoneChangeListener> listeners;
 
     class ZoneIterator implements Iterator<RRSet> {
         private Iterator<Map.Entry<Name, Object>> zentries;
@@ -137,6 +139,18 @@ public class Zone implements Serializable {
         }
     }
 
+    private final void maybeAddRRset(RRSet rrset) throws IOException {
+        Name name = rrset.getName();
+
+        if (rrset.getType() == Type.SOA && !name.equals(origin)) {
+            throw new IOException("SOA owner " + name
+                    + " does not match zone origin " + origin);
+        }
+        if (name.subdomain(origin)) {
+            addRRset(name, rrset);
+        }
+    }
+
     /**
      * Creates a Zone from the records in the specified master file.
      * 
@@ -216,9 +230,8 @@ public class Zone implements Serializable {
             throw new IllegalArgumentException("zones can only be "
                     + "created from AXFRs");
         }
-        for (Iterator<Record> it = run.getAxfr().iterator(); it.hasNext();) {
-            Record record = it.next();
-            maybeAddRecord(record);
+        for (RRSet rrset : run.getAxfrRRsets()) {
+            maybeAddRRset(rrset);
         }
         validate();
     }
@@ -507,6 +520,7 @@ public class Zone implements Serializable {
     public void addRRset(RRSet rrset) {
         Name name = rrset.getName();
         addRRset(name, rrset);
+        fireZoneChanged(name, rrset.getType());
     }
 
     /**
@@ -528,6 +542,7 @@ public class Zone implements Serializable {
                 rrset.addRR(r);
             }
         }
+        fireZoneChanged(name, rtype);
     }
 
     /**
@@ -551,6 +566,47 @@ public class Zone implements Serializable {
                 rrset.deleteRR(r);
             }
         }
+        fireZoneChanged(name, rtype);
+    }
+
+    /**
+     * Registers a listener to be notified whenever an RRset of the zone is
+     * added, modified or removed.
+     * 
+     * @param listener
+     *            The listener to add.
+     */
+    public synchronized void addChangeListener(ZoneChangeListener listener) {
+        if (listeners == null) {
+            listeners = new CopyOnWriteArrayList<ZoneChangeListener>();
+        }
+        listeners.add(listener);
+    }
+
+    /**
+     * Unregisters a listener added with
+     * {@link #addChangeListener(ZoneChangeListener)}.
+     * 
+     * @param listener
+     *            The listener to remove.
+     */
+    public synchronized void removeChangeListener(ZoneChangeListener listener) {
+        if (listeners != null) {
+            listeners.remove(listener);
+        }
+    }
+
+    private void fireZoneChanged(Name name, int type) {
+        List<ZoneChangeListener> current;
+        synchronized (this) {
+            current = listeners;
+        }
+        if (current == null) {
+            return;
+        }
+        for (ZoneChangeListener listener : current) {
+            listener.zoneChanged(this, name, type);
+        }
     }
 
     /**
@@ -0,0 +1,19 @@
+package biz.neustar.hopper.message;
+
+/**
+ * Listener notified when the data of a {@link Zone} is modified.
+ *
+ * @see Zone#addChangeListener(ZoneChangeListener)
+ */
+public interface ZoneChangeListener {
+
+    /**
+     * Called after an RRset of the zone was added, replaced, modified or
+     * removed.
+     *
+     * @param zone The zone that changed.
+     * @param name The owner name of the changed RRset.
+     * @param type The type of the changed RRset.
+     */
+    void zoneChanged(Zone zone, Name name, int type);
+}
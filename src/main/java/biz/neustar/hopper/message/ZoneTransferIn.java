@@ -25,6 +25,7 @@ import java.io.IOException;
 import java.net.InetSocketAddress;
 import java.net.SocketAddress;
 import java.net.UnknownHostException;
+import java.util.List;
 
 import biz.neustar.hopper.config.Options;
 import biz.neustar.hopper.exception.NameTooLongException;
@@ -494,7 +495,7 @@ public class ZoneTransferIn {
                 }
             }
 
-            Record[] answers = response.getSectionArray(Section.ANSWER);
+            List<Record> answers = response.getSection(Section.ANSWER);
 
             if (state == INITIALSOA) {
                 int rcode = response.getRcode();
@@ -515,15 +516,15 @@ public class ZoneTransferIn {
                     }
                 }
 
-                if (answers.length == 0 && qtype == Type.IXFR) {
+                if (answers.isEmpty() && qtype == Type.IXFR) {
                     fallback();
                     doxfr();
                     return;
                 }
             }
 
-            for (int i = 0; i < answers.length; i++) {
-                parseRR(answers[i]);
+            for (Record answer : answers) {
+                parseRR(answer);
             }
 
             if (state == END && verifier != null && !response.isVerified()) {
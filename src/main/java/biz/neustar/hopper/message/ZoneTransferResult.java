@@ -12,6 +12,7 @@ package biz.neustar.hopper.message;
 import java.util.ArrayList;
 import java.util.List;
 
+import biz.neustar.hopper.record.RRSet;
 import biz.neustar.hopper.record.Record;
 import biz.neustar.hopper.record.SOARecord;
 
@@ -107,6 +108,14 @@ public class ZoneTransferResult implements ZoneTransferHandler {
 		return axfr;
 	}
 
+	/**
+	 * Returns the records of the AXFR response grouped into RRsets, in the
+	 * order in which the first record of each RRset was received.
+	 */
+	public RRSet[] getAxfrRRsets() {
+		return Message.toRRsets(axfr);
+	}
+
 	public void setAxfr(List<Record> axfr) {
 		this.axfr = axfr;
 	}
@@ -0,0 +1,21 @@
+package biz.neustar.hopper.nio;
+
+import java.util.concurrent.CompletionStage;
+
+/**
+ * A chunked stream whose chunks are produced asynchronously. The next chunk
+ * is only asked for once the previous one has been written.
+ *
+ * @param <V> Type of chunk.
+ */
+public interface AsyncChunkedStream <V> {
+
+    /**
+     * Fetches the next chunk of the stream.
+     *
+     * @return A stage completing with the next chunk, or with null if there
+     *         is no data left in the stream.
+     */
+    CompletionStage<V> nextChunk();
+
+}
@@ -0,0 +1,59 @@
+package biz.neustar.hopper.nio;
+
+import java.util.concurrent.CompletionStage;
+
+import org.jboss.netty.channel.ChannelHandlerContext;
+import org.jboss.netty.channel.MessageEvent;
+
+import biz.neustar.hopper.message.Message;
+
+/**
+ * Handler definition for asynchronous server side message processing. The
+ * handler returns as soon as the request is dispatched, and the response is
+ * written when the returned stage completes, so requests waiting on a backend
+ * do not hold a thread.
+ */
+public interface AsyncServerMessageHandler {
+
+    /**
+     * Handle a request received over UDP.
+     *
+     * @param ctx The channel handler context for the pipeline.
+     * @param request The request from the client
+     * @param e Message event.
+     *
+     * @return A stage completing with the response to the client, or with
+     *         null if no response is to be sent
+     */
+    CompletionStage<Message> handleRequestOnUdp(
+            final ChannelHandlerContext ctx,
+            final Message request,
+            final MessageEvent e);
+
+    /**
+     * Handle a request received over TCP and generate a stream of responses.
+     *
+     * @param ctx The channel handler context for the pipeline.
+     * @param request The request from the client
+     * @param e Message event.
+     *
+     * @return The responses to the client, or null if no response is to be
+     *         sent
+     */
+    AsyncChunkedStream<Message> handleRequestOnTcp(
+            final ChannelHandlerContext ctx,
+            final Message request,
+            final MessageEvent e);
+
+    /**
+     * Handle exceptions raised while processing a client request, including
+     * stages completing exceptionally.
+     *
+     * @param throwable
+     *            The exception occurred during request handling.
+     * @param channelType The type of transport channel.
+     */
+    void handleException(final Throwable throwable,
+            final ChannelType channelType);
+
+}
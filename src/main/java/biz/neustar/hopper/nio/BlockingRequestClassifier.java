@@ -0,0 +1,20 @@
+package biz.neustar.hopper.nio;
+
+/**
+ * Implemented by server message handlers running inline on the I/O threads
+ * (see {@link DnsServer.Builder#inlineHandler(boolean)}) that may block on
+ * some requests, such as zone transfers. Requests classified as blocking are
+ * handed to the application thread pool, all others are handled inline.
+ */
+public interface BlockingRequestClassifier {
+
+    /**
+     * Whether handling a request may block.
+     *
+     * @param request The decoded request, a Message or a QueryView.
+     *
+     * @return true if the request must not be handled on an I/O thread
+     */
+    boolean mayBlock(final Object request);
+
+}
@@ -2,15 +2,20 @@ package biz.neustar.hopper.nio;
 
 import java.net.InetSocketAddress;
 import java.net.SocketAddress;
+import java.net.SocketTimeoutException;
+import java.nio.channels.ClosedChannelException;
 import java.util.HashMap;
 import java.util.Map;
-import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BiConsumer;
 
 import org.jboss.netty.bootstrap.ClientBootstrap;
 import org.jboss.netty.bootstrap.ConnectionlessBootstrap;
 import org.jboss.netty.channel.Channel;
 import org.jboss.netty.channel.ChannelFuture;
+import org.jboss.netty.channel.ChannelHandler;
 import org.jboss.netty.channel.ChannelFutureListener;
 import org.jboss.netty.channel.ChannelPipeline;
 import org.jboss.netty.channel.ChannelPipelineFactory;
@@ -20,6 +25,10 @@ import org.jboss.netty.channel.socket.nio.NioDatagramChannelFactory;
 import org.jboss.netty.handler.execution.ExecutionHandler;
 import org.jboss.netty.handler.execution.OrderedMemoryAwareThreadPoolExecutor;
 import org.jboss.netty.handler.logging.LoggingHandler;
+import org.jboss.netty.util.HashedWheelTimer;
+import org.jboss.netty.util.Timeout;
+import org.jboss.netty.util.Timer;
+import org.jboss.netty.util.TimerTask;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -28,12 +37,20 @@ import biz.neustar.hopper.nio.handler.AdvancedClientMessageHandlerInvoker;
 import biz.neustar.hopper.nio.handler.ClientMessageHandlerInvoker;
 import biz.neustar.hopper.nio.handler.DNSMessageDecoder;
 import biz.neustar.hopper.nio.handler.DNSMessageEncoder;
+import biz.neustar.hopper.nio.handler.QueryCorrelator;
 import biz.neustar.hopper.nio.handler.TCPDecoder;
 import biz.neustar.hopper.nio.handler.TCPEncoder;
 
 /**
  * A client for the DNS protocol. This clien can sends DNS messages via TCP or
  * UDP.
+ * <p>
+ * Responses to messages sent with {@link #sendUDP} and {@link #sendTCP} are
+ * passed to the client message handler. {@link #query} and {@link #queryTCP}
+ * instead return a future completed with the response to the query.
+ * <p>
+ * TCP messages to a server share a pool of connections, over which queries
+ * are pipelined.
  */
 public class DnsClient {
 
@@ -108,14 +125,47 @@ public class DnsClient {
 //        private int udpTimeoutSeconds = UDP_TIMEOUT;
 
         /**
-         * The UDP client pipeline.
+         * The default maximum number of TCP connections to a server.
          */
-        private final ChannelPipeline udpChannelPipeline = Channels.pipeline();
+        private static final int DEFAULT_TCP_MAX_CONNECTIONS = 1;
 
         /**
-         * The TCP client pipeline.
+         * The default number of queries in flight on a TCP connection before
+         * another is opened.
          */
-        private final ChannelPipeline tcpChannelPipeline = Channels.pipeline();
+        private static final int DEFAULT_TCP_MAX_IN_FLIGHT = 100;
+
+        /**
+         * The number of TCP connections kept open to a server once used.
+         */
+        private int tcpMinConnections = 0;
+
+        /**
+         * The maximum number of TCP connections to a server.
+         */
+        private int tcpMaxConnections = DEFAULT_TCP_MAX_CONNECTIONS;
+
+        /**
+         * The number of queries in flight on a TCP connection before another
+         * is opened.
+         */
+        private int tcpMaxInFlight = DEFAULT_TCP_MAX_IN_FLIGHT;
+
+        /**
+         * How long a TCP connection may be idle before it is closed.
+         */
+        private long tcpIdleTimeoutMillis = 0;
+
+        /**
+         * Hands messages to the application thread pool, shared by all
+         * pipelines.
+         */
+        private ChannelHandler executionHandler;
+
+        /**
+         * Invokes the client message handler, shared by all pipelines.
+         */
+        private ChannelHandler messageHandlerInvoker;
 
         /**
          * UDP options.
@@ -173,7 +223,9 @@ public class DnsClient {
 
         /**
          * Register a client side message handler to be invoked when responses
-         * are received from a server.
+         * are received from a server. Responses to queries sent with
+         * {@link DnsClient#query} are not passed to it. It is optional if
+         * only query is used.
          *
          * @param clientMessageHandlerArg
          *            the client message handler arg
@@ -301,6 +353,61 @@ public class DnsClient {
             return this;
         }
 
+        /**
+         * Set the number of TCP connections kept open to a server once it has
+         * been used. Default is 0.
+         *
+         * @param tcpMinConnectionsArg
+         *            the minimum number of connections
+         * @return the builder
+         */
+        public Builder tcpMinConnections(final int tcpMinConnectionsArg) {
+            this.tcpMinConnections = tcpMinConnectionsArg;
+            return this;
+        }
+
+        /**
+         * Set the maximum number of TCP connections to a server. Queries are
+         * spread over them. Default is 1.
+         *
+         * @param tcpMaxConnectionsArg
+         *            the maximum number of connections
+         * @return the builder
+         */
+        public Builder tcpMaxConnections(final int tcpMaxConnectionsArg) {
+            this.tcpMaxConnections = tcpMaxConnectionsArg;
+            return this;
+        }
+
+        /**
+         * Set the number of queries in flight on a TCP connection before
+         * another connection to the server is opened. When the maximum number
+         * of connections is reached, more queries are pipelined on the least
+         * loaded connection. Default is 100.
+         *
+         * @param tcpMaxInFlightArg
+         *            the number of queries in flight
+         * @return the builder
+         */
+        public Builder tcpMaxInFlight(final int tcpMaxInFlightArg) {
+            this.tcpMaxInFlight = tcpMaxInFlightArg;
+            return this;
+        }
+
+        /**
+         * Set how long a TCP connection may be idle before it is closed, as
+         * long as more than the minimum number of connections are open.
+         * Default is 0, connections are kept open.
+         *
+         * @param tcpIdleTimeoutMillisArg
+         *            the idle timeout in milliseconds
+         * @return the builder
+         */
+        public Builder tcpIdleTimeoutMillis(final long tcpIdleTimeoutMillisArg) {
+            this.tcpIdleTimeoutMillis = tcpIdleTimeoutMillisArg;
+            return this;
+        }
+
         /**
          * Obtain a new Client.
          *
@@ -308,11 +415,6 @@ public class DnsClient {
          */
         public DnsClient build() {
 
-            // Gotta have a client handler, otherwise what's the point?
-            if (clientMessageHandler == null && !advanced) {
-                throw new IllegalStateException(
-                        "clientMessageHandler must be set");
-            }
             if (advancedClientMessageHandler == null && advanced) {
                 throw new IllegalStateException(
                         "advanced clientMessageHandler must be set");
@@ -321,50 +423,28 @@ public class DnsClient {
             // set up the application side thread pool
             Executor omaThreadPoolExecutorArg = this.threadPoolExecutor != null ? this.threadPoolExecutor
                     : new OrderedMemoryAwareThreadPoolExecutor(threadPoolSize, 0, 0);
-            // client handler invoker
-            ClientMessageHandlerInvoker clientMessageHandlerInvoker = new ClientMessageHandlerInvoker(
-                    clientMessageHandler, closeConnectionOnMessageReceipt);
-
-            AdvancedClientMessageHandlerInvoker advancedClientMessageHandlerInvoker = new AdvancedClientMessageHandlerInvoker(
-                    advancedClientMessageHandler,
-                    closeConnectionOnMessageReceipt);
-            // build the pipeline
-            if (logging) {
-                udpChannelPipeline.addLast("Logger", new LoggingHandler());
+            if (tcpMaxConnections < 1 || tcpMinConnections < 0
+                    || tcpMinConnections > tcpMaxConnections) {
+                throw new IllegalStateException(
+                        "invalid TCP connection pool size");
             }
-            udpChannelPipeline.addLast("MessageDecoder",
-                    new DNSMessageDecoder());
-            udpChannelPipeline.addLast("MessageEncoder",
-                    new DNSMessageEncoder());
-            udpChannelPipeline.addLast("ApplicationThreadPool",
-                    new ExecutionHandler(omaThreadPoolExecutorArg));
-            if (!advanced) {
-                udpChannelPipeline.addLast("ClientMessageHandlerInvoker",
-                        clientMessageHandlerInvoker);
-            } else {
-                udpChannelPipeline.addLast(
-                        "AdvancedClientMessageHandlerInvoker",
-                        advancedClientMessageHandlerInvoker);
+            if (tcpMaxInFlight < 1) {
+                throw new IllegalStateException(
+                        "tcpMaxInFlight must be positive");
             }
 
-            if (logging) {
-                tcpChannelPipeline.addLast("Logger", new LoggingHandler());
-            }
-            tcpChannelPipeline.addLast("TCPDecoder", new TCPDecoder());
-            tcpChannelPipeline.addLast("TCPEncoder", new TCPEncoder());
-            tcpChannelPipeline.addLast("MessageDecoder",
-                    new DNSMessageDecoder());
-            tcpChannelPipeline.addLast("MessageEncoder",
-                    new DNSMessageEncoder());
-            tcpChannelPipeline.addLast("ApplicationThreadPool",
-                    new ExecutionHandler(omaThreadPoolExecutorArg));
+            executionHandler = new ExecutionHandler(omaThreadPoolExecutorArg);
+            // client handler invoker
             if (!advanced) {
-                tcpChannelPipeline.addLast("ClientMessageHandlerInvoker",
-                        clientMessageHandlerInvoker);
+                if (clientMessageHandler != null) {
+                    messageHandlerInvoker = new ClientMessageHandlerInvoker(
+                            clientMessageHandler,
+                            closeConnectionOnMessageReceipt);
+                }
             } else {
-                tcpChannelPipeline.addLast(
-                        "AdvancedClientMessageHandlerInvoker",
-                        advancedClientMessageHandlerInvoker);
+                messageHandlerInvoker = new AdvancedClientMessageHandlerInvoker(
+                        advancedClientMessageHandler,
+                        closeConnectionOnMessageReceipt);
             }
             return new DnsClient(this);
         }
@@ -395,6 +475,16 @@ public class DnsClient {
 
     private Channel channel;
 
+    /**
+     * Matches responses to the queries sent with query.
+     */
+    private final QueryCorrelator correlator;
+
+    /**
+     * The timer for query timeouts and the idle sweep of TCP connections.
+     */
+    private final Timer timer = new HashedWheelTimer();
+
     /**
      * Obtain a new client builder.
      *
@@ -405,9 +495,9 @@ public class DnsClient {
     }
 
     /**
-     * Map from servers to connection open futures.
+     * The TCP connections, by server.
      */
-    private final ConcurrentHashMap<SocketAddress, ChannelFuture> openTcpConnections = new ConcurrentHashMap<>();
+    private final TcpConnectionPool tcpConnections;
 
     /**
      * Construct a new Client.
@@ -417,29 +507,77 @@ public class DnsClient {
      */
     public DnsClient(final Builder builder) {
 
+        correlator = new QueryCorrelator(new QueryCorrelator.TcpRetry() {
+            @Override
+            public void retry(final Message query,
+                    final SocketAddress destination,
+                    final CompletableFuture<Message> future) {
+                queryTCP(query, destination, future);
+            }
+        });
+
         udpBootstrap = new ConnectionlessBootstrap(builder.nioDChannelFactory);
         udpBootstrap.setOptions(builder.udpOptions);
         udpBootstrap.setPipelineFactory(new ChannelPipelineFactory() {
 
             @Override
             public ChannelPipeline getPipeline() throws Exception {
-                return builder.udpChannelPipeline;
+                return newPipeline(builder, false);
             }
         });
 //        udpTimeoutSeconds = builder.udpTimeoutSeconds;
         channel = udpBootstrap.bind(new InetSocketAddress(0));
 
-        // Configure the TCP client.
+        // Configure the TCP client. Every connection needs its own pipeline,
+        // as the frame decoder keeps state.
         tcpBootstrap = new ClientBootstrap(builder.nioCSChannelFactory);
         tcpBootstrap.setOptions(builder.options);
         tcpBootstrap.setPipelineFactory(new ChannelPipelineFactory() {
 
             @Override
             public ChannelPipeline getPipeline() {
-                return builder.tcpChannelPipeline;
+                return newPipeline(builder, true);
             }
         });
+        tcpConnections = new TcpConnectionPool(tcpBootstrap,
+                builder.tcpMinConnections, builder.tcpMaxConnections,
+                builder.tcpMaxInFlight, builder.tcpIdleTimeoutMillis, timer);
+    }
 
+    /**
+     * Build the pipeline of a channel.
+     *
+     * @param builder
+     *            Which has the client configuration
+     * @param tcp
+     *            Whether the channel is a TCP connection
+     * @return the pipeline
+     */
+    private ChannelPipeline newPipeline(final Builder builder,
+            final boolean tcp) {
+        ChannelPipeline pipeline = Channels.pipeline();
+        if (builder.logging) {
+            pipeline.addLast("Logger", new LoggingHandler());
+        }
+        if (tcp) {
+            pipeline.addLast("TCPDecoder", new TCPDecoder());
+            pipeline.addLast("TCPEncoder", new TCPEncoder());
+        }
+        pipeline.addLast("MessageDecoder", new DNSMessageDecoder());
+        if (!tcp) {
+            pipeline.addLast("MessageEncoder", new DNSMessageEncoder());
+        }
+        // ahead of the thread pool, so responses are matched on the I/O
+        // threads
+        pipeline.addLast("QueryCorrelator", correlator);
+        pipeline.addLast("ApplicationThreadPool", builder.executionHandler);
+        if (builder.messageHandlerInvoker != null) {
+            pipeline.addLast(builder.advanced
+                    ? "AdvancedClientMessageHandlerInvoker"
+                    : "ClientMessageHandlerInvoker",
+                    builder.messageHandlerInvoker);
+        }
+        return pipeline;
     }
 
     /**
@@ -481,6 +619,8 @@ public class DnsClient {
      *            The DNS message
      * @param destination
      *            the destination
+     * @throws IllegalStateException
+     *             If the client is stopped
      */
     public void sendTCP(final Message message, final SocketAddress destination) {
 
@@ -503,18 +643,171 @@ public class DnsClient {
     }
 
     /**
-     * Shutdown the client. Close open channel and release resources.
+     * Send a query and wait asynchronously for the response. The query is
+     * sent over UDP, and again over TCP if the response is truncated. The
+     * query is copied and given a message ID not used by other outstanding
+     * queries to the destination; a response must come from the destination
+     * and match the ID and question of the query.
+     * <p>
+     * The future is completed on a Netty I/O thread, so dependent actions
+     * that may block should use the async variants of CompletableFuture.
+     *
+     * @param message
+     *            The query
+     * @param destination
+     *            The server to send the query to
+     * @param timeoutMillis
+     *            How long to wait for the response, in milliseconds
+     * @return A future completed with the response, or exceptionally with a
+     *         SocketTimeoutException if no response arrived in time
      */
-    public void stop() {
+    public CompletableFuture<Message> query(final Message message,
+            final SocketAddress destination, final long timeoutMillis) {
+
+        final Message query = (Message) message.clone();
+        final CompletableFuture<Message> future =
+                register(query, destination, timeoutMillis);
+        if (future.isDone()) {
+            return future;
+        }
+        channel.write(query, destination).addListener(
+                new FailureListener(future));
+        return future;
+    }
 
-        for (ChannelFuture channelFuture : openTcpConnections.values()) {
-            try {
-                channelFuture.getChannel().close().await();
-            } catch (Exception e) {
-                // no worries, we are shutting down
-                LOGGER.warn("Shutting down the client!!!!!");
+    /**
+     * Send a query over TCP and wait asynchronously for the response. Queries
+     * to a server are pipelined over a pool of connections, sized by the
+     * builder. Otherwise as {@link #query}.
+     *
+     * @param message
+     *            The query
+     * @param destination
+     *            The server to send the query to
+     * @param timeoutMillis
+     *            How long to wait for the response, in milliseconds
+     * @return A future completed with the response, or exceptionally with a
+     *         SocketTimeoutException if no response arrived in time
+     */
+    public CompletableFuture<Message> queryTCP(final Message message,
+            final SocketAddress destination, final long timeoutMillis) {
+
+        final Message query = (Message) message.clone();
+        final CompletableFuture<Message> future =
+                register(query, destination, timeoutMillis);
+        if (!future.isDone()) {
+            queryTCP(query, destination, future);
+        }
+        return future;
+    }
+
+    /**
+     * Register a query with the correlator and start its timeout.
+     *
+     * @param query
+     *            The query; its ID is set
+     * @param destination
+     *            The server the query is sent to
+     * @param timeoutMillis
+     *            How long to wait for the response, in milliseconds
+     * @return The future of the response, already failed if the query could
+     *         not be registered
+     */
+    private CompletableFuture<Message> register(final Message query,
+            final SocketAddress destination, final long timeoutMillis) {
+
+        final CompletableFuture<Message> future =
+                new CompletableFuture<Message>();
+        try {
+            correlator.register(query, destination, future);
+        } catch (IllegalStateException e) {
+            future.completeExceptionally(e);
+            return future;
+        }
+        final Timeout timeout = timer.newTimeout(new TimerTask() {
+
+            @Override
+            public void run(final Timeout t) {
+                future.completeExceptionally(new SocketTimeoutException(
+                        "no response from " + destination + " after "
+                                + timeoutMillis + " ms"));
             }
+        }, timeoutMillis, TimeUnit.MILLISECONDS);
+        future.whenComplete(new BiConsumer<Message, Throwable>() {
+
+            @Override
+            public void accept(final Message response,
+                    final Throwable throwable) {
+                timeout.cancel();
+                correlator.unregister(query, destination);
+            }
+        });
+        return future;
+    }
+
+    /**
+     * Send a registered query on a pooled connection, counting it as in
+     * flight on the connection until the future completes.
+     *
+     * @param query
+     *            The registered query
+     * @param destination
+     *            The server to send the query to
+     * @param future
+     *            Completed with the response
+     */
+    private void queryTCP(final Message query,
+            final SocketAddress destination,
+            final CompletableFuture<Message> future) {
+
+        final TcpConnectionPool.Connection connection;
+        try {
+            connection = tcpConnections.acquire(destination, true);
+        } catch (IllegalStateException e) {
+            // the client was stopped
+            future.completeExceptionally(e);
+            return;
         }
+        future.whenComplete(new BiConsumer<Message, Throwable>() {
+
+            @Override
+            public void accept(final Message response,
+                    final Throwable throwable) {
+                connection.end();
+            }
+        });
+        connection.getConnectFuture().addListener(new ChannelFutureListener() {
+
+            @Override
+            public void operationComplete(final ChannelFuture f) {
+                if (f.isSuccess()) {
+                    f.getChannel().write(query).addListener(
+                            new FailureListener(future));
+                } else {
+                    future.completeExceptionally(f.getCause());
+                }
+            }
+        });
+    }
+
+    /**
+     * @param destination
+     *            A server
+     * @return The number of TCP connections to the server, open or opening
+     */
+    public int getTcpConnectionCount(final SocketAddress destination) {
+        return tcpConnections.size(destination);
+    }
+
+    /**
+     * Shutdown the client. Close open channel and release resources. Queries
+     * still waiting for a response fail with a ClosedChannelException.
+     */
+    public void stop() {
+
+        correlator.failAll(new ClosedChannelException());
+        tcpConnections.close();
+        timer.stop();
         tcpBootstrap.releaseExternalResources();
         channel.close();
         udpBootstrap.releaseExternalResources();
@@ -522,36 +815,40 @@ public class DnsClient {
 
     /**
      * Asynchronously open a connection or return an already open connection.
+     * The connection is taken from the pool of connections to the
+     * destination.
      *
      * @param destination
      *            To which the connection should be opened
      * @return A ChannelFuture for the connection operation
+     * @throws IllegalStateException
+     *             If the client is stopped
      */
     protected ChannelFuture connectTCP(final SocketAddress destination) {
 
-        ChannelFuture toReturn = openTcpConnections.get(destination);
-        if (toReturn == null) {
-            // open a connection
-            toReturn = tcpBootstrap.connect(destination);
-            LOGGER.debug("Opened {}", toReturn);
-            toReturn.getChannel().getCloseFuture()
-                    .addListener(new ChannelFutureListener() {
-
-                        @Override
-                        public void operationComplete(final ChannelFuture arg0)
-                                throws Exception {
-                            openTcpConnections.remove(destination);
-                        }
-                    });
-            ChannelFuture toUse = openTcpConnections.putIfAbsent(destination,
-                    toReturn);
-            if (toUse != null) {
-                // Already opened, discard this one and use the other one
-                toReturn.getChannel().close();
-                toReturn = toUse;
-            }
-        }
+        ChannelFuture toReturn = tcpConnections.acquire(destination, false)
+                .getConnectFuture();
         LOGGER.debug("Returning channelFuture {}", toReturn);
         return toReturn;
     }
+
+    /**
+     * Fails the future of a query when its write fails.
+     */
+    private static final class FailureListener
+            implements ChannelFutureListener {
+
+        private final CompletableFuture<Message> future;
+
+        FailureListener(final CompletableFuture<Message> futureArg) {
+            this.future = futureArg;
+        }
+
+        @Override
+        public void operationComplete(final ChannelFuture f) {
+            if (!f.isSuccess()) {
+                future.completeExceptionally(f.getCause());
+            }
+        }
+    }
 }
@@ -1,8 +1,11 @@
 package biz.neustar.hopper.nio;
 
 import java.net.InetSocketAddress;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.concurrent.Executor;
 import java.util.concurrent.atomic.AtomicReference;
 
@@ -31,10 +34,16 @@ import org.slf4j.LoggerFactory;
 
 import biz.neustar.hopper.nio.handler.AdvancedServerMessageHandlerTCPInvoker;
 import biz.neustar.hopper.nio.handler.AdvancedServerMessageHandlerUDPInvoker;
+import biz.neustar.hopper.nio.handler.AsyncServerMessageHandlerTCPInvoker;
+import biz.neustar.hopper.nio.handler.AsyncServerMessageHandlerUDPInvoker;
 import biz.neustar.hopper.nio.handler.DNSMessageDecoder;
 import biz.neustar.hopper.nio.handler.DNSMessageEncoder;
+import biz.neustar.hopper.nio.handler.HybridExecutionHandler;
+import biz.neustar.hopper.nio.handler.ResponseCacheHandler;
+import biz.neustar.hopper.nio.handler.ReusePortHandler;
 import biz.neustar.hopper.nio.handler.ServerMessageHandlerTCPInvoker;
 import biz.neustar.hopper.nio.handler.ServerMessageHandlerUDPInvoker;
+import biz.neustar.hopper.nio.handler.SocketCounterHandler;
 import biz.neustar.hopper.nio.handler.TCPDecoder;
 import biz.neustar.hopper.nio.handler.TCPEncoder;
 import biz.neustar.hopper.nio.handler.TcpIdleChannelHandler;
@@ -89,6 +98,7 @@ public class DnsServer {
         private boolean logging = false;
         private ServerMessageHandler serverMessageHandler;
         private AdvancedServerMessageHandler advancedServerMessageHandler;
+        private AsyncServerMessageHandler asyncServerMessageHandler;
 
         private static final int DEFAULT_POOLSIZE = 10;
         private int udpThreadPoolSize = DEFAULT_POOLSIZE;
@@ -106,6 +116,9 @@ public class DnsServer {
         private Map<String, Object> tcpOptions = new HashMap<String, Object>();
         private Executor udpExecutor;
         private Executor tcpExecutor;
+        private ResponseCache responseCache;
+        private int udpChannels = 1;
+        private boolean inlineHandler = false;
 
         public Builder() {
             udpOptions.put("receiveBufferSize", receiveBufferSize);
@@ -163,6 +176,16 @@ public class DnsServer {
             return this;
         }
 
+        /**
+         * The asynchronous message handler to be invoked when a request is
+         * received. It is used instead of the server message handler when
+         * set, unless advanced is set.
+         */
+        public Builder asyncServerMessageHandler(
+                final AsyncServerMessageHandler asyncServerMessageHandlerArg) {
+            this.asyncServerMessageHandler = asyncServerMessageHandlerArg;
+            return this;
+        }
 
         /**
          * The application thread pool size. Default is 10.
@@ -238,6 +261,53 @@ public class DnsServer {
             return this;
         }
 
+        /**
+         * A cache of rendered responses used to answer UDP queries without
+         * invoking the message handler. Default is no cache.
+         *
+         * @param responseCacheArg
+         * @return
+         */
+        public Builder responseCache(final ResponseCache responseCacheArg) {
+            this.responseCache = responseCacheArg;
+            return this;
+        }
+
+        /**
+         * The number of UDP channels bound to the server port. Each channel
+         * is served by its own worker thread of the UDP channel factory, so
+         * the factory should have at least this many workers. More than one
+         * channel requires SO_REUSEPORT, which is available from Java 9; on
+         * older runtimes a single channel is bound. Default is 1.
+         *
+         * @param udpChannelsArg
+         * @return
+         */
+        public Builder udpChannels(final int udpChannelsArg) {
+            if (udpChannelsArg < 1) {
+                throw new IllegalArgumentException(
+                        "udpChannels must be at least 1");
+            }
+            this.udpChannels = udpChannelsArg;
+            return this;
+        }
+
+        /**
+         * Run the message handler directly on the I/O threads instead of the
+         * application thread pools, saving a thread hand-off per request.
+         * Only suitable for handlers that never block. A handler that may
+         * block on some requests can implement
+         * {@link BlockingRequestClassifier}; the requests it flags are still
+         * handed to the thread pools. Default is false.
+         *
+         * @param inlineHandlerArg
+         * @return
+         */
+        public Builder inlineHandler(final boolean inlineHandlerArg) {
+            this.inlineHandler = inlineHandlerArg;
+            return this;
+        }
+
         /**
          * Create and start a new Server instance.
          *
@@ -245,9 +315,11 @@ public class DnsServer {
          */
         public DnsServer build() {
 
-            if (serverMessageHandler == null && !advanced) {
+            if (serverMessageHandler == null
+                    && asyncServerMessageHandler == null && !advanced) {
                 throw new IllegalStateException(
-                        "serverMessageHandler must be set");
+                        "serverMessageHandler or asyncServerMessageHandler"
+                                + " must be set");
             }
 
             if (advancedServerMessageHandler == null && advanced) {
@@ -286,6 +358,18 @@ public class DnsServer {
     private final AtomicReference<InetSocketAddress> boundTo =
             new AtomicReference<InetSocketAddress>();
 
+    /**
+     * The counters of the UDP channels, in the order they were bound.
+     */
+    private final List<SocketCounters> udpSocketCounters =
+            new CopyOnWriteArrayList<SocketCounters>();
+
+    /**
+     * The number of UDP channels bound to the port: as requested, or 1 where
+     * SO_REUSEPORT is not supported.
+     */
+    private final int udpChannels;
+
     /**
      * Open channels that need to be shutdown upon server shutdown.
      */
@@ -323,12 +407,20 @@ public class DnsServer {
         ConnectionlessBootstrap udpBootstrap =
                 new ConnectionlessBootstrap(udpChannelFactory.get());
         udpBootstrap.setOptions(builder.udpOptions);
+        if (builder.udpChannels > 1 && !ReusePortHandler.isSupported()) {
+            LOGGER.warn("SO_REUSEPORT is not supported, binding a single"
+                    + " UDP channel instead of {}", builder.udpChannels);
+            udpChannels = 1;
+        } else {
+            udpChannels = builder.udpChannels;
+        }
         udpBootstrap.setPipelineFactory(getUdpChannelPipelineFactory(builder));
-        Channel udpChannel = udpBootstrap.bind(
-                new InetSocketAddress(builder.port));
-        channelGroup.add(udpChannel);
+        Channel udpChannel = bindUdp(udpBootstrap, builder.port);
         this.boundTo.set(
                 ((InetSocketAddress) udpChannel.getLocalAddress()));
+        for (int i = 1; i < udpChannels; i++) {
+            bindUdp(udpBootstrap, this.boundTo.get().getPort());
+        }
 
         // Start listening for TCP request on the same port
         tcpChannelFactory.set(builder.nioServerSocketChannelFactory);
@@ -345,6 +437,23 @@ public class DnsServer {
         LOGGER.info("Bound to {}", udpChannel.getLocalAddress());
     }
 
+    /**
+     * Bind a UDP channel and register its counters.
+     *
+     * @param udpBootstrap The UDP bootstrap.
+     * @param port The port to bind to.
+     *
+     * @return The bound channel.
+     */
+    private Channel bindUdp(final ConnectionlessBootstrap udpBootstrap,
+            final int port) {
+        Channel udpChannel = udpBootstrap.bind(new InetSocketAddress(port));
+        channelGroup.add(udpChannel);
+        udpSocketCounters.add(udpChannel.getPipeline()
+                .get(SocketCounterHandler.class).getCounters());
+        return udpChannel;
+    }
+
     /**
      * This method returns the UDP channel pipeline factory.
      *
@@ -358,24 +467,72 @@ public class DnsServer {
 
             @Override
             public ChannelPipeline getPipeline() {
+                ChannelPipeline pipeline = Channels.pipeline();
+                if (udpChannels > 1) {
+                    pipeline.addLast("ReusePort", new ReusePortHandler());
+                }
+                pipeline.addLast("SocketCounters",
+                        new SocketCounterHandler(new SocketCounters()));
                 if (builder.logging) {
-                    return Channels.pipeline(
-                            new LoggingHandler(),
-                            new DNSMessageDecoder(),
-                            new DNSMessageEncoder(),
-                            new ExecutionHandler(builder.udpExecutor),
-                            getUdpServerHandler(builder));
-                } else {
-                    return Channels.pipeline(
-                            new DNSMessageDecoder(),
-                            new DNSMessageEncoder(),
-                            new ExecutionHandler(builder.udpExecutor),
-                            getUdpServerHandler(builder));
+                    pipeline.addLast("Logger", new LoggingHandler());
                 }
+                if (builder.responseCache != null) {
+                    // Must be ahead of the decoder, so hits are answered
+                    // from the wire format.
+                    pipeline.addLast("ResponseCache",
+                            new ResponseCacheHandler(builder.responseCache));
+                }
+                pipeline.addLast("MessageDecoder",
+                        new DNSMessageDecoder(isQueryViewHandler(builder)));
+                pipeline.addLast("MessageEncoder", new DNSMessageEncoder());
+                addExecutionHandler(pipeline, builder, builder.udpExecutor);
+                pipeline.addLast("ServerMessageHandlerInvoker",
+                        getUdpServerHandler(builder));
+                return pipeline;
             }
         };
     }
 
+    /**
+     * Add the handler passing requests to the application thread pool, if
+     * the message handler does not run inline.
+     *
+     * @param pipeline The pipeline to add to.
+     * @param builder The DNS server builder.
+     * @param executor The application thread pool.
+     */
+    private static void addExecutionHandler(final ChannelPipeline pipeline,
+            final Builder builder, final Executor executor) {
+        if (!builder.inlineHandler) {
+            pipeline.addLast("ApplicationThreadPool",
+                    new ExecutionHandler(executor));
+            return;
+        }
+        Object handler = builder.advanced
+                ? builder.advancedServerMessageHandler
+                : builder.asyncServerMessageHandler != null
+                        ? builder.asyncServerMessageHandler
+                        : builder.serverMessageHandler;
+        if (handler instanceof BlockingRequestClassifier) {
+            pipeline.addLast("ApplicationThreadPool",
+                    new HybridExecutionHandler(executor,
+                            (BlockingRequestClassifier) handler));
+        }
+    }
+
+    /**
+     * Whether the server message handler accepts QueryViews.
+     *
+     * @param builder The DNS server builder.
+     *
+     * @return true if simple queries should be decoded to a QueryView.
+     */
+    private static boolean isQueryViewHandler(final Builder builder) {
+        return !builder.advanced && builder.asyncServerMessageHandler == null
+                && builder.serverMessageHandler
+                        instanceof QueryViewServerMessageHandler;
+    }
+
     /**
      * This method returns the UDP handler for server.
      *
@@ -385,11 +542,15 @@ public class DnsServer {
      */
     private SimpleChannelUpstreamHandler getUdpServerHandler(
             final Builder builder) {
-        return builder.advanced
-                ? new AdvancedServerMessageHandlerUDPInvoker(
-                        builder.advancedServerMessageHandler)
-                : new ServerMessageHandlerUDPInvoker(
-                        builder.serverMessageHandler);
+        if (builder.advanced) {
+            return new AdvancedServerMessageHandlerUDPInvoker(
+                    builder.advancedServerMessageHandler);
+        }
+        if (builder.asyncServerMessageHandler != null) {
+            return new AsyncServerMessageHandlerUDPInvoker(
+                    builder.asyncServerMessageHandler);
+        }
+        return new ServerMessageHandlerUDPInvoker(builder.serverMessageHandler);
 
     }
 
@@ -406,31 +567,24 @@ public class DnsServer {
 
             @Override
             public ChannelPipeline getPipeline() {
+                ChannelPipeline pipeline = Channels.pipeline();
                 if (builder.logging) {
-                    return Channels.pipeline(new LoggingHandler(),
-                            new TCPDecoder(), new TCPEncoder(),
-                            new DNSMessageDecoder(),
-                            new DNSMessageEncoder(),
-                            new IdleStateHandler(timer, 0, 0, 10),
-                            new TcpIdleChannelHandler(),
-                            // The Execution handler should be added after
-                            // IdleState and IdleChannel handlers.
-                            // Otherwise, it leads to NPE under high load.
-                            new ExecutionHandler(builder.tcpExecutor),
-                            getTcpServerHandler(builder));
-                } else {
-                    return Channels.pipeline(
-                            new TCPDecoder(), new TCPEncoder(),
-                            new DNSMessageDecoder(),
-                            new DNSMessageEncoder(),
-                            new IdleStateHandler(timer, 0, 0, 10),
-                            new TcpIdleChannelHandler(),
-                            // The Execution handler should be added after
-                            // IdleState and IdleChannel handlers.
-                            // Otherwise, it leads to NPE under high load.
-                            new ExecutionHandler(builder.tcpExecutor),
-                            getTcpServerHandler(builder));
+                    pipeline.addLast("Logger", new LoggingHandler());
                 }
+                pipeline.addLast("TCPDecoder", new TCPDecoder());
+                pipeline.addLast("TCPEncoder", new TCPEncoder());
+                pipeline.addLast("MessageDecoder",
+                        new DNSMessageDecoder(isQueryViewHandler(builder)));
+                pipeline.addLast("IdleState",
+                        new IdleStateHandler(timer, 0, 0, 10));
+                pipeline.addLast("TcpIdleChannel", new TcpIdleChannelHandler());
+                // The Execution handler should be added after
+                // IdleState and IdleChannel handlers.
+                // Otherwise, it leads to NPE under high load.
+                addExecutionHandler(pipeline, builder, builder.tcpExecutor);
+                pipeline.addLast("ServerMessageHandlerInvoker",
+                        getTcpServerHandler(builder));
+                return pipeline;
             }
         };
     }
@@ -444,11 +598,15 @@ public class DnsServer {
      */
     private SimpleChannelUpstreamHandler getTcpServerHandler(
             final Builder builder) {
-        return builder.advanced
-                ? new AdvancedServerMessageHandlerTCPInvoker(
-                        builder.advancedServerMessageHandler)
-                : new ServerMessageHandlerTCPInvoker(
-                        builder.serverMessageHandler);
+        if (builder.advanced) {
+            return new AdvancedServerMessageHandlerTCPInvoker(
+                    builder.advancedServerMessageHandler);
+        }
+        if (builder.asyncServerMessageHandler != null) {
+            return new AsyncServerMessageHandlerTCPInvoker(
+                    builder.asyncServerMessageHandler);
+        }
+        return new ServerMessageHandlerTCPInvoker(builder.serverMessageHandler);
 
     }
 
@@ -461,6 +619,16 @@ public class DnsServer {
         return boundTo.get();
     }
 
+    /**
+     * The traffic counters of the UDP channels, one per channel in the order
+     * they were bound.
+     *
+     * @return The UDP socket counters
+     */
+    public List<SocketCounters> getUdpSocketCounters() {
+        return Collections.unmodifiableList(udpSocketCounters);
+    }
+
     /**
      * Shutdown the server.
      */
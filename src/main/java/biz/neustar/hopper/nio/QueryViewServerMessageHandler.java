@@ -0,0 +1,23 @@
+package biz.neustar.hopper.nio;
+
+import biz.neustar.hopper.message.Message;
+import biz.neustar.hopper.message.QueryView;
+
+/**
+ * A ServerMessageHandler that receives simple queries as a {@link QueryView}
+ * over the wire bytes, saving the cost of parsing a full Message. Requests the
+ * view cannot represent are still passed to
+ * {@link #handleRequest(Message)}.
+ */
+public interface QueryViewServerMessageHandler extends ServerMessageHandler {
+
+    /**
+     * Handle a query made of a single question and at most an OPT record.
+     *
+     * @param query The query from the client
+     *
+     * @return The response to the client
+     */
+    Message handleQuery(final QueryView query);
+
+}
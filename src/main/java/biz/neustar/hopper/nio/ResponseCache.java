@@ -0,0 +1,479 @@
+package biz.neustar.hopper.nio;
+
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.buffer.ChannelBuffers;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+
+import biz.neustar.hopper.message.Name;
+import biz.neustar.hopper.message.Type;
+import biz.neustar.hopper.message.Zone;
+import biz.neustar.hopper.message.ZoneChangeListener;
+
+/**
+ * A cache of rendered responses, keyed on the question name, type and class,
+ * the DO bit and the EDNS payload size of the query. For authoritative data
+ * these fully determine the response, so a cached response only needs the
+ * ID, the RD and CD bits and the case of the question name of the new query
+ * patched in. Hits are answered without building a
+ * {@link biz.neustar.hopper.message.Message} or rendering one.
+ *
+ * <p>
+ * Only plain queries are cached: a single question, no records in the other
+ * sections except an OPT record without options. Only NOERROR and NXDOMAIN
+ * responses that are not truncated and not signed are stored, and they expire
+ * after the smallest TTL they contain (capped at the maximum TTL given to the
+ * constructor).
+ * </p>
+ *
+ * <p>
+ * A cache can be registered as a {@link ZoneChangeListener} with the zones it
+ * serves, so that entries affected by a change are evicted. Use it with
+ * {@link DnsServer.Builder#responseCache(ResponseCache)}.
+ * </p>
+ */
+public class ResponseCache implements ZoneChangeListener {
+
+    private static final int HEADER_LENGTH = 12;
+    private static final int MAX_LABEL = 63;
+    private static final int FLAGS_QR = 0x80;
+    private static final int FLAGS_OPCODE = 0x78;
+    private static final int FLAGS_TC = 0x02;
+    private static final int FLAGS_RD = 0x01;
+    private static final int FLAGS_CD = 0x10;
+    private static final int RCODE_MASK = 0x0F;
+    private static final int RCODE_NOERROR = 0;
+    private static final int RCODE_NXDOMAIN = 3;
+    private static final int EDNS_DO = 0x8000;
+
+    /**
+     * The cached responses.
+     */
+    private final Cache<Key, Entry> entries;
+
+    /**
+     * The longest time, in seconds, a response is kept.
+     */
+    private final long maxTtl;
+
+    /**
+     * Incremented on every invalidation, so that responses to queries
+     * received before it are not cached.
+     */
+    private final AtomicLong generation = new AtomicLong();
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+
+    /**
+     * Creates a response cache.
+     *
+     * @param maximumSize The maximum number of responses kept.
+     * @param maxTtlSeconds The longest time, in seconds, a response is kept,
+     *            regardless of the TTLs it contains.
+     */
+    public ResponseCache(final long maximumSize, final long maxTtlSeconds) {
+        this.entries = CacheBuilder.newBuilder()
+                .maximumSize(maximumSize)
+                .expireAfterWrite(maxTtlSeconds, TimeUnit.SECONDS)
+                .build();
+        this.maxTtl = maxTtlSeconds;
+    }
+
+    /**
+     * A query that can be answered from the cache.
+     */
+    public static final class Query {
+        private final Key key;
+        private final int id;
+        private final long generation;
+
+        private Query(final Key key, final int id, final long generation) {
+            this.key = key;
+            this.id = id;
+            this.generation = generation;
+        }
+
+        /**
+         * Returns the ID of the query.
+         */
+        public int getId() {
+            return id;
+        }
+    }
+
+    /**
+     * The cache key: the lowercase wire format question name, followed by
+     * the type, class, DO bit and payload size.
+     */
+    private static final class Key {
+        private final byte[] data;
+        private final int nameLength;
+        private final int hash;
+
+        Key(final byte[] data, final int nameLength) {
+            this.data = data;
+            this.nameLength = nameLength;
+            this.hash = Arrays.hashCode(data);
+        }
+
+        /* Is the question name equal to or below the given canonical name? */
+        boolean isSubdomainOf(final byte[] name) {
+            for (int pos = 0; nameLength - pos >= name.length;
+                    pos += data[pos] + 1) {
+                if (nameLength - pos == name.length) {
+                    for (int i = 0; i < name.length; i++) {
+                        if (data[pos + i] != name[i]) {
+                            return false;
+                        }
+                    }
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        /* Is the question name equal to the given canonical name? */
+        boolean hasName(final byte[] name) {
+            if (nameLength != name.length) {
+                return false;
+            }
+            for (int i = 0; i < name.length; i++) {
+                if (data[i] != name[i]) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+
+        @Override
+        public boolean equals(final Object o) {
+            return o instanceof Key && ((Key) o).hash == hash
+                    && Arrays.equals(((Key) o).data, data);
+        }
+    }
+
+    private static final class Entry {
+        private final byte[] response;
+        private final long expires;
+
+        Entry(final byte[] response, final long expires) {
+            this.response = response;
+            this.expires = expires;
+        }
+    }
+
+    /**
+     * Parses the readable bytes of a buffer as a query.
+     *
+     * @param buffer A DNS message in wire format.
+     *
+     * @return The query, or null if the message is not a query that can be
+     *         answered from the cache.
+     */
+    public Query parse(final ChannelBuffer buffer) {
+        int base = buffer.readerIndex();
+        int end = buffer.writerIndex();
+        if (end - base < HEADER_LENGTH) {
+            return null;
+        }
+        int flags = buffer.getUnsignedByte(base + 2);
+        if ((flags & (FLAGS_QR | FLAGS_OPCODE | FLAGS_TC)) != 0
+                || buffer.getUnsignedShort(base + 4) != 1
+                || buffer.getUnsignedShort(base + 6) != 0
+                || buffer.getUnsignedShort(base + 8) != 0
+                || buffer.getUnsignedShort(base + 10) > 1) {
+            return null;
+        }
+        int nameStart = base + HEADER_LENGTH;
+        int pos = nameStart;
+        while (true) {
+            if (pos >= end) {
+                return null;
+            }
+            int len = buffer.getUnsignedByte(pos);
+            if (len > MAX_LABEL) {
+                return null;
+            }
+            pos += len + 1;
+            if (len == 0) {
+                break;
+            }
+        }
+        int nameLength = pos - nameStart;
+        if (pos + 4 > end) {
+            return null;
+        }
+        int ednsFlags = 0;
+        int payloadSize = 0;
+        if (buffer.getUnsignedShort(base + 10) == 1) {
+            int opt = pos + 4;
+            // root owner name, type, class, ttl and a zero rdata length;
+            // the handler answers other EDNS versions with BADVERS
+            if (opt + 11 > end || buffer.getUnsignedByte(opt) != 0
+                    || buffer.getUnsignedShort(opt + 1) != Type.OPT
+                    || buffer.getUnsignedByte(opt + 5) != 0
+                    || buffer.getUnsignedByte(opt + 6) != 0
+                    || buffer.getUnsignedShort(opt + 9) != 0) {
+                return null;
+            }
+            payloadSize = buffer.getUnsignedShort(opt + 3);
+            ednsFlags = 1 | (buffer.getUnsignedShort(opt + 7) & EDNS_DO);
+        }
+        byte[] data = new byte[nameLength + 8];
+        buffer.getBytes(nameStart, data, 0, nameLength + 4);
+        for (int i = 0; i < nameLength; i++) {
+            if (data[i] >= 'A' && data[i] <= 'Z') {
+                data[i] += 'a' - 'A';
+            }
+        }
+        data[nameLength + 4] = (byte) (ednsFlags >>> 8);
+        data[nameLength + 5] = (byte) ednsFlags;
+        data[nameLength + 6] = (byte) (payloadSize >>> 8);
+        data[nameLength + 7] = (byte) payloadSize;
+        return new Query(new Key(data, nameLength),
+                buffer.getUnsignedShort(base), generation.get());
+    }
+
+    /**
+     * Looks up the response to a query.
+     *
+     * @param query The parsed query.
+     * @param buffer The query in wire format, as passed to
+     *            {@link #parse(ChannelBuffer)}.
+     *
+     * @return A new buffer holding the cached response, patched to answer
+     *         this query, or null if no response is cached.
+     */
+    public ChannelBuffer get(final Query query, final ChannelBuffer buffer) {
+        Entry entry = entries.getIfPresent(query.key);
+        if (entry != null && entry.expires <= System.currentTimeMillis()) {
+            entries.asMap().remove(query.key, entry);
+            entry = null;
+        }
+        if (entry == null) {
+            misses.incrementAndGet();
+            return null;
+        }
+        hits.incrementAndGet();
+        int base = buffer.readerIndex();
+        ChannelBuffer response = ChannelBuffers.copiedBuffer(entry.response);
+        response.setShort(0, query.id);
+        int flags = buffer.getUnsignedByte(base + 2);
+        int cached = response.getUnsignedByte(2);
+        response.setByte(2, (cached & ~FLAGS_RD) | (flags & FLAGS_RD));
+        flags = buffer.getUnsignedByte(base + 3);
+        cached = response.getUnsignedByte(3);
+        response.setByte(3, (cached & ~FLAGS_CD) | (flags & FLAGS_CD));
+        // echo the question name with the case used in the query
+        response.setBytes(HEADER_LENGTH, buffer, base + HEADER_LENGTH,
+                query.key.nameLength);
+        return response;
+    }
+
+    /**
+     * Stores the response to a query, if it can be cached.
+     *
+     * @param query The parsed query.
+     * @param buffer The response in wire format. It is copied.
+     *
+     * @return true if the response was stored.
+     */
+    public boolean put(final Query query, final ChannelBuffer buffer) {
+        if (query.generation != generation.get()) {
+            return false;
+        }
+        byte[] response = new byte[buffer.readableBytes()];
+        buffer.getBytes(buffer.readerIndex(), response);
+        long ttl = cacheableTtl(query.key, response);
+        if (ttl <= 0) {
+            return false;
+        }
+        Entry entry = new Entry(response,
+                System.currentTimeMillis() + Math.min(ttl, maxTtl) * 1000);
+        entries.put(query.key, entry);
+        // an invalidation since the first check may have missed the entry
+        if (query.generation != generation.get()) {
+            entries.asMap().remove(query.key, entry);
+            return false;
+        }
+        return true;
+    }
+
+    /*
+     * Checks that a response answers the question of the key and can be
+     * cached, and returns the smallest TTL in it, or -1.
+     */
+    private static long cacheableTtl(final Key key, final byte[] response) {
+        if (response.length < HEADER_LENGTH + key.nameLength + 4) {
+            return -1;
+        }
+        int flags = response[2] & 0xFF;
+        int rcode = response[3] & RCODE_MASK;
+        if ((flags & FLAGS_QR) == 0 || (flags & (FLAGS_OPCODE | FLAGS_TC)) != 0
+                || (rcode != RCODE_NOERROR && rcode != RCODE_NXDOMAIN)
+                || u16(response, 4) != 1) {
+            return -1;
+        }
+        for (int i = 0; i < key.nameLength + 4; i++) {
+            byte b = response[HEADER_LENGTH + i];
+            if (i < key.nameLength && b >= 'A' && b <= 'Z') {
+                b += 'a' - 'A';
+            }
+            if (b != key.data[i]) {
+                return -1;
+            }
+        }
+        int records = u16(response, 6) + u16(response, 8) + u16(response, 10);
+        int pos = HEADER_LENGTH + key.nameLength + 4;
+        long ttl = Long.MAX_VALUE;
+        for (int i = 0; i < records; i++) {
+            pos = skipName(response, pos);
+            if (pos < 0 || pos + 10 > response.length) {
+                return -1;
+            }
+            int type = u16(response, pos);
+            if (type == Type.TSIG || type == Type.SIG) {
+                return -1;
+            }
+            if (type != Type.OPT) {
+                long rrTtl = ((long) u16(response, pos + 4) << 16)
+                        | u16(response, pos + 6);
+                ttl = Math.min(ttl, rrTtl);
+            }
+            pos += 10 + u16(response, pos + 8);
+        }
+        if (pos > response.length || ttl == Long.MAX_VALUE) {
+            return -1;
+        }
+        return ttl;
+    }
+
+    private static int u16(final byte[] b, final int pos) {
+        return ((b[pos] & 0xFF) << 8) | (b[pos + 1] & 0xFF);
+    }
+
+    /* Returns the position following a possibly compressed name, or -1. */
+    private static int skipName(final byte[] b, final int start) {
+        int pos = start;
+        while (pos < b.length) {
+            int len = b[pos] & 0xFF;
+            if (len == 0) {
+                return pos + 1;
+            }
+            if ((len & 0xC0) == 0xC0) {
+                return pos + 2;
+            }
+            if (len > MAX_LABEL) {
+                return -1;
+            }
+            pos += len + 1;
+        }
+        return -1;
+    }
+
+    /**
+     * Evicts the responses for a name and all names below it. Responses to
+     * queries that are being processed while this is called are not cached.
+     *
+     * @param name The name whose responses are evicted.
+     */
+    public void invalidate(final Name name) {
+        generation.incrementAndGet();
+        byte[] canonical = name.toWireCanonical();
+        Iterator<Key> it = entries.asMap().keySet().iterator();
+        while (it.hasNext()) {
+            if (it.next().isSubdomainOf(canonical)) {
+                it.remove();
+            }
+        }
+    }
+
+    /*
+     * Evicts the responses for the ancestors of a name, up to and excluding
+     * the given origin. Adding or removing a name can turn the negative
+     * response for an ancestor from NXDOMAIN into NODATA or back.
+     */
+    private void invalidateAncestors(final Name name, final Name origin) {
+        int labels = name.labels();
+        int stop = origin.labels();
+        if (labels - 1 <= stop) {
+            return;
+        }
+        byte[][] ancestors = new byte[labels - 1 - stop][];
+        for (int i = 0; i < ancestors.length; i++) {
+            ancestors[i] = new Name(name, i + 1).toWireCanonical();
+        }
+        generation.incrementAndGet();
+        Iterator<Key> it = entries.asMap().keySet().iterator();
+        while (it.hasNext()) {
+            Key key = it.next();
+            for (byte[] ancestor : ancestors) {
+                if (key.hasName(ancestor)) {
+                    it.remove();
+                    break;
+                }
+            }
+        }
+    }
+
+    /**
+     * Evicts all responses.
+     */
+    public void invalidateAll() {
+        generation.incrementAndGet();
+        entries.invalidateAll();
+    }
+
+    /**
+     * Evicts the responses that may be affected by a change to a zone. A
+     * change to the SOA or NS RRset of the apex evicts the whole zone, since
+     * negative responses and referrals include them. A change to a wildcard
+     * evicts the names below its parent, other changes evict the changed
+     * name, the names below it and the responses for its ancestors.
+     */
+    @Override
+    public void zoneChanged(final Zone zone, final Name name, final int type) {
+        Name origin = zone.getOrigin();
+        if (name.equals(origin) && (type == Type.SOA || type == Type.NS)) {
+            invalidate(origin);
+        } else if (name.isWild()) {
+            invalidate(new Name(name, 1));
+        } else {
+            invalidate(name);
+            invalidateAncestors(name, origin);
+        }
+    }
+
+    /**
+     * Returns the number of cached responses.
+     */
+    public long size() {
+        return entries.size();
+    }
+
+    /**
+     * Returns the number of queries answered from the cache.
+     */
+    public long getHits() {
+        return hits.get();
+    }
+
+    /**
+     * Returns the number of cacheable queries that were not in the cache.
+     */
+    public long getMisses() {
+        return misses.get();
+    }
+}
@@ -0,0 +1,37 @@
+package biz.neustar.hopper.nio;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+
+import biz.neustar.hopper.message.Message;
+
+/**
+ * An asynchronous response stream having exactly one message (65535 bytes
+ * maximum).
+ */
+public class SingleMessageAsyncChunkedInput
+        implements AsyncChunkedStream<Message> {
+
+    /**
+     * The response, until it is fetched.
+     */
+    private CompletionStage<Message> response;
+
+    /**
+     * The constructor.
+     *
+     * @param responseArg The message response.
+     */
+    public SingleMessageAsyncChunkedInput(
+            final CompletionStage<Message> responseArg) {
+        this.response = responseArg;
+    }
+
+    @Override
+    public final synchronized CompletionStage<Message> nextChunk() {
+        CompletionStage<Message> next = response;
+        response = null;
+        return next == null ? CompletableFuture.<Message>completedFuture(null)
+                : next;
+    }
+}
@@ -0,0 +1,70 @@
+package biz.neustar.hopper.nio;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Traffic counters for a single server socket. Comparing the counters of
+ * sockets sharing a port shows how the kernel balances load between them.
+ */
+public class SocketCounters {
+
+    private final AtomicLong packetsReceived = new AtomicLong();
+    private final AtomicLong bytesReceived = new AtomicLong();
+    private final AtomicLong packetsSent = new AtomicLong();
+    private final AtomicLong bytesSent = new AtomicLong();
+
+    /**
+     * Count a received message.
+     *
+     * @param bytes The length of the message.
+     */
+    public void received(final int bytes) {
+        packetsReceived.incrementAndGet();
+        bytesReceived.addAndGet(bytes);
+    }
+
+    /**
+     * Count a sent message.
+     *
+     * @param bytes The length of the message.
+     */
+    public void sent(final int bytes) {
+        packetsSent.incrementAndGet();
+        bytesSent.addAndGet(bytes);
+    }
+
+    /**
+     * @return The number of messages received.
+     */
+    public long getPacketsReceived() {
+        return packetsReceived.get();
+    }
+
+    /**
+     * @return The number of bytes received.
+     */
+    public long getBytesReceived() {
+        return bytesReceived.get();
+    }
+
+    /**
+     * @return The number of messages sent.
+     */
+    public long getPacketsSent() {
+        return packetsSent.get();
+    }
+
+    /**
+     * @return The number of bytes sent.
+     */
+    public long getBytesSent() {
+        return bytesSent.get();
+    }
+
+    @Override
+    public String toString() {
+        return "SocketCounters [received=" + packetsReceived + "/"
+                + bytesReceived + ", sent=" + packetsSent + "/" + bytesSent
+                + "]";
+    }
+}
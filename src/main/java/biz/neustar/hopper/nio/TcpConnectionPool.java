@@ -0,0 +1,365 @@
+package biz.neustar.hopper.nio;
+
+import java.net.SocketAddress;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.jboss.netty.bootstrap.ClientBootstrap;
+import org.jboss.netty.channel.ChannelFuture;
+import org.jboss.netty.channel.ChannelFutureListener;
+import org.jboss.netty.util.Timeout;
+import org.jboss.netty.util.Timer;
+import org.jboss.netty.util.TimerTask;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A pool of TCP connections to each destination of a {@link DnsClient}.
+ * Queries are pipelined over the connections as allowed by RFC 7766: many may
+ * be outstanding on a connection, and each query goes to the connection with
+ * the fewest in flight. Another connection is opened when every connection
+ * has reached the in-flight limit, as long as the pool is not full; once it
+ * is, queries are queued on the least loaded connection. Connections idle for
+ * longer than the idle timeout are closed, down to the minimum pool size; a
+ * destination is forgotten once its last connection closes, if the minimum
+ * is 0.
+ */
+final class TcpConnectionPool {
+
+    /**
+     * The logger.
+     */
+    private static final Logger LOGGER =
+            LoggerFactory.getLogger(TcpConnectionPool.class);
+
+    /**
+     * Opens the connections.
+     */
+    private final ClientBootstrap bootstrap;
+
+    /**
+     * The number of connections kept open to a destination once it is used.
+     */
+    private final int minConnections;
+
+    /**
+     * The maximum number of connections to a destination.
+     */
+    private final int maxConnections;
+
+    /**
+     * The number of queries in flight on a connection before another
+     * connection is opened.
+     */
+    private final int maxInFlight;
+
+    /**
+     * How long a connection may be idle before it is closed, 0 for ever.
+     */
+    private final long idleTimeoutMillis;
+
+    /**
+     * Runs the idle sweep.
+     */
+    private final Timer timer;
+
+    /**
+     * The connections, by destination.
+     */
+    private final ConcurrentMap<SocketAddress, Pool> pools =
+            new ConcurrentHashMap<SocketAddress, Pool>();
+
+    /**
+     * The next idle sweep.
+     */
+    private volatile Timeout sweep;
+
+    /**
+     * Set once the pool is closed.
+     */
+    private volatile boolean closed;
+
+    /**
+     * The constructor.
+     *
+     * @param bootstrapArg Opens the connections.
+     * @param minConnectionsArg The number of connections kept open to a
+     *            destination once it is used.
+     * @param maxConnectionsArg The maximum number of connections to a
+     *            destination.
+     * @param maxInFlightArg The number of queries in flight on a connection
+     *            before another connection is opened.
+     * @param idleTimeoutMillisArg How long a connection may be idle before it
+     *            is closed, 0 for ever.
+     * @param timerArg Runs the idle sweep.
+     */
+    TcpConnectionPool(final ClientBootstrap bootstrapArg,
+            final int minConnectionsArg, final int maxConnectionsArg,
+            final int maxInFlightArg, final long idleTimeoutMillisArg,
+            final Timer timerArg) {
+        this.bootstrap = bootstrapArg;
+        this.minConnections = minConnectionsArg;
+        this.maxConnections = maxConnectionsArg;
+        this.maxInFlight = maxInFlightArg;
+        this.idleTimeoutMillis = idleTimeoutMillisArg;
+        this.timer = timerArg;
+        if (idleTimeoutMillis > 0) {
+            scheduleSweep();
+        }
+    }
+
+    /**
+     * Choose the connection for the next message to a destination, opening
+     * one if needed.
+     *
+     * @param destination The server.
+     * @param query Whether to count a query in flight on the connection, as
+     *            part of choosing it; the caller must end it with
+     *            {@link Connection#end()}.
+     * @return The connection.
+     * @throws IllegalStateException If the pool is closed.
+     */
+    Connection acquire(final SocketAddress destination, final boolean query) {
+        while (true) {
+            Pool pool = pools.get(destination);
+            if (pool == null) {
+                Pool created = new Pool();
+                pool = pools.putIfAbsent(destination, created);
+                if (pool == null) {
+                    pool = created;
+                }
+            }
+            synchronized (pool) {
+                // a pool removed since we looked it up must not be reused
+                if (!pool.removed) {
+                    return acquire(destination, pool, query);
+                }
+            }
+        }
+    }
+
+    /* Must be called holding the lock of the pool. */
+    private Connection acquire(final SocketAddress destination,
+            final Pool pool, final boolean query) {
+        // checked under the lock, so close() sees any connection opened here
+        if (closed) {
+            throw new IllegalStateException("connection pool closed");
+        }
+        while (pool.connections.size() < minConnections) {
+            open(destination, pool);
+        }
+        Connection best = null;
+        int size = pool.connections.size();
+        // start from a different connection each time, so ties are spread
+        int start = pool.next++;
+        for (int i = 0; i < size; i++) {
+            Connection connection = pool.connections.get(
+                    Math.floorMod(start + i, size));
+            if (best == null
+                    || connection.getInFlight() < best.getInFlight()) {
+                best = connection;
+            }
+        }
+        if ((best == null || best.getInFlight() >= maxInFlight)
+                && size < maxConnections) {
+            best = open(destination, pool);
+        }
+        if (query) {
+            best.begin();
+        } else {
+            best.touch();
+        }
+        return best;
+    }
+
+    /**
+     * Set where the next search for the least loaded connection to a
+     * destination starts; for tests.
+     *
+     * @param destination The server.
+     * @param next The index of the first connection looked at, modulo the
+     *            number of connections.
+     */
+    void setNext(final SocketAddress destination, final int next) {
+        Pool pool = pools.get(destination);
+        synchronized (pool) {
+            pool.next = next;
+        }
+    }
+
+    /**
+     * @param destination The server.
+     * @return The number of connections to the server, open or opening.
+     */
+    int size(final SocketAddress destination) {
+        Pool pool = pools.get(destination);
+        if (pool == null) {
+            return 0;
+        }
+        synchronized (pool) {
+            return pool.connections.size();
+        }
+    }
+
+    /**
+     * @return The number of destinations with a pool; for tests.
+     */
+    int destinations() {
+        return pools.size();
+    }
+
+    /**
+     * Close all connections and stop the idle sweep.
+     */
+    void close() {
+        closed = true;
+        Timeout t = sweep;
+        if (t != null) {
+            t.cancel();
+        }
+        for (Connection connection : connections()) {
+            try {
+                connection.getConnectFuture().getChannel().close().await();
+            } catch (Exception e) {
+                // no worries, we are shutting down
+                LOGGER.warn("Shutting down the client!!!!!");
+            }
+        }
+    }
+
+    /* A snapshot of all connections. */
+    private List<Connection> connections() {
+        List<Connection> all = new ArrayList<Connection>();
+        for (Pool pool : pools.values()) {
+            synchronized (pool) {
+                all.addAll(pool.connections);
+            }
+        }
+        return all;
+    }
+
+    /* Must be called holding the lock of the pool. */
+    private Connection open(final SocketAddress destination,
+            final Pool pool) {
+        ChannelFuture future = bootstrap.connect(destination);
+        LOGGER.debug("Opened {}", future);
+        final Connection connection = new Connection(future);
+        pool.connections.add(connection);
+        future.getChannel().getCloseFuture().addListener(
+                new ChannelFutureListener() {
+
+                    @Override
+                    public void operationComplete(final ChannelFuture f) {
+                        synchronized (pool) {
+                            pool.connections.remove(connection);
+                            if (pool.connections.isEmpty()
+                                    && minConnections == 0) {
+                                pool.removed = true;
+                                pools.remove(destination, pool);
+                            }
+                        }
+                    }
+                });
+        return connection;
+    }
+
+    private void scheduleSweep() {
+        if (closed) {
+            return;
+        }
+        sweep = timer.newTimeout(new TimerTask() {
+
+            @Override
+            public void run(final Timeout t) {
+                closeIdle();
+                scheduleSweep();
+            }
+        }, Math.max(1, idleTimeoutMillis / 2), TimeUnit.MILLISECONDS);
+    }
+
+    /* Close the connections idle for longer than the timeout. */
+    private void closeIdle() {
+        long deadline = System.nanoTime()
+                - TimeUnit.MILLISECONDS.toNanos(idleTimeoutMillis);
+        List<Connection> idle = new ArrayList<Connection>();
+        for (Pool pool : pools.values()) {
+            synchronized (pool) {
+                int keep = pool.connections.size();
+                for (Connection connection : pool.connections) {
+                    if (keep > minConnections && connection.isIdleSince(deadline)) {
+                        idle.add(connection);
+                        keep--;
+                    }
+                }
+            }
+        }
+        for (Connection connection : idle) {
+            LOGGER.debug("Closing idle connection {}",
+                    connection.getConnectFuture().getChannel());
+            connection.getConnectFuture().getChannel().close();
+        }
+    }
+
+    /**
+     * The connections to a destination.
+     */
+    private static final class Pool {
+        private final List<Connection> connections =
+                new ArrayList<Connection>();
+        private int next;
+        private boolean removed;
+    }
+
+    /**
+     * A pooled connection and the number of queries in flight on it.
+     */
+    static final class Connection {
+        private final ChannelFuture connectFuture;
+        private final AtomicInteger inFlight = new AtomicInteger();
+        private volatile long lastUsed = System.nanoTime();
+
+        Connection(final ChannelFuture connectFutureArg) {
+            this.connectFuture = connectFutureArg;
+        }
+
+        /**
+         * @return The future of the connection attempt.
+         */
+        ChannelFuture getConnectFuture() {
+            return connectFuture;
+        }
+
+        /**
+         * @return The number of queries waiting for a response.
+         */
+        int getInFlight() {
+            return inFlight.get();
+        }
+
+        /* Count a query sent on the connection. */
+        private void begin() {
+            inFlight.incrementAndGet();
+            touch();
+        }
+
+        /**
+         * Count the end of a query, answered or abandoned.
+         */
+        void end() {
+            inFlight.decrementAndGet();
+            touch();
+        }
+
+        private void touch() {
+            lastUsed = System.nanoTime();
+        }
+
+        private boolean isIdleSince(final long deadline) {
+            return inFlight.get() == 0 && lastUsed - deadline < 0;
+        }
+    }
+}
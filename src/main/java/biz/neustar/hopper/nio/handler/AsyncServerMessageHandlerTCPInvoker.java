@@ -0,0 +1,165 @@
+package biz.neustar.hopper.nio.handler;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.function.BiConsumer;
+
+import org.jboss.netty.channel.Channel;
+import org.jboss.netty.channel.ChannelFuture;
+import org.jboss.netty.channel.ChannelFutureListener;
+import org.jboss.netty.channel.ChannelHandlerContext;
+import org.jboss.netty.channel.ExceptionEvent;
+import org.jboss.netty.channel.MessageEvent;
+import org.jboss.netty.channel.SimpleChannelUpstreamHandler;
+
+import biz.neustar.hopper.message.Message;
+import biz.neustar.hopper.nio.AsyncChunkedStream;
+import biz.neustar.hopper.nio.AsyncServerMessageHandler;
+import biz.neustar.hopper.nio.ChannelType;
+
+/**
+ * Netty handler for invoking an AsyncServerMessageHandler (a server side
+ * callback). The chunks of a response stream are written one at a time: the
+ * next chunk is fetched once the previous one has been written.
+ */
+public class AsyncServerMessageHandlerTCPInvoker extends SimpleChannelUpstreamHandler {
+
+    /**
+     * The server message callback.
+     */
+    private final AsyncServerMessageHandler handler;
+
+    /**
+     * The constructor.
+     *
+     * @param handlerArg The server side handler
+     */
+    public AsyncServerMessageHandlerTCPInvoker(
+            final AsyncServerMessageHandler handlerArg) {
+        this.handler = handlerArg;
+    }
+
+    /**
+     * Invoked when a message object was received
+     * from a remote peer.
+     *
+     * @param ctx The channel context.
+     * @param e The message event.
+     *
+     * @throws Exception in case of any error while calling call backs.
+     */
+    @Override
+    public void messageReceived(
+            final ChannelHandlerContext ctx,
+            final MessageEvent e) throws Exception {
+
+        Object request = e.getMessage();
+        if (request instanceof Message) {
+            AsyncChunkedStream<Message> stream = handler.handleRequestOnTcp(
+                    ctx, (Message) request, e);
+            if (null != stream) {
+                new StreamWriter(ctx.getChannel(), stream).writeNext();
+            }
+        }
+        super.messageReceived(ctx, e);
+    }
+
+    /**
+     * Invoked when an exception was raised by an I/O thread or a
+     * {@link org.jboss.netty.channel.ChannelHandler}.
+     *
+     * @param ctx The channel context.
+     * @param e The exception event.
+     *
+     * @throws Exception In case of any error while invoking call backs.
+     */
+    @Override
+    public void exceptionCaught(
+            final ChannelHandlerContext ctx, final ExceptionEvent e)
+                    throws Exception {
+        handler.handleException(e.getCause(), ChannelType.TCP);
+        super.exceptionCaught(ctx, e);
+    }
+
+    /**
+     * Writes the chunks of a stream to a channel. Chunks that are already
+     * available are written in a loop, so that a long stream of completed
+     * chunks does not grow the stack.
+     */
+    private final class StreamWriter implements BiConsumer<Message, Throwable>,
+            ChannelFutureListener {
+
+        private final Channel channel;
+        private final AsyncChunkedStream<Message> stream;
+
+        StreamWriter(final Channel channelArg,
+                final AsyncChunkedStream<Message> streamArg) {
+            this.channel = channelArg;
+            this.stream = streamArg;
+        }
+
+        /**
+         * Fetch and write chunks until one is not available yet, the stream
+         * ends or a write has to be waited for.
+         */
+        void writeNext() {
+            while (channel.isConnected()) {
+                CompletableFuture<Message> next;
+                try {
+                    next = stream.nextChunk().toCompletableFuture();
+                } catch (RuntimeException ex) {
+                    handler.handleException(ex, ChannelType.TCP);
+                    return;
+                }
+                if (!next.isDone()) {
+                    next.whenComplete(this);
+                    return;
+                }
+                Message chunk;
+                try {
+                    chunk = next.join();
+                } catch (RuntimeException ex) {
+                    handler.handleException(
+                            AsyncServerMessageHandlerUDPInvoker.unwrap(ex),
+                            ChannelType.TCP);
+                    return;
+                }
+                if (null == chunk || !write(chunk)) {
+                    return;
+                }
+            }
+        }
+
+        /**
+         * Write a chunk.
+         *
+         * @return true if the write is done and the next chunk can be
+         *         fetched right away.
+         */
+        private boolean write(final Message chunk) {
+            ChannelFuture future = channel.write(chunk);
+            if (future.isDone()) {
+                return future.isSuccess();
+            }
+            future.addListener(this);
+            return false;
+        }
+
+        @Override
+        public void accept(final Message chunk, final Throwable throwable) {
+            if (null != throwable) {
+                handler.handleException(
+                        AsyncServerMessageHandlerUDPInvoker.unwrap(throwable),
+                        ChannelType.TCP);
+            } else if (null != chunk && write(chunk)) {
+                writeNext();
+            }
+        }
+
+        @Override
+        public void operationComplete(final ChannelFuture future) {
+            if (future.isSuccess()) {
+                writeNext();
+            }
+        }
+    }
+}
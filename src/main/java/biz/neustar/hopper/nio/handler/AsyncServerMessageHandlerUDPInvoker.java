@@ -0,0 +1,90 @@
+package biz.neustar.hopper.nio.handler;
+
+import java.net.SocketAddress;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.CompletionStage;
+import java.util.function.BiConsumer;
+
+import org.jboss.netty.channel.Channel;
+import org.jboss.netty.channel.ChannelHandlerContext;
+import org.jboss.netty.channel.ExceptionEvent;
+import org.jboss.netty.channel.MessageEvent;
+import org.jboss.netty.channel.SimpleChannelUpstreamHandler;
+
+import biz.neustar.hopper.message.Message;
+import biz.neustar.hopper.nio.AsyncServerMessageHandler;
+import biz.neustar.hopper.nio.ChannelType;
+
+/**
+ * Netty handler for invoking an AsyncServerMessageHandler. The response is
+ * written from whichever thread completes the stage.
+ */
+public class AsyncServerMessageHandlerUDPInvoker extends SimpleChannelUpstreamHandler {
+
+    /**
+     * The server message callback.
+     */
+    private final AsyncServerMessageHandler handler;
+
+    /**
+     * The constructor.
+     *
+     * @param handlerArg The server side handler
+     */
+    public AsyncServerMessageHandlerUDPInvoker(
+            final AsyncServerMessageHandler handlerArg) {
+        this.handler = handlerArg;
+    }
+
+    @Override
+    public void messageReceived(
+            final ChannelHandlerContext ctx,
+            final MessageEvent e) throws Exception {
+
+        Object request = e.getMessage();
+        if (request instanceof Message) {
+            CompletionStage<Message> response = handler.handleRequestOnUdp(
+                    ctx, (Message) request, e);
+            if (null != response) {
+                final Channel channel = ctx.getChannel();
+                final SocketAddress remoteAddress = e.getRemoteAddress();
+                response.whenComplete(new BiConsumer<Message, Throwable>() {
+                    @Override
+                    public void accept(final Message message,
+                            final Throwable throwable) {
+                        if (null != throwable) {
+                            handler.handleException(unwrap(throwable),
+                                    ChannelType.UDP);
+                        } else if (null != message) {
+                            channel.write(message, remoteAddress);
+                        }
+                    }
+                });
+            }
+        }
+        super.messageReceived(ctx, e);
+    }
+
+    @Override
+    public void exceptionCaught(
+            final ChannelHandlerContext ctx,
+            final ExceptionEvent e) throws Exception {
+        handler.handleException(e.getCause(), ChannelType.UDP);
+        super.exceptionCaught(ctx, e);
+    }
+
+    /**
+     * Strip the wrapper added to the exceptions of dependent stages.
+     *
+     * @param throwable The exception a stage completed with.
+     *
+     * @return The exception thrown by the handler.
+     */
+    static Throwable unwrap(final Throwable throwable) {
+        if (throwable instanceof CompletionException
+                && null != throwable.getCause()) {
+            return throwable.getCause();
+        }
+        return throwable;
+    }
+}
@@ -7,10 +7,13 @@ import org.jboss.netty.handler.codec.oneone.OneToOneDecoder;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import biz.neustar.hopper.message.DNSInput;
 import biz.neustar.hopper.message.Message;
+import biz.neustar.hopper.message.QueryView;
 
 /**
- * Decodes a DNS message from wire format to Java Objects.
+ * Decodes a DNS message from wire format to Java Objects. If enabled, simple
+ * queries are decoded to a {@link QueryView} rather than a {@link Message}.
  */
 public class DNSMessageDecoder extends OneToOneDecoder {
 
@@ -20,14 +23,79 @@ public class DNSMessageDecoder extends OneToOneDecoder {
     private static final Logger LOGGER =
             LoggerFactory.getLogger(DNSMessageDecoder.class);
 
+    /**
+     * Whether simple queries are decoded to a QueryView.
+     */
+    private final boolean queryViews;
+
+    /**
+     * The constructor. All messages are decoded to a Message.
+     */
+    public DNSMessageDecoder() {
+        this(false);
+    }
+
+    /**
+     * The constructor.
+     *
+     * @param queryViewsArg Whether simple queries are decoded to a QueryView.
+     */
+    public DNSMessageDecoder(final boolean queryViewsArg) {
+        this.queryViews = queryViewsArg;
+    }
+
     @Override
     protected Object decode(
             final ChannelHandlerContext context,
             final Channel channel, final Object message) throws Exception {
 
+        if (!(message instanceof ChannelBuffer)) {
+            return message;
+        }
         LOGGER.debug("decode {}", channel.getId());
         ChannelBuffer buffer = (ChannelBuffer) message;
-        return new Message(buffer.array());
+        if (queryViews) {
+            QueryView query = toQueryView(buffer);
+            if (query != null) {
+                return query;
+            }
+        }
+        return new Message(toDNSInput(buffer));
+    }
+
+    /**
+     * Parses the readable bytes of a buffer as a simple query. Array backed
+     * buffers are read in place; the view keeps a reference to the array.
+     *
+     * @param buffer The buffer holding a single DNS message.
+     *
+     * @return The view, or null if the message is not a simple query.
+     */
+    static QueryView toQueryView(final ChannelBuffer buffer) {
+        if (buffer.hasArray()) {
+            return QueryView.parse(buffer.array(),
+                    buffer.arrayOffset() + buffer.readerIndex(),
+                    buffer.readableBytes());
+        }
+        byte[] b = new byte[buffer.readableBytes()];
+        buffer.getBytes(buffer.readerIndex(), b);
+        return QueryView.parse(b);
     }
-}
 
+    /**
+     * Wraps the readable bytes of a buffer for parsing. Array backed buffers
+     * are read in place, so no copy of the message is made.
+     *
+     * @param buffer The buffer holding a single DNS message.
+     *
+     * @return The input stream over the readable bytes of the buffer.
+     */
+    static DNSInput toDNSInput(final ChannelBuffer buffer) {
+        if (buffer.hasArray()) {
+            return new DNSInput(buffer.array(),
+                    buffer.arrayOffset() + buffer.readerIndex(),
+                    buffer.readableBytes());
+        }
+        return new DNSInput(buffer.toByteBuffer());
+    }
+}
@@ -1,6 +1,8 @@
 package biz.neustar.hopper.nio.handler;
 
-import org.jboss.netty.buffer.ChannelBuffers;
+import java.nio.BufferOverflowException;
+
+import org.jboss.netty.buffer.ChannelBuffer;
 import org.jboss.netty.channel.Channel;
 import org.jboss.netty.channel.ChannelHandlerContext;
 import org.jboss.netty.handler.codec.oneone.OneToOneEncoder;
@@ -20,6 +22,17 @@ public class DNSMessageEncoder extends OneToOneEncoder {
     private static final Logger LOGGER =
             LoggerFactory.getLogger(DNSMessageEncoder.class);
 
+    /**
+     * The smallest buffer allocated for a message.
+     */
+    static final int MIN_BUFFER_SIZE = 512;
+
+    /**
+     * The size of the buffer to allocate for the next message, based on the
+     * size of the last one.
+     */
+    private volatile int sizeHint = MIN_BUFFER_SIZE;
+
     @Override
     protected Object encode(
             final ChannelHandlerContext context,
@@ -33,7 +46,60 @@ public class DNSMessageEncoder extends OneToOneEncoder {
 
         LOGGER.debug("Encoding {}", channel.getId());
 
-        return ChannelBuffers.copiedBuffer(((Message) message).toWire());
+        ChannelBuffer buffer = encode(channel, (Message) message, 0, sizeHint);
+        sizeHint = nextSizeHint(buffer.readableBytes());
+        return buffer;
     }
-}
 
+    /**
+     * Renders a message directly into a single buffer from the channel's
+     * buffer factory, optionally preceded by a length field holding the size
+     * of the message. A buffer of the hinted size is tried first; if the
+     * message does not fit it is rendered again into a buffer large enough
+     * for any message.
+     *
+     * @param channel The channel the message will be written to.
+     * @param message The message to encode.
+     * @param lengthFieldLength The size of the length field, 0 for none or
+     *            2 for the TCP length prefix.
+     * @param sizeHint The expected size of the message.
+     *
+     * @return The buffer holding the encoded message.
+     */
+    static ChannelBuffer encode(final Channel channel, final Message message,
+            final int lengthFieldLength, final int sizeHint) {
+        ChannelBuffer buffer = channel.getConfig().getBufferFactory()
+                .getBuffer(lengthFieldLength + sizeHint);
+        int length;
+        try {
+            length = message.toWire(buffer.toByteBuffer(
+                    lengthFieldLength, sizeHint));
+        } catch (BufferOverflowException e) {
+            buffer = channel.getConfig().getBufferFactory()
+                    .getBuffer(lengthFieldLength + Message.MAXLENGTH);
+            length = message.toWire(buffer.toByteBuffer(
+                    lengthFieldLength, Message.MAXLENGTH));
+        }
+        if (lengthFieldLength > 0) {
+            buffer.setShort(0, length);
+        }
+        buffer.writerIndex(lengthFieldLength + length);
+        return buffer;
+    }
+
+    /**
+     * Computes the buffer size to try for the next message: the size of the
+     * last message rounded up to a power of two.
+     *
+     * @param lastSize The size of the last encoded message.
+     *
+     * @return The size hint.
+     */
+    static int nextSizeHint(final int lastSize) {
+        if (lastSize <= MIN_BUFFER_SIZE) {
+            return MIN_BUFFER_SIZE;
+        }
+        return Math.min(Integer.highestOneBit(lastSize - 1) << 1,
+                Message.MAXLENGTH);
+    }
+}
@@ -0,0 +1,47 @@
+package biz.neustar.hopper.nio.handler;
+
+import java.util.concurrent.Executor;
+
+import org.jboss.netty.channel.ChannelEvent;
+import org.jboss.netty.channel.ChannelHandlerContext;
+import org.jboss.netty.channel.MessageEvent;
+import org.jboss.netty.handler.execution.ExecutionHandler;
+
+import biz.neustar.hopper.nio.BlockingRequestClassifier;
+
+/**
+ * An ExecutionHandler that only hands requests classified as blocking to its
+ * executor. Other requests are passed up the pipeline on the I/O thread.
+ * Channel state events always go through the executor, so that they stay
+ * ordered with the offloaded requests.
+ */
+public class HybridExecutionHandler extends ExecutionHandler {
+
+    /**
+     * Decides which requests are offloaded.
+     */
+    private final BlockingRequestClassifier classifier;
+
+    /**
+     * The constructor.
+     *
+     * @param executor The executor for blocking requests.
+     * @param classifierArg Decides which requests may block.
+     */
+    public HybridExecutionHandler(final Executor executor,
+            final BlockingRequestClassifier classifierArg) {
+        super(executor);
+        this.classifier = classifierArg;
+    }
+
+    @Override
+    public void handleUpstream(final ChannelHandlerContext context,
+            final ChannelEvent e) throws Exception {
+        if (e instanceof MessageEvent
+                && !classifier.mayBlock(((MessageEvent) e).getMessage())) {
+            context.sendUpstream(e);
+        } else {
+            super.handleUpstream(context, e);
+        }
+    }
+}
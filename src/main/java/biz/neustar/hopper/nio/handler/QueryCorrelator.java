@@ -0,0 +1,229 @@
+package biz.neustar.hopper.nio.handler;
+
+import java.net.SocketAddress;
+import java.security.SecureRandom;
+import java.util.Random;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import org.jboss.netty.channel.ChannelHandlerContext;
+import org.jboss.netty.channel.MessageEvent;
+import org.jboss.netty.channel.SimpleChannelUpstreamHandler;
+import org.jboss.netty.channel.socket.DatagramChannel;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import biz.neustar.hopper.message.Flag;
+import biz.neustar.hopper.message.Message;
+import biz.neustar.hopper.record.Record;
+
+/**
+ * Netty handler matching responses to outstanding queries by source address,
+ * message ID and question. A matched response completes the future of its
+ * query and goes no further up the pipeline; other messages are passed on.
+ * A truncated UDP response is not delivered: the query is handed to the
+ * retry callback to be sent again over TCP.
+ */
+public class QueryCorrelator extends SimpleChannelUpstreamHandler {
+
+    /**
+     * The logger.
+     */
+    private static final Logger LOGGER =
+            LoggerFactory.getLogger(QueryCorrelator.class);
+
+    /**
+     * The number of message IDs.
+     */
+    private static final int ID_COUNT = 0x10000;
+
+    /**
+     * The outstanding queries.
+     */
+    private final ConcurrentMap<Key, Pending> pending =
+            new ConcurrentHashMap<Key, Pending>();
+
+    /**
+     * The source of message IDs. IDs are unpredictable, as a defence
+     * against spoofed responses.
+     */
+    private final Random random = new SecureRandom();
+
+    /**
+     * Called with the query of a truncated UDP response.
+     */
+    private final TcpRetry tcpRetry;
+
+    /**
+     * Sends a query again over TCP.
+     */
+    public interface TcpRetry {
+
+        /**
+         * Send the query over TCP. The response is matched by the correlator
+         * as before.
+         *
+         * @param query The query, as registered.
+         * @param destination Where the query was sent.
+         * @param future Completed with the response.
+         */
+        void retry(Message query, SocketAddress destination,
+                CompletableFuture<Message> future);
+    }
+
+    /**
+     * The constructor.
+     *
+     * @param tcpRetryArg Sends a query over TCP, after a truncated UDP
+     *            response.
+     */
+    public QueryCorrelator(final TcpRetry tcpRetryArg) {
+        this.tcpRetry = tcpRetryArg;
+    }
+
+    /**
+     * Register an outstanding query. The query is given a message ID that is
+     * not used by any other outstanding query to the same destination.
+     *
+     * @param query The query; its ID is set.
+     * @param destination Where the query is sent.
+     * @param future Completed with the response.
+     *
+     * @throws IllegalStateException If all IDs are in use for the
+     *             destination.
+     */
+    public void register(final Message query, final SocketAddress destination,
+            final CompletableFuture<Message> future) {
+        Pending entry = new Pending(query, future);
+        int start = random.nextInt(ID_COUNT);
+        for (int i = 0; i < ID_COUNT; i++) {
+            int id = (start + i) & (ID_COUNT - 1);
+            if (pending.putIfAbsent(new Key(destination, id), entry) == null) {
+                query.getHeader().setID(id);
+                return;
+            }
+        }
+        throw new IllegalStateException("no free message ID for "
+                + destination);
+    }
+
+    /**
+     * Forget an outstanding query.
+     *
+     * @param query The query, as passed to register.
+     * @param destination Where the query was sent.
+     */
+    public void unregister(final Message query,
+            final SocketAddress destination) {
+        Key key = new Key(destination, query.getHeader().getID());
+        Pending entry = pending.get(key);
+        if (entry != null && entry.query == query) {
+            pending.remove(key, entry);
+        }
+    }
+
+    /**
+     * Fail and forget all outstanding queries, as when the client stops.
+     *
+     * @param cause The exception the futures are completed with.
+     */
+    public void failAll(final Throwable cause) {
+        for (Key key : pending.keySet()) {
+            Pending entry = pending.remove(key);
+            if (entry != null) {
+                entry.future.completeExceptionally(cause);
+            }
+        }
+    }
+
+    /**
+     * @return The number of outstanding queries.
+     */
+    public int size() {
+        return pending.size();
+    }
+
+    @Override
+    public void messageReceived(final ChannelHandlerContext ctx,
+            final MessageEvent e) throws Exception {
+        if (e.getMessage() instanceof Message) {
+            Message response = (Message) e.getMessage();
+            Pending entry = pending.get(new Key(e.getRemoteAddress(),
+                    response.getHeader().getID()));
+            if (entry != null && entry.matches(response)) {
+                boolean udp = e.getChannel() instanceof DatagramChannel;
+                if (udp && entry.overTcp) {
+                    LOGGER.debug("Ignoring UDP response after TCP retry {}",
+                            response.getHeader().getID());
+                } else if (udp
+                        && response.getHeader().isFlagSet(Flag.TC)) {
+                    entry.overTcp = true;
+                    tcpRetry.retry(entry.query, e.getRemoteAddress(),
+                            entry.future);
+                } else {
+                    entry.future.complete(response);
+                }
+                return;
+            }
+        }
+        super.messageReceived(ctx, e);
+    }
+
+    /**
+     * An outstanding query.
+     */
+    private static final class Pending {
+        private final Message query;
+        private final CompletableFuture<Message> future;
+        private volatile boolean overTcp;
+
+        Pending(final Message queryArg,
+                final CompletableFuture<Message> futureArg) {
+            this.query = queryArg;
+            this.future = futureArg;
+        }
+
+        /* Is the message a response to the same question? */
+        boolean matches(final Message response) {
+            if (!response.getHeader().isFlagSet(Flag.QR)) {
+                return false;
+            }
+            Record question = query.getQuestion();
+            Record answered = response.getQuestion();
+            // error responses may leave out the question
+            return question == null || answered == null
+                    || (question.getType() == answered.getType()
+                            && question.getDClass() == answered.getDClass()
+                            && question.getName().equals(answered.getName()));
+        }
+    }
+
+    /**
+     * Identifies a query by its destination and message ID.
+     */
+    private static final class Key {
+        private final SocketAddress address;
+        private final int id;
+
+        Key(final SocketAddress addressArg, final int idArg) {
+            this.address = addressArg;
+            this.id = idArg;
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * (address == null ? 0 : address.hashCode()) + id;
+        }
+
+        @Override
+        public boolean equals(final Object o) {
+            if (!(o instanceof Key)) {
+                return false;
+            }
+            Key other = (Key) o;
+            return id == other.id && (address == null ? other.address == null
+                    : address.equals(other.address));
+        }
+    }
+}
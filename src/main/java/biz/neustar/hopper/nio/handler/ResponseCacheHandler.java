@@ -0,0 +1,123 @@
+package biz.neustar.hopper.nio.handler;
+
+import java.net.SocketAddress;
+import java.util.concurrent.TimeUnit;
+
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.channel.ChannelHandlerContext;
+import org.jboss.netty.channel.Channels;
+import org.jboss.netty.channel.MessageEvent;
+import org.jboss.netty.channel.SimpleChannelHandler;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+
+import biz.neustar.hopper.nio.ResponseCache;
+
+/**
+ * Netty handler answering queries from a {@link ResponseCache}. It must be
+ * placed in front of the {@link DNSMessageDecoder}: on a hit the cached
+ * response is written straight back and the query goes no further up the
+ * pipeline; on a miss the query is passed on and the encoded response, seen
+ * on its way down, is added to the cache.
+ */
+public class ResponseCacheHandler extends SimpleChannelHandler {
+
+    /**
+     * How long to wait for the response to a query before forgetting it.
+     */
+    private static final long PENDING_TIMEOUT_SECONDS = 10;
+
+    /**
+     * The maximum number of queries waiting for a response.
+     */
+    private static final long MAX_PENDING = 100000;
+
+    /**
+     * The response cache.
+     */
+    private final ResponseCache cache;
+
+    /**
+     * Queries waiting for a response, by client address and message ID.
+     */
+    private final Cache<PendingKey, ResponseCache.Query> pending =
+            CacheBuilder.newBuilder()
+                    .maximumSize(MAX_PENDING)
+                    .expireAfterWrite(PENDING_TIMEOUT_SECONDS, TimeUnit.SECONDS)
+                    .build();
+
+    /**
+     * The constructor.
+     *
+     * @param cacheArg The response cache.
+     */
+    public ResponseCacheHandler(final ResponseCache cacheArg) {
+        this.cache = cacheArg;
+    }
+
+    @Override
+    public void messageReceived(final ChannelHandlerContext ctx,
+            final MessageEvent e) throws Exception {
+        if (e.getMessage() instanceof ChannelBuffer) {
+            ChannelBuffer request = (ChannelBuffer) e.getMessage();
+            ResponseCache.Query query = cache.parse(request);
+            if (query != null) {
+                ChannelBuffer response = cache.get(query, request);
+                if (response != null) {
+                    Channels.write(ctx, Channels.future(e.getChannel()),
+                            response, e.getRemoteAddress());
+                    return;
+                }
+                pending.put(new PendingKey(e.getRemoteAddress(),
+                        query.getId()), query);
+            }
+        }
+        super.messageReceived(ctx, e);
+    }
+
+    @Override
+    public void writeRequested(final ChannelHandlerContext ctx,
+            final MessageEvent e) throws Exception {
+        if (e.getMessage() instanceof ChannelBuffer) {
+            ChannelBuffer response = (ChannelBuffer) e.getMessage();
+            if (response.readableBytes() >= 2) {
+                PendingKey key = new PendingKey(e.getRemoteAddress(),
+                        response.getUnsignedShort(response.readerIndex()));
+                ResponseCache.Query query = pending.asMap().remove(key);
+                if (query != null) {
+                    cache.put(query, response);
+                }
+            }
+        }
+        super.writeRequested(ctx, e);
+    }
+
+    /**
+     * Identifies a query by its sender and message ID.
+     */
+    private static final class PendingKey {
+        private final SocketAddress address;
+        private final int id;
+
+        PendingKey(final SocketAddress addressArg, final int idArg) {
+            this.address = addressArg;
+            this.id = idArg;
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * (address == null ? 0 : address.hashCode()) + id;
+        }
+
+        @Override
+        public boolean equals(final Object o) {
+            if (!(o instanceof PendingKey)) {
+                return false;
+            }
+            PendingKey other = (PendingKey) o;
+            return id == other.id && (address == null ? other.address == null
+                    : address.equals(other.address));
+        }
+    }
+}
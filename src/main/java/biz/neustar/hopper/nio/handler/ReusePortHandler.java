@@ -0,0 +1,87 @@
+package biz.neustar.hopper.nio.handler;
+
+import java.lang.reflect.Method;
+import java.net.SocketOption;
+import java.net.StandardSocketOptions;
+import java.nio.channels.DatagramChannel;
+
+import org.jboss.netty.channel.ChannelHandlerContext;
+import org.jboss.netty.channel.ChannelStateEvent;
+import org.jboss.netty.channel.SimpleChannelDownstreamHandler;
+import org.jboss.netty.channel.socket.nio.NioDatagramChannel;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Netty handler setting SO_REUSEPORT on a datagram channel before it is
+ * bound, so that several channels can share a port and the kernel balances
+ * the incoming datagrams between them.
+ * <p>
+ * The option is only available from Java 9, and Netty does not expose it, so
+ * it is looked up and set reflectively; see {@link #isSupported()}.
+ */
+public class ReusePortHandler extends SimpleChannelDownstreamHandler {
+
+    /**
+     * The logger.
+     */
+    private static final Logger LOGGER =
+            LoggerFactory.getLogger(ReusePortHandler.class);
+
+    /**
+     * StandardSocketOptions.SO_REUSEPORT, or null if not available.
+     */
+    private static final SocketOption<Boolean> SO_REUSEPORT;
+
+    /**
+     * NioDatagramChannel.getDatagramChannel(), or null if not available.
+     */
+    private static final Method GET_DATAGRAM_CHANNEL;
+
+    static {
+        SocketOption<Boolean> option = null;
+        Method method = null;
+        try {
+            @SuppressWarnings("unchecked")
+            SocketOption<Boolean> reusePort = (SocketOption<Boolean>)
+                    StandardSocketOptions.class.getField("SO_REUSEPORT")
+                            .get(null);
+            method = NioDatagramChannel.class
+                    .getDeclaredMethod("getDatagramChannel");
+            method.setAccessible(true);
+            option = reusePort;
+        } catch (Exception e) {
+            LOGGER.debug("SO_REUSEPORT is not available", e);
+            method = null;
+        }
+        SO_REUSEPORT = option;
+        GET_DATAGRAM_CHANNEL = method;
+    }
+
+    /**
+     * @return true if SO_REUSEPORT can be set by this handler.
+     */
+    public static boolean isSupported() {
+        return SO_REUSEPORT != null;
+    }
+
+    @Override
+    public void bindRequested(final ChannelHandlerContext ctx,
+            final ChannelStateEvent e) throws Exception {
+        if (!isSupported()) {
+            e.getFuture().setFailure(new IllegalStateException(
+                    "SO_REUSEPORT is not supported"));
+            return;
+        }
+        try {
+            DatagramChannel channel = (DatagramChannel)
+                    GET_DATAGRAM_CHANNEL.invoke(e.getChannel());
+            channel.setOption(SO_REUSEPORT, true);
+        } catch (Exception ex) {
+            // fail the bind rather than leave it pending
+            e.getFuture().setFailure(ex);
+            return;
+        }
+        super.bindRequested(ctx, e);
+    }
+}
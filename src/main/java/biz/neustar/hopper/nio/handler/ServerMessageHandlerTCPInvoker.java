@@ -6,6 +6,8 @@ import org.jboss.netty.channel.MessageEvent;
 import org.jboss.netty.channel.SimpleChannelUpstreamHandler;
 
 import biz.neustar.hopper.message.Message;
+import biz.neustar.hopper.message.QueryView;
+import biz.neustar.hopper.nio.QueryViewServerMessageHandler;
 import biz.neustar.hopper.nio.ServerMessageHandler;
 
 /**
@@ -43,11 +45,16 @@ public class ServerMessageHandlerTCPInvoker extends SimpleChannelUpstreamHandler
             final MessageEvent e) throws Exception {
 
         Object request = e.getMessage();
+        Message response = null;
         if (request instanceof Message) {
-            Message response = handler.handleRequest((Message) request);
-            if (null != response) {
-                ctx.getChannel().write(response);
-            }
+            response = handler.handleRequest((Message) request);
+        } else if (request instanceof QueryView
+                && handler instanceof QueryViewServerMessageHandler) {
+            response = ((QueryViewServerMessageHandler) handler)
+                    .handleQuery((QueryView) request);
+        }
+        if (null != response) {
+            ctx.getChannel().write(response);
         }
         super.messageReceived(ctx, e);
     }
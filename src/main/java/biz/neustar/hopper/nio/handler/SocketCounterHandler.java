@@ -0,0 +1,54 @@
+package biz.neustar.hopper.nio.handler;
+
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.channel.ChannelHandlerContext;
+import org.jboss.netty.channel.MessageEvent;
+import org.jboss.netty.channel.SimpleChannelHandler;
+
+import biz.neustar.hopper.nio.SocketCounters;
+
+/**
+ * Netty handler counting the messages received and sent on a channel. It
+ * must be the first handler of the pipeline, so that it sees the raw buffers.
+ */
+public class SocketCounterHandler extends SimpleChannelHandler {
+
+    /**
+     * The counters for the channel.
+     */
+    private final SocketCounters counters;
+
+    /**
+     * The constructor.
+     *
+     * @param countersArg The counters to update.
+     */
+    public SocketCounterHandler(final SocketCounters countersArg) {
+        this.counters = countersArg;
+    }
+
+    /**
+     * @return The counters for the channel.
+     */
+    public SocketCounters getCounters() {
+        return counters;
+    }
+
+    @Override
+    public void messageReceived(final ChannelHandlerContext ctx,
+            final MessageEvent e) throws Exception {
+        if (e.getMessage() instanceof ChannelBuffer) {
+            counters.received(((ChannelBuffer) e.getMessage()).readableBytes());
+        }
+        super.messageReceived(ctx, e);
+    }
+
+    @Override
+    public void writeRequested(final ChannelHandlerContext ctx,
+            final MessageEvent e) throws Exception {
+        if (e.getMessage() instanceof ChannelBuffer) {
+            counters.sent(((ChannelBuffer) e.getMessage()).readableBytes());
+        }
+        super.writeRequested(ctx, e);
+    }
+}
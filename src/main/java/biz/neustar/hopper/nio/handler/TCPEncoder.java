@@ -1,17 +1,47 @@
 package biz.neustar.hopper.nio.handler;
 
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.channel.Channel;
+import org.jboss.netty.channel.ChannelHandlerContext;
 import org.jboss.netty.handler.codec.frame.LengthFieldPrepender;
 
+import biz.neustar.hopper.message.Message;
+
 /**
  * Encodes a TCP message. Adds the length header to the message, send the
  * message over the wire and then closes the connection.
+ * <p>
+ * A {@link Message} written to the pipeline is rendered directly after the
+ * length header in a single buffer, so no {@link DNSMessageEncoder} is needed
+ * in front of this encoder. Buffers that are already encoded get the length
+ * header prepended.
+ * </p>
  */
 public class TCPEncoder extends LengthFieldPrepender {
 
     private static final int LENGTH_BYTES = 2;
+
+    /**
+     * The size of the buffer to allocate for the next message, based on the
+     * size of the last one.
+     */
+    private volatile int sizeHint = DNSMessageEncoder.MIN_BUFFER_SIZE;
+
     public TCPEncoder() {
         super(LENGTH_BYTES);
     }
 
-}
+    @Override
+    protected Object encode(final ChannelHandlerContext ctx,
+            final Channel channel, final Object msg) throws Exception {
+        if (!(msg instanceof Message)) {
+            return super.encode(ctx, channel, msg);
+        }
+        ChannelBuffer buffer = DNSMessageEncoder.encode(
+                channel, (Message) msg, LENGTH_BYTES, sizeHint);
+        sizeHint = DNSMessageEncoder.nextSizeHint(
+                buffer.readableBytes() - LENGTH_BYTES);
+        return buffer;
+    }
 
+}
@@ -55,6 +55,10 @@ public class MXRecord extends U16NameBase {
         nameField.toWire(out, c, canonical);
     }
 
+    protected int[] compressedNameOffsets() {
+        return new int[] { 2 };
+    }
+
     public Name getAdditionalName() {
         return getNameField();
     }
@@ -43,6 +43,8 @@ public abstract class Record implements Cloneable, Comparable<Record>, Serializa
 
     private static final DecimalFormat byteFormat = new DecimalFormat();
 
+    private static final int[] NO_OFFSETS = new int[0];
+
     static {
         byteFormat.setMinimumIntegerDigits(3);
     }
@@ -616,6 +618,15 @@ public abstract class Record implements Cloneable, Comparable<Record>, Serializa
      */
     public abstract void rrToWire(DNSOutput out, Compression c, boolean canonical);
 
+    /**
+     * Returns the offsets, within the uncompressed rdata, of the names that
+     * rrToWire compresses, in increasing order. Types whose rdata contains
+     * compressed names must override this.
+     */
+    protected int[] compressedNameOffsets() {
+        return NO_OFFSETS;
+    }
+
     /**
      * Determines if two Records could be part of the same RRset. This compares
      * the name, type, and class of the Records; the ttl and rdata are not
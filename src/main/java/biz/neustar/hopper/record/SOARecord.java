@@ -163,4 +163,8 @@ public class SOARecord extends Record {
         out.writeU32(minimum);
     }
 
+    protected int[] compressedNameOffsets() {
+        return new int[] { 0, host.length() };
+    }
+
 }
@@ -0,0 +1,284 @@
+package biz.neustar.hopper.record;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+
+import biz.neustar.hopper.exception.WireParseException;
+import biz.neustar.hopper.message.Compression;
+import biz.neustar.hopper.message.DClass;
+import biz.neustar.hopper.message.DNSInput;
+import biz.neustar.hopper.message.DNSOutput;
+import biz.neustar.hopper.message.Name;
+import biz.neustar.hopper.message.Section;
+import biz.neustar.hopper.message.TTL;
+
+/**
+ * An immutable RRset held in wire format. The records are encoded once, when
+ * the set is created, and are written into responses by copying the encoded
+ * bytes; only the owner name and the names in the rdata that are subject to
+ * compression are rendered through the {@link Compression} table. This suits
+ * data that is read far more often than it changes, such as the RRsets of a
+ * static zone.
+ * <p>
+ * The records themselves are decoded on demand, each time they are asked for,
+ * so the Record objects returned may be modified without affecting the set.
+ *
+ * @see RRSet
+ */
+public final class WireRRSet {
+
+    private final Name name;
+    private final int type;
+    private final DClass dclass;
+    private final long ttl;
+    private final int size;
+
+    /*
+     * The type, class, ttl, rdata length and uncompressed rdata of each record,
+     * data records first, then signatures. Record i starts at starts[i].
+     */
+    private final byte[] data;
+    private final int[] starts;
+
+    /*
+     * The compressible names in the rdata and their positions in data; those
+     * of record i are at indices firstName[i] to firstName[i + 1].
+     */
+    private final Name[] names;
+    private final int[] nameOffsets;
+    private final int[] firstName;
+
+    /**
+     * Encodes the records and signatures of an RRset.
+     *
+     * @throws IllegalArgumentException
+     *             if the rrset is empty
+     */
+    public WireRRSet(RRSet rrset) {
+        List<Record> records = new ArrayList<Record>();
+        synchronized (rrset) {
+            addAll(records, rrset.rrs(false));
+            size = records.size();
+            addAll(records, rrset.sigs());
+        }
+        if (records.isEmpty()) {
+            throw new IllegalArgumentException("rrset is empty");
+        }
+        Record first = records.get(0);
+        name = first.getName();
+        type = first.getRRsetType();
+        dclass = first.getDClass();
+        ttl = first.getTTL();
+
+        int skip = name.length();
+        DNSOutput out = new DNSOutput();
+        List<Name> nameList = new ArrayList<Name>();
+        List<Integer> offsetList = new ArrayList<Integer>();
+        starts = new int[records.size() + 1];
+        firstName = new int[records.size() + 1];
+        for (int i = 0; i < records.size(); i++) {
+            Record record = records.get(i);
+            byte[] wire = record.toWire(Section.ANSWER);
+            starts[i] = out.current();
+            firstName[i] = nameList.size();
+            out.writeByteArray(wire, skip, wire.length - skip);
+            for (int offset : record.compressedNameOffsets()) {
+                nameList.add(readName(wire, skip + 10 + offset));
+                offsetList.add(starts[i] + 10 + offset);
+            }
+        }
+        starts[records.size()] = out.current();
+        firstName[records.size()] = nameList.size();
+        data = out.toByteArray();
+        names = nameList.toArray(new Name[nameList.size()]);
+        nameOffsets = new int[offsetList.size()];
+        for (int i = 0; i < nameOffsets.length; i++) {
+            nameOffsets[i] = offsetList.get(i);
+        }
+    }
+
+    private static void addAll(List<Record> list, Iterator<Record> it) {
+        while (it.hasNext()) {
+            list.add(it.next());
+        }
+    }
+
+    private static Name readName(byte[] wire, int position) {
+        DNSInput in = new DNSInput(wire);
+        in.jump(position);
+        try {
+            return new Name(in);
+        } catch (WireParseException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Returns the name of the records
+     *
+     * @see Name
+     */
+    public Name getName() {
+        return name;
+    }
+
+    /**
+     * Returns the type of the records
+     *
+     * @see biz.neustar.hopper.message.Type
+     */
+    public int getType() {
+        return type;
+    }
+
+    /**
+     * Returns the class of the records
+     *
+     * @see DClass
+     */
+    public DClass getDClass() {
+        return dclass;
+    }
+
+    /** Returns the ttl of the records */
+    public long getTTL() {
+        return ttl;
+    }
+
+    /** Returns the number of (data) records */
+    public int size() {
+        return size;
+    }
+
+    /** Returns the number of signature records */
+    public int sigCount() {
+        return starts.length - 1 - size;
+    }
+
+    /**
+     * Returns the length of all records and signatures in uncompressed wire
+     * format.
+     */
+    public int length() {
+        return data.length + (starts.length - 1) * name.length();
+    }
+
+    /**
+     * Converts the records and signatures to wire format, in the order they
+     * had in the original RRset, with the signatures last.
+     *
+     * @param out
+     *            The output.
+     * @param c
+     *            The compression table, or null to write uncompressed names.
+     */
+    public void toWire(DNSOutput out, Compression c) {
+        write(out, c, -1);
+    }
+
+    /**
+     * Converts the records and signatures to wire format, as
+     * {@link #toWire(DNSOutput, Compression)} does, but with the given TTL
+     * in place of the TTL of each record.
+     */
+    public void toWire(DNSOutput out, Compression c, long ttl) {
+        TTL.check(ttl);
+        write(out, c, ttl);
+    }
+
+    /* Writes each record, replacing its TTL unless ttl is negative. */
+    private void write(DNSOutput out, Compression c, long ttl) {
+        for (int i = 0; i < starts.length - 1; i++) {
+            int start = starts[i];
+            int end = starts[i + 1];
+            name.toWire(out, c);
+            if (ttl < 0) {
+                out.writeByteArray(data, start, 8);
+            } else {
+                out.writeByteArray(data, start, 4);
+                out.writeU32(ttl);
+            }
+            int first = firstName[i];
+            int last = firstName[i + 1];
+            if (c == null || first == last) {
+                out.writeByteArray(data, start + 8, end - start - 8);
+                continue;
+            }
+            int lengthPosition = out.current();
+            out.writeU16(0); /* until we know better */
+            int pos = start + 10;
+            for (int k = first; k < last; k++) {
+                out.writeByteArray(data, pos, nameOffsets[k] - pos);
+                names[k].toWire(out, c);
+                pos = nameOffsets[k] + names[k].length();
+            }
+            out.writeByteArray(data, pos, end - pos);
+            out.writeU16At(out.current() - lengthPosition - 2, lengthPosition);
+        }
+    }
+
+    /**
+     * Returns the first record.
+     */
+    public Record first() {
+        return record(0);
+    }
+
+    /**
+     * Returns an Iterator listing all (data) records, decoded from wire
+     * format.
+     */
+    public Iterator<Record> rrs() {
+        return records(0, size).iterator();
+    }
+
+    /**
+     * Returns an Iterator listing all signature records, decoded from wire
+     * format.
+     */
+    public Iterator<Record> sigs() {
+        return records(size, starts.length - 1).iterator();
+    }
+
+    /**
+     * Decodes the records and signatures into a new RRset.
+     */
+    public RRSet toRRSet() {
+        RRSet rrset = new RRSet();
+        for (Record record : records(0, starts.length - 1)) {
+            rrset.addRR(record);
+        }
+        return rrset;
+    }
+
+    private List<Record> records(int from, int to) {
+        List<Record> list = new ArrayList<Record>(to - from);
+        for (int i = from; i < to; i++) {
+            list.add(record(i));
+        }
+        return list;
+    }
+
+    private Record record(int i) {
+        DNSInput in = new DNSInput(data);
+        in.jump(starts[i]);
+        try {
+            int recordType = in.readU16();
+            int recordClass = in.readU16();
+            long recordTtl = in.readU32();
+            int length = in.readU16();
+            return Record.newRecord(name, recordType,
+                    DClass.valueOf(recordClass), recordTtl, length,
+                    in.readByteArray(length));
+        } catch (WireParseException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /** Converts the RRset to a String */
+    @Override
+    public String toString() {
+        return toRRSet().toString();
+    }
+}
@@ -30,4 +30,8 @@ public abstract class SingleCompressedNameBase extends SingleNameBase {
         singleName.toWire(out, c, canonical);
     }
 
+    protected int[] compressedNameOffsets() {
+        return new int[] { 0 };
+    }
+
 }
@@ -2,23 +2,42 @@
 
 package biz.neustar.hopper.resolver;
 
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashSet;
 import java.util.Iterator;
-import java.util.LinkedHashMap;
-import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.jboss.netty.util.Timeout;
+import org.jboss.netty.util.Timer;
+import org.jboss.netty.util.TimerTask;
 
 import biz.neustar.hopper.config.Options;
 import biz.neustar.hopper.exception.NameTooLongException;
+import biz.neustar.hopper.exception.WireParseException;
 import biz.neustar.hopper.message.DClass;
+import biz.neustar.hopper.message.DNSInput;
+import biz.neustar.hopper.message.DNSOutput;
 import biz.neustar.hopper.message.Flag;
 import biz.neustar.hopper.message.Message;
 import biz.neustar.hopper.message.Name;
 import biz.neustar.hopper.message.Rcode;
 import biz.neustar.hopper.message.Section;
+import biz.neustar.hopper.message.TTL;
 import biz.neustar.hopper.message.Type;
 import biz.neustar.hopper.record.CNAMERecord;
 import biz.neustar.hopper.record.DNAMERecord;
@@ -33,6 +52,10 @@ import biz.neustar.hopper.util.Master;
  * failed DNS queries. The credibility of each RRset is maintained, so that more
  * credible records replace less credible records, and lookups can specify the
  * minimum credibility of data they are requesting.
+ * <p>
+ * A Cache may be shared by many threads. Lookups take no locks, and the
+ * entries are evicted in approximately least recently used order once the
+ * maximum number of entries is reached.
  * 
  * @see RRSet
  * @see Credibility
@@ -48,8 +71,24 @@ public class Cache {
         public int compareCredibility(int cred);
 
         public int getType();
+
+        public int getExpire();
+
+        public int getSize();
+
+        public int getStaleUntil();
+
+        public void setStaleUntil(int time);
     }
 
+    /*
+     * Rough costs, in bytes, of the objects holding a cached name, an RRset
+     * or negative entry, and a record, beyond the wire format data.
+     */
+    private static final int ENTRY_OVERHEAD = 128;
+    private static final int ELEMENT_OVERHEAD = 64;
+    private static final int RECORD_OVERHEAD = 48;
+
     private static int limitExpire(long ttl, long maxttl) {
         if (maxttl >= 0 && maxttl < ttl) {
             ttl = maxttl;
@@ -65,19 +104,63 @@ public class Cache {
         private static final long serialVersionUID = 5971755205903597024L;
 
         int credibility;
+        int created;
         int expire;
+        int size;
+
+        /* The number of lookups that returned this RRset; approximate. */
+        volatile int hits;
+
+        /* The time until which lookups are answered from it once expired. */
+        volatile int staleUntil;
 
         public CacheRRset(Record rec, int cred, long maxttl) {
             super();
             this.credibility = cred;
+            this.created = (int) (System.currentTimeMillis() / 1000);
             this.expire = limitExpire(rec.getTTL(), maxttl);
             addRR(rec);
+            this.size = sizeOf(this);
         }
 
         public CacheRRset(RRSet rrset, int cred, long maxttl) {
             super(rrset);
             this.credibility = cred;
+            this.created = (int) (System.currentTimeMillis() / 1000);
             this.expire = limitExpire(rrset.getTTL(), maxttl);
+            this.size = sizeOf(this);
+        }
+
+        /* Restores an RRset from a snapshot. */
+        public CacheRRset(RRSet rrset, int cred, int created, int expire) {
+            super(rrset);
+            this.credibility = cred;
+            this.created = created;
+            this.expire = expire;
+            this.size = sizeOf(this);
+        }
+
+        /* Copies crrset and adds a record to the copy. */
+        public CacheRRset(CacheRRset crrset, Record rec) {
+            super(crrset);
+            this.credibility = crrset.credibility;
+            this.created = crrset.created;
+            this.expire = crrset.expire;
+            this.hits = crrset.hits;
+            addRR(rec);
+            this.size = sizeOf(this);
+        }
+
+        private static int sizeOf(RRSet rrset) {
+            DNSOutput out = new DNSOutput();
+            int records = 0;
+            for (Iterator<Record> it = rrset.rrs(false); it.hasNext(); records++) {
+                it.next().rrToWire(out, null, false);
+            }
+            for (Iterator<Record> it = rrset.sigs(); it.hasNext(); records++) {
+                it.next().rrToWire(out, null, false);
+            }
+            return ELEMENT_OVERHEAD + records * RECORD_OVERHEAD + out.current();
         }
 
         public final boolean expired() {
@@ -85,6 +168,22 @@ public class Cache {
             return (now >= expire);
         }
 
+        public final int getExpire() {
+            return expire;
+        }
+
+        public final int getSize() {
+            return size;
+        }
+
+        public final int getStaleUntil() {
+            return staleUntil;
+        }
+
+        public final void setStaleUntil(int time) {
+            staleUntil = time;
+        }
+
         public final int compareCredibility(int cred) {
             return credibility - cred;
         }
@@ -103,6 +202,7 @@ public class Cache {
         Name name;
         int credibility;
         int expire;
+        volatile int staleUntil;
 
         public NegativeElement(Name name, int type, SOARecord soa, int cred,
                 long maxttl) {
@@ -116,6 +216,14 @@ public class Cache {
             this.expire = limitExpire(cttl, maxttl);
         }
 
+        /* Restores a negative entry from a snapshot. */
+        public NegativeElement(Name name, int type, int cred, int expire) {
+            this.name = name;
+            this.type = type;
+            this.credibility = cred;
+            this.expire = expire;
+        }
+
         public int getType() {
             return type;
         }
@@ -125,6 +233,22 @@ public class Cache {
             return (now >= expire);
         }
 
+        public final int getExpire() {
+            return expire;
+        }
+
+        public final int getSize() {
+            return ELEMENT_OVERHEAD;
+        }
+
+        public final int getStaleUntil() {
+            return staleUntil;
+        }
+
+        public final void setStaleUntil(int time) {
+            staleUntil = time;
+        }
+
         public final int compareCredibility(int cred) {
             return credibility - cred;
         }
@@ -142,39 +266,225 @@ public class Cache {
         }
     }
 
-    private static class CacheMap extends LinkedHashMap<Name, Object> {
-		private static final long serialVersionUID = 7432563408722065412L;
-		private int maxsize = -1;
+    /*
+     * The elements cached for a name. The array is never modified: an update
+     * replaces the whole entry, so lookups need no locking.
+     */
+    private static final class NameEntry {
+        final Element[] elements;
+        final int size;
+
+        /* Set by lookups, cleared as the eviction clock hand passes. */
+        volatile boolean referenced;
+
+        /* The reference to the name on the expiry wheel, if it is running. */
+        volatile Expiry expiry;
+
+        NameEntry(Name name, Element[] elements) {
+            this.elements = elements;
+            int total = ENTRY_OVERHEAD + name.length();
+            for (int i = 0; i < elements.length; i++) {
+                total += elements[i].getSize();
+            }
+            this.size = total;
+        }
+    }
+
+    /*
+     * A slot of the expiry wheel, holding a list of references linked
+     * through the references themselves, so that one can be dropped as soon
+     * as its name is evicted or updated. The slot is the lock for its list.
+     */
+    private static final class Slot {
+        Expiry head;
+    }
 
-        CacheMap(int maxsize) {
-            super(16, (float) 0.75, true);
-            this.maxsize = maxsize;
+    /*
+     * A reference from a slot of the expiry wheel to a name with an element
+     * to be removed at the given time. Each entry holds at most one, for its
+     * earliest such time, and drops it when it is replaced or removed.
+     */
+    private static final class Expiry {
+        final Name name;
+        final int expire;
+        final Slot slot;
+
+        /* Guarded by slot. */
+        Expiry prev;
+        Expiry next;
+        boolean linked;
+        boolean cancelled;
+
+        Expiry(Name name, int expire, Slot slot) {
+            this.name = name;
+            this.expire = expire;
+            this.slot = slot;
         }
+    }
+
+    private static final class QueryKey {
+        final Name name;
+        final int type;
 
-        int getMaxSize() {
-            return maxsize;
+        QueryKey(Name name, int type) {
+            this.name = name;
+            this.type = type;
         }
 
-        void setMaxSize(int maxsize) {
-            /*
-             * Note that this doesn't shrink the size of the map if the maximum
-             * size is lowered, but it should shrink as entries expire.
-             */
-            this.maxsize = maxsize;
+        @Override
+        public int hashCode() {
+            return 31 * name.hashCode() + type;
         }
 
-        protected boolean removeEldestEntry(Map.Entry<Name, Object> eldest) {
-            return maxsize >= 0 && size() > maxsize;
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof QueryKey)) {
+                return false;
+            }
+            QueryKey other = (QueryKey) o;
+            return type == other.type && name.equals(other.name);
         }
     }
 
-    private CacheMap data;
+    /*
+     * A query sent upstream, either for a lookup that missed or to refresh
+     * an RRset in the background, whose response other lookups for the same name and type
+     * wait for rather than sending their own query.
+     */
+    private final class Pending implements ResolverListener {
+        private final QueryKey key;
+        private final Message query;
+        private final CountDownLatch done = new CountDownLatch(1);
+        private Message response;
+        private IOException error;
+
+        Pending(QueryKey key, Message query) {
+            this.key = key;
+            this.query = query;
+        }
+
+        /*
+         * Completes the query. The waiting lookups get copies of a copy of
+         * the response, whose sections are all decoded already.
+         */
+        void complete(Message m, IOException e) {
+            response = (m != null) ? (Message) m.clone() : null;
+            error = e;
+            pending.remove(key, this);
+            done.countDown();
+        }
+
+        /*
+         * Waits for the response, returning a copy of it. If it does not
+         * come in time, the query is forgotten, so that the next lookup
+         * sends another.
+         */
+        Message await() throws IOException {
+            try {
+                if (!done.await(pendingTimeout, TimeUnit.MILLISECONDS)) {
+                    pending.remove(key, this);
+                    throw new InterruptedIOException("timed out");
+                }
+            } catch (InterruptedException e) {
+                throw new InterruptedIOException("interrupted");
+            }
+            if (error != null) {
+                throw error;
+            }
+            return (Message) response.clone();
+        }
+
+        /*
+         * Called when a background query completes. The response is cached
+         * only if it answers the question asked, as Lookup checks; waiting
+         * lookups check it themselves.
+         */
+        public void receiveMessage(Object id, Message m) {
+            try {
+                if (query.getQuestion().equals(m.getQuestion())) {
+                    addMessage(m);
+                }
+            } finally {
+                complete(m, null);
+            }
+        }
+
+        public void handleException(Object id, Exception e) {
+            complete(null, e instanceof IOException ? (IOException) e
+                    : new IOException(e));
+        }
+    }
+
+    private final ConcurrentHashMap<Name, NameEntry> data =
+            new ConcurrentHashMap<Name, NameEntry>();
+    private volatile int maxEntries = defaultMaxEntries;
+    private volatile long maxBytes = -1;
+    private final AtomicLong bytes = new AtomicLong();
+    private final AtomicLong evictions = new AtomicLong();
+    private final AtomicLong expirations = new AtomicLong();
     private int maxncache = -1;
     private int maxcache = -1;
     private DClass dclass;
 
+    /* The eviction clock hand, a cursor over data. */
+    private final ReentrantLock evictionLock = new ReentrantLock();
+    private Iterator<Map.Entry<Name, NameEntry>> hand;
+
+    /*
+     * The expiry wheel: slot i holds the names with an element to be removed
+     * at a time t with t % WHEEL_SLOTS == i. Each slot is swept once a
+     * second, while the sweep is running, and references to times in later
+     * turns of the wheel are left for then.
+     */
+    private static final int WHEEL_SLOTS = 4096;
+    private volatile Slot[] wheel;
+    private final AtomicInteger wheelSize = new AtomicInteger();
+    private int lastSweep;
+    private Timer sweepTimer;
+    private Timeout sweepTimeout;
+
+    /* Queries outstanding upstream, by name and type. */
+    private final ConcurrentHashMap<QueryKey, Pending> pending =
+            new ConcurrentHashMap<QueryKey, Pending>();
+    private volatile boolean coalesceMisses;
+    private volatile Resolver prefetchResolver;
+    private volatile int prefetchPercent;
+    private volatile int prefetchHits;
+    private final AtomicLong prefetches = new AtomicLong();
+    private volatile long pendingTimeout = PENDING_TIMEOUT;
+
+    /*
+     * How long expired elements are kept to answer lookups when the upstream
+     * servers cannot be reached, in seconds, and the TTL of such answers.
+     */
+    private volatile int maxStale;
+    private volatile int staleTtl = DEFAULT_STALE_TTL;
+
     private static final int defaultMaxEntries = 50000;
 
+    /*
+     * The longest time a lookup waits for the response to a query sent for
+     * another, in milliseconds, in case an asynchronous resolver never calls
+     * back.
+     */
+    private static final long PENDING_TIMEOUT = 60 * 1000;
+
+    /*
+     * The TTL of stale answers, and the time for which expired elements keep
+     * answering lookups once they have been served stale, before the next
+     * lookup tries upstream again, in seconds; both as RFC 8767 suggests.
+     */
+    private static final int DEFAULT_STALE_TTL = 30;
+    private static final int STALE_RECHECK = 30;
+
+    private static final Element[] NO_ELEMENTS = new Element[0];
+
+    /* The header of a snapshot, "HCSH", and the tags of its entries. */
+    private static final int SNAPSHOT_MAGIC = 0x48435348;
+    private static final int SNAPSHOT_VERSION = 1;
+    private static final int SNAPSHOT_RRSET = 1;
+    private static final int SNAPSHOT_NEGATIVE = 2;
+
     /**
      * Creates an empty Cache
      * 
@@ -184,7 +494,6 @@ public class Cache {
      */
     public Cache(DClass dclass2) {
         this.dclass = dclass2;
-        data = new CacheMap(defaultMaxEntries);
     }
 
     /**
@@ -201,7 +510,7 @@ public class Cache {
      * file.
      */
     public Cache(String file) throws IOException {
-        data = new CacheMap(defaultMaxEntries);
+        this();
         Master m = new Master(file);
         Record record;
         while ((record = m.nextRecord()) != null) {
@@ -209,126 +518,498 @@ public class Cache {
         }
     }
 
-    private synchronized Object exactName(Name name) {
-        return data.get(name);
+    private Element[] exactName(Name name) {
+        NameEntry entry = data.get(name);
+        if (entry == null) {
+            return null;
+        }
+        if (!entry.referenced) {
+            entry.referenced = true;
+        }
+        return entry.elements;
     }
 
-    private synchronized void removeName(Name name) {
-        data.remove(name);
+    private void removeName(Name name) {
+        NameEntry entry = data.remove(name);
+        if (entry != null) {
+            bytes.addAndGet(-entry.size);
+            unlink(entry.expiry);
+        }
     }
 
-    private synchronized Element[] allElements(Object types) {
-        if (types instanceof List) {
-            List<Element> typelist = (List<Element>) types;
-            return typelist.toArray(new Element[0]);
-        } else {
-            Element set = (Element) types;
-            return new Element[] { set };
+    /*
+     * Checks whether element may answer a lookup. It must be credible enough,
+     * and unexpired unless it is within the stale window and either this is
+     * a stale lookup or it was served stale recently. Elements past the stale
+     * window are removed.
+     */
+    private boolean usable(Name name, Element element, int minCred,
+            boolean stale) {
+        if (element.expired()) {
+            int now = (int) (System.currentTimeMillis() / 1000);
+            if ((long) element.getExpire() + maxStale <= now) {
+                removeExpired(name, element);
+                return false;
+            }
+            if (element.compareCredibility(minCred) < 0) {
+                return false;
+            }
+            if (stale) {
+                element.setStaleUntil(now + STALE_RECHECK);
+                return true;
+            }
+            return now < element.getStaleUntil();
         }
+        return element.compareCredibility(minCred) >= 0;
     }
 
-    private synchronized Element oneElement(Name name, Object types, int type,
-            int minCred) {
+    private Element oneElement(Name name, Element[] elements, int type,
+            int minCred, boolean stale) {
         Element found = null;
 
         if (type == Type.ANY) {
             throw new IllegalArgumentException("oneElement(ANY)");
         }
-        if (types instanceof List) {
-            List<Element> list = (List<Element>) types;
-            for (int i = 0; i < list.size(); i++) {
-                Element set = list.get(i);
-                if (set.getType() == type) {
-                    found = set;
-                    break;
+        for (int i = 0; i < elements.length; i++) {
+            if (elements[i].getType() == type) {
+                found = elements[i];
+                break;
+            }
+        }
+        if (found == null || !usable(name, found, minCred, stale)) {
+            return null;
+        }
+        return found;
+    }
+
+    private static int indexOf(Element[] elements, int type) {
+        for (int i = 0; i < elements.length; i++) {
+            if (elements[i].getType() == type) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /*
+     * Stores element as the entry of its type for name, or removes the entry
+     * of the given type if element is null, unless the entry present is
+     * unexpired and more credible than cred. The check and the update are
+     * atomic.
+     */
+    private void storeElement(Name name, int type, Element element, int cred) {
+        storeElement(name, type, element, cred, null);
+    }
+
+    /*
+     * Stores element as storeElement(name, type, element, cred) does, unless
+     * append is set and the entry present is an unexpired RRset of the same
+     * credibility: then a copy of that RRset with the record added is stored
+     * instead, as part of the same atomic update.
+     */
+    private void storeElement(Name name, int type, Element element, int cred,
+            Record append) {
+        while (true) {
+            NameEntry entry = data.get(name);
+            if (entry == null) {
+                if (element == null) {
+                    return;
+                }
+                NameEntry added = newEntry(name, new Element[] { element },
+                        null);
+                if (data.putIfAbsent(name, added) == null) {
+                    bytes.addAndGet(added.size);
+                    link(added.expiry);
+                    evict();
+                    return;
                 }
+                continue;
             }
-        } else {
-            Element set = (Element) types;
-            if (set.getType() == type) {
-                found = set;
+            Element[] elements = entry.elements;
+            int i = indexOf(elements, type);
+            Element[] updated;
+            if (i >= 0) {
+                Element old = elements[i];
+                Element stored = element;
+                if (!old.expired()) {
+                    int compare = old.compareCredibility(cred);
+                    if (compare > 0) {
+                        return;
+                    }
+                    if (compare == 0 && append != null) {
+                        if (!(old instanceof CacheRRset)) {
+                            return;
+                        }
+                        stored = new CacheRRset((CacheRRset) old, append);
+                    }
+                }
+                if (stored != null) {
+                    updated = elements.clone();
+                    updated[i] = stored;
+                } else {
+                    updated = without(elements, i);
+                }
+            } else if (element != null) {
+                updated = Arrays.copyOf(elements, elements.length + 1);
+                updated[elements.length] = element;
+            } else {
+                return;
+            }
+            if (replace(name, entry, updated)) {
+                if (updated.length >= elements.length) {
+                    evict();
+                }
+                return;
             }
         }
-        if (found == null) {
-            return null;
+    }
+
+    /*
+     * Replaces the entry of name by the given elements, or removes it if
+     * there are none, provided it has not changed.
+     */
+    private boolean replace(Name name, NameEntry entry, Element[] elements) {
+        if (elements.length == 0) {
+            return remove(name, entry);
         }
-        if (found.expired()) {
-            removeElement(name, type);
-            return null;
+        NameEntry replacement = newEntry(name, elements, entry);
+        replacement.referenced = entry.referenced;
+        if (!data.replace(name, entry, replacement)) {
+            return false;
         }
-        if (found.compareCredibility(minCred) < 0) {
-            return null;
+        bytes.addAndGet(replacement.size - entry.size);
+        if (replacement.expiry != entry.expiry) {
+            link(replacement.expiry);
+            unlink(entry.expiry);
         }
-        return found;
+        return true;
     }
 
-    private synchronized Element findElement(Name name, int type, int minCred) {
-        Object types = exactName(name);
-        if (types == null) {
-            return null;
+    private boolean remove(Name name, NameEntry entry) {
+        if (!data.remove(name, entry)) {
+            return false;
         }
-        return oneElement(name, types, type, minCred);
+        bytes.addAndGet(-entry.size);
+        unlink(entry.expiry);
+        return true;
     }
 
-    private synchronized void addElement(Name name, Element element) {
-        Object types = data.get(name);
-        if (types == null) {
-            data.put(name, element);
-            return;
+    /*
+     * Creates the entry holding elements for name, with a reference on the
+     * expiry wheel, if it is running, for the earliest time one of them is
+     * to be removed. The reference of the previous entry is kept if the time
+     * is the same. The caller links the reference once the entry is stored.
+     */
+    private NameEntry newEntry(Name name, Element[] elements,
+            NameEntry previous) {
+        NameEntry entry = new NameEntry(name, elements);
+        Slot[] slots = wheel;
+        if (slots != null) {
+            int time = removalTime(elements);
+            Slot slot = slots[time % WHEEL_SLOTS];
+            Expiry kept = (previous != null) ? previous.expiry : null;
+            if (kept != null && kept.expire == time && kept.slot == slot) {
+                entry.expiry = kept;
+            } else {
+                entry.expiry = new Expiry(name, time, slot);
+            }
         }
-        int type = element.getType();
-        if (types instanceof List) {
-            List<Element> list = (List<Element>) types;
-            for (int i = 0; i < list.size(); i++) {
-                Element elt = list.get(i);
-                if (elt.getType() == type) {
-                    list.set(i, element);
-                    return;
+        return entry;
+    }
+
+    /*
+     * Returns the earliest time one of elements is to be removed: when it
+     * expires and the stale window has passed.
+     */
+    private int removalTime(Element[] elements) {
+        long earliest = Integer.MAX_VALUE;
+        for (int i = 0; i < elements.length; i++) {
+            earliest = Math.min(earliest,
+                    (long) elements[i].getExpire() + maxStale);
+        }
+        return (int) earliest;
+    }
+
+    private static Element[] without(Element[] elements, int i) {
+        if (elements.length == 1) {
+            return NO_ELEMENTS;
+        }
+        Element[] updated = new Element[elements.length - 1];
+        System.arraycopy(elements, 0, updated, 0, i);
+        System.arraycopy(elements, i + 1, updated, i, updated.length - i);
+        return updated;
+    }
+
+    /*
+     * Removes the entry of the given type for name, unless it is unexpired
+     * and more credible than cred.
+     */
+    private void removeElement(Name name, int type, int cred) {
+        storeElement(name, type, null, cred);
+    }
+
+    /* Removes an expired element, if it is still cached for name. */
+    private void removeExpired(Name name, Element element) {
+        while (true) {
+            NameEntry entry = data.get(name);
+            if (entry == null) {
+                return;
+            }
+            int i = indexOf(entry.elements, element.getType());
+            if (i < 0 || entry.elements[i] != element) {
+                return;
+            }
+            if (replace(name, entry, without(entry.elements, i))) {
+                expirations.incrementAndGet();
+                return;
+            }
+        }
+    }
+
+    /*
+     * Removes the elements of the name of a reference taken off the wheel
+     * that are to be removed by now, if the reference is still that of the
+     * entry of the name, which then gets a reference for its next removal.
+     */
+    private void expire(Expiry expiry, int now) {
+        while (true) {
+            NameEntry entry = data.get(expiry.name);
+            if (entry == null || entry.expiry != expiry) {
+                return;
+            }
+            Element[] elements = entry.elements;
+            Element[] updated = new Element[elements.length];
+            int kept = 0;
+            for (int i = 0; i < elements.length; i++) {
+                if ((long) elements[i].getExpire() + maxStale > now) {
+                    updated[kept++] = elements[i];
                 }
             }
-            list.add(element);
-        } else {
-            Element elt = (Element) types;
-            if (elt.getType() == type) {
-                data.put(name, element);
-            } else {
-                LinkedList<Element> list = new LinkedList<Element>();
-                list.add(elt);
-                list.add(element);
-                data.put(name, list);
+            if (replace(expiry.name, entry, Arrays.copyOf(updated, kept))) {
+                expirations.addAndGet(elements.length - kept);
+                return;
             }
         }
     }
 
-    private synchronized void removeElement(Name name, int type) {
-        Object types = data.get(name);
-        if (types == null) {
+    /*
+     * Evicts names until the cache is within its limit. The clock hand sweeps
+     * over the names, evicting those not looked up since it last passed and
+     * clearing the referenced bit of the others, which approximates least
+     * recently used order without any bookkeeping on lookups. Only one thread
+     * evicts at a time; the others carry on adding.
+     */
+    private void evict() {
+        if (!overLimit() || !evictionLock.tryLock()) {
             return;
         }
-        if (types instanceof List) {
-            List<Element> list = (List<Element>) types;
-            for (int i = 0; i < list.size(); i++) {
-                Element elt = list.get(i);
-                if (elt.getType() == type) {
-                    list.remove(i);
-                    if (list.size() == 0) {
-                        data.remove(name);
+        try {
+            while (overLimit()) {
+                if (hand == null || !hand.hasNext()) {
+                    hand = data.entrySet().iterator();
+                    if (!hand.hasNext()) {
+                        return;
                     }
-                    return;
+                }
+                Map.Entry<Name, NameEntry> next = hand.next();
+                NameEntry entry = next.getValue();
+                if (entry.referenced) {
+                    entry.referenced = false;
+                } else if (remove(next.getKey(), entry)) {
+                    evictions.incrementAndGet();
                 }
             }
-        } else {
-            Element elt = (Element) types;
-            if (elt.getType() != type) {
+        } finally {
+            evictionLock.unlock();
+        }
+    }
+
+    private boolean overLimit() {
+        int max = maxEntries;
+        if (max >= 0 && data.size() > max) {
+            return true;
+        }
+        long budget = maxBytes;
+        return budget >= 0 && bytes.get() > budget;
+    }
+
+    /* Adds a reference to the wheel, unless it has been dropped already. */
+    private void link(Expiry expiry) {
+        if (expiry == null) {
+            return;
+        }
+        Slot slot = expiry.slot;
+        synchronized (slot) {
+            if (expiry.linked || expiry.cancelled) {
+                return;
+            }
+            expiry.linked = true;
+            expiry.next = slot.head;
+            if (slot.head != null) {
+                slot.head.prev = expiry;
+            }
+            slot.head = expiry;
+        }
+        wheelSize.incrementAndGet();
+    }
+
+    /* Drops a reference from the wheel, or before it is added. */
+    private void unlink(Expiry expiry) {
+        if (expiry == null) {
+            return;
+        }
+        Slot slot = expiry.slot;
+        synchronized (slot) {
+            expiry.cancelled = true;
+            if (!expiry.linked) {
                 return;
             }
-            data.remove(name);
+            unlinkLocked(slot, expiry);
+        }
+        wheelSize.decrementAndGet();
+    }
+
+    private static void unlinkLocked(Slot slot, Expiry expiry) {
+        if (expiry.prev != null) {
+            expiry.prev.next = expiry.next;
+        } else {
+            slot.head = expiry.next;
+        }
+        if (expiry.next != null) {
+            expiry.next.prev = expiry.prev;
+        }
+        expiry.prev = null;
+        expiry.next = null;
+        expiry.linked = false;
+    }
+
+    /*
+     * Sweeps the slots of the wheel for the times since the last sweep,
+     * removing the elements that have expired, and whose stale window has
+     * passed.
+     */
+    private synchronized void sweep() {
+        Slot[] slots = wheel;
+        if (slots == null) {
+            return;
+        }
+        int now = (int) (System.currentTimeMillis() / 1000);
+        int from = Math.max(lastSweep + 1, now - WHEEL_SLOTS + 1);
+        List<Expiry> due = new ArrayList<Expiry>();
+        for (int t = from; t <= now; t++) {
+            Slot slot = slots[t % WHEEL_SLOTS];
+            synchronized (slot) {
+                Expiry next;
+                for (Expiry expiry = slot.head; expiry != null; expiry = next) {
+                    next = expiry.next;
+                    if (expiry.expire <= now) {
+                        unlinkLocked(slot, expiry);
+                        expiry.cancelled = true;
+                        due.add(expiry);
+                    }
+                }
+            }
+            wheelSize.addAndGet(-due.size());
+            for (Expiry expiry : due) {
+                expire(expiry, now);
+            }
+            due.clear();
+        }
+        lastSweep = now;
+    }
+
+    /* The number of references on the expiry wheel; for tests. */
+    int getWheelSize() {
+        return wheelSize.get();
+    }
+
+    /*
+     * Counts a hit on crrset and, if prefetching is enabled, the RRset is
+     * popular enough and close enough to expiring, queries for it again in
+     * the background.
+     */
+    private void prefetch(Name name, CacheRRset crrset) {
+        Resolver resolver = prefetchResolver;
+        if (resolver == null) {
+            return;
+        }
+        int hits = ++crrset.hits;
+        if (hits <= prefetchHits) {
+            return;
+        }
+        int now = (int) (System.currentTimeMillis() / 1000);
+        long lifetime = (long) crrset.expire - crrset.created;
+        if (((long) crrset.expire - now) * 100 > lifetime * prefetchPercent) {
+            return;
+        }
+        if (refresh(resolver, name, crrset.getType())) {
+            prefetches.incrementAndGet();
+        }
+    }
+
+    /*
+     * Queries for name and type in the background, adding the response to
+     * the cache, unless a query for them is outstanding already. Returns
+     * whether a query was sent.
+     */
+    boolean refresh(Resolver resolver, Name name, int type) {
+        QueryKey key = new QueryKey(name, type);
+        Message query = Message.newQuery(Record.newRecord(name, type, dclass));
+        Pending p = new Pending(key, query);
+        if (pending.putIfAbsent(key, p) != null) {
+            return false;
+        }
+        try {
+            resolver.sendAsync(query, p);
+        } catch (RuntimeException e) {
+            p.handleException(null, e);
+            return false;
+        }
+        return true;
+    }
+
+    /* Sets how long lookups wait for a query sent for another; for tests. */
+    void setPendingTimeout(long millis) {
+        pendingTimeout = millis;
+    }
+
+    /*
+     * Sends a query for a lookup that missed. If misses are coalesced and a
+     * query for the same name and type is outstanding, waits for its
+     * response instead of sending another.
+     */
+    Message send(Resolver resolver, Message query) throws IOException {
+        if (!coalesceMisses) {
+            return resolver.send(query);
+        }
+        Record question = query.getQuestion();
+        QueryKey key = new QueryKey(question.getName(), question.getType());
+        Pending p = new Pending(key, query);
+        Pending outstanding = pending.putIfAbsent(key, p);
+        if (outstanding != null) {
+            return outstanding.await();
+        }
+        Message response = null;
+        IOException error = null;
+        try {
+            response = resolver.send(query);
+            return response;
+        } catch (IOException e) {
+            error = e;
+            throw e;
+        } finally {
+            if (response == null && error == null) {
+                error = new IOException("query failed");
+            }
+            p.complete(response, error);
         }
     }
 
     /** Empties the Cache. */
-    public synchronized void clearCache() {
-        data.clear();
+    public void clearCache() {
+        for (Name name : data.keySet()) {
+            removeName(name);
+        }
     }
 
     /**
@@ -343,22 +1024,17 @@ public class Cache {
      *            example)
      * @see Record
      */
-    public synchronized void addRecord(Record r, int cred, Object o) {
+    public void addRecord(Record r, int cred, Object o) {
         Name name = r.getName();
         int type = r.getRRsetType();
         if (!Type.isRR(type)) {
             return;
         }
-        Element element = findElement(name, type, cred);
-        if (element == null) {
-            CacheRRset crrset = new CacheRRset(r, cred, maxcache);
-            addRRset(crrset, cred);
-        } else if (element.compareCredibility(cred) == 0) {
-            if (element instanceof CacheRRset) {
-                CacheRRset crrset = (CacheRRset) element;
-                crrset.addRR(r);
-            }
+        CacheRRset crrset = null;
+        if (r.getTTL() != 0) {
+            crrset = new CacheRRset(r, cred, maxcache);
         }
+        storeElement(name, type, crrset, cred, r);
     }
 
     /**
@@ -370,28 +1046,20 @@ public class Cache {
      *            The credibility of these records
      * @see RRSet
      */
-    public synchronized void addRRset(RRSet rrset, int cred) {
+    public void addRRset(RRSet rrset, int cred) {
         long ttl = rrset.getTTL();
         Name name = rrset.getName();
         int type = rrset.getType();
-        Element element = findElement(name, type, 0);
         if (ttl == 0) {
-            if (element != null && element.compareCredibility(cred) <= 0) {
-                removeElement(name, type);
-            }
+            removeElement(name, type, cred);
         } else {
-            if (element != null && element.compareCredibility(cred) <= 0) {
-                element = null;
-            }
-            if (element == null) {
-                CacheRRset crrset;
-                if (rrset instanceof CacheRRset) {
-                    crrset = (CacheRRset) rrset;
-                } else {
-                    crrset = new CacheRRset(rrset, cred, maxcache);
-                }
-                addElement(name, crrset);
+            CacheRRset crrset;
+            if (rrset instanceof CacheRRset) {
+                crrset = (CacheRRset) rrset;
+            } else {
+                crrset = new CacheRRset(rrset, cred, maxcache);
             }
+            storeElement(name, type, crrset, cred);
         }
     }
 
@@ -408,36 +1076,58 @@ public class Cache {
      * @param cred
      *            The credibility of the negative entry
      */
-    public synchronized void addNegative(Name name, int type, SOARecord soa,
-            int cred) {
+    public void addNegative(Name name, int type, SOARecord soa, int cred) {
         long ttl = 0;
         if (soa != null) {
             ttl = soa.getTTL();
         }
-        Element element = findElement(name, type, 0);
         if (ttl == 0) {
-            if (element != null && element.compareCredibility(cred) <= 0) {
-                removeElement(name, type);
-            }
+            removeElement(name, type, cred);
         } else {
-            if (element != null && element.compareCredibility(cred) <= 0) {
-                element = null;
-            }
-            if (element == null)
-                addElement(name, new NegativeElement(name, type, soa, cred,
-                        maxncache));
+            storeElement(name, type, new NegativeElement(name, type, soa, cred,
+                    maxncache), cred);
+        }
+    }
+
+    /*
+     * Returns crrset if it is unexpired, or else a copy of it with the TTL of
+     * stale answers, leaving the cached records unchanged.
+     */
+    private RRSet served(CacheRRset crrset) {
+        if (!crrset.expired()) {
+            return crrset;
+        }
+        RRSet copy = new RRSet();
+        long ttl = staleTtl;
+        for (Iterator<Record> it = crrset.rrs(false); it.hasNext();) {
+            Record r = it.next();
+            copy.addRR(r.withDClass(r.getDClass(), ttl));
+        }
+        for (Iterator<Record> it = crrset.sigs(); it.hasNext();) {
+            Record r = it.next();
+            copy.addRR(r.withDClass(r.getDClass(), ttl));
         }
+        return copy;
     }
 
     /**
      * Finds all matching sets or something that causes the lookup to stop.
      */
-    protected synchronized SetResponse lookup(Name name, int type, int minCred) {
+    protected SetResponse lookup(Name name, int type, int minCred) {
+        return lookup(name, type, minCred, false);
+    }
+
+    /*
+     * Finds all matching sets or something that causes the lookup to stop,
+     * from expired elements too within the stale window if stale is set.
+     */
+    private SetResponse lookup(Name name, int type, int minCred,
+            boolean stale) {
         int labels;
         int tlabels;
         Element element;
         Name tname;
-        Object types;
+        Element[] types;
         SetResponse sr;
 
         labels = name.labels();
@@ -454,7 +1144,7 @@ public class Cache {
                 tname = new Name(name, labels - tlabels);
             }
 
-            types = data.get(tname);
+            types = exactName(tname);
             if (types == null) {
                 continue;
             }
@@ -462,21 +1152,16 @@ public class Cache {
             /* If this is an ANY lookup, return everything. */
             if (isExact && type == Type.ANY) {
                 sr = new SetResponse(SetResponse.SUCCESSFUL);
-                Element[] elements = allElements(types);
                 int added = 0;
-                for (int i = 0; i < elements.length; i++) {
-                    element = elements[i];
-                    if (element.expired()) {
-                        removeElement(tname, element.getType());
+                for (int i = 0; i < types.length; i++) {
+                    element = types[i];
+                    if (!usable(tname, element, minCred, stale)) {
                         continue;
                     }
                     if (!(element instanceof CacheRRset)) {
                         continue;
                     }
-                    if (element.compareCredibility(minCred) < 0) {
-                        continue;
-                    }
-                    sr.addRRset((CacheRRset) element);
+                    sr.addRRset(served((CacheRRset) element));
                     added++;
                 }
                 /* There were positive entries */
@@ -490,38 +1175,39 @@ public class Cache {
              * Otherwise, look for a DNAME.
              */
             if (isExact) {
-                element = oneElement(tname, types, type, minCred);
+                element = oneElement(tname, types, type, minCred, stale);
                 if (element != null && element instanceof CacheRRset) {
                     sr = new SetResponse(SetResponse.SUCCESSFUL);
-                    sr.addRRset((CacheRRset) element);
+                    sr.addRRset(served((CacheRRset) element));
+                    prefetch(tname, (CacheRRset) element);
                     return sr;
                 } else if (element != null) {
                     sr = new SetResponse(SetResponse.NXRRSET);
                     return sr;
                 }
 
-                element = oneElement(tname, types, Type.CNAME, minCred);
+                element = oneElement(tname, types, Type.CNAME, minCred, stale);
                 if (element != null && element instanceof CacheRRset) {
                     return new SetResponse(SetResponse.CNAME,
-                            (CacheRRset) element);
+                            served((CacheRRset) element));
                 }
             } else {
-                element = oneElement(tname, types, Type.DNAME, minCred);
+                element = oneElement(tname, types, Type.DNAME, minCred, stale);
                 if (element != null && element instanceof CacheRRset) {
                     return new SetResponse(SetResponse.DNAME,
-                            (CacheRRset) element);
+                            served((CacheRRset) element));
                 }
             }
 
             /* Look for an NS */
-            element = oneElement(tname, types, Type.NS, minCred);
+            element = oneElement(tname, types, Type.NS, minCred, stale);
             if (element != null && element instanceof CacheRRset)
                 return new SetResponse(SetResponse.DELEGATION,
-                        (CacheRRset) element);
+                        served((CacheRRset) element));
 
             /* Check for the special NXDOMAIN element. */
             if (isExact) {
-                element = oneElement(tname, types, 0, minCred);
+                element = oneElement(tname, types, 0, minCred, stale);
                 if (element != null) {
                     return SetResponse.ofType(SetResponse.NXDOMAIN);
                 }
@@ -549,6 +1235,29 @@ public class Cache {
         return lookup(name, type, minCred);
     }
 
+    /**
+     * Looks up Records in the Cache as {@link #lookupRecords} does, but also
+     * answers from RRsets and negative entries that have expired within the
+     * stale window set by {@link #setServeStale(int, int)}, as a resolver may
+     * when the upstream servers cannot be reached (RFC 8767). Such RRsets are
+     * returned as copies with the TTL of stale answers, and keep answering
+     * ordinary lookups for the next 30 seconds, so that those need not wait
+     * for the upstream servers to time out again meanwhile.
+     * 
+     * @param name
+     *            The name to look up
+     * @param type
+     *            The type to look up
+     * @param minCred
+     *            The minimum acceptable credibility
+     * @return A SetResponse object
+     * @see SetResponse
+     * @see Credibility
+     */
+    public SetResponse lookupStaleRecords(Name name, int type, int minCred) {
+        return lookup(name, type, minCred, true);
+    }
+
     private RRSet[] findRecords(Name name, int type, int minCred) {
         SetResponse cr = lookupRecords(name, type, minCred);
         if (cr.isSuccessful()) {
@@ -767,6 +1476,197 @@ public class Cache {
         return (response);
     }
 
+    /**
+     * Writes the contents of the Cache to a stream as a snapshot, which
+     * {@link #loadSnapshot(InputStream)} can read back, for example to warm
+     * the cache of a restarted resolver. Expired entries are written only if
+     * they are within the stale window. The Cache may be used while the
+     * snapshot is written; entries added or removed meanwhile may or may not
+     * be included.
+     * <p>
+     * The snapshot starts with a header: the magic number 0x48435348, a
+     * version byte and the class of the Cache (16 bits). Each RRset or
+     * negative entry follows as a block of a 32 bit length and the encoded
+     * entry, and a block of length 0 ends the snapshot. An RRset is encoded as
+     * the byte 1, its credibility (8 bits), the time it was cached and the
+     * time it expires (in seconds since the epoch, 32 bits each), its name in
+     * uncompressed wire format, the number of records and signatures (16
+     * bits), and each of these in wire format without the owner name: the
+     * type, class, TTL, rdata length and uncompressed rdata. A negative entry
+     * is encoded as the byte 2, its credibility, the time it expires, its name
+     * and its type (16 bits), which is 0 for NXDOMAIN.
+     * 
+     * @param out
+     *            The stream to write to. It is flushed, but not closed.
+     * @return The number of RRsets and negative entries written.
+     * @throws IOException
+     *             if writing to the stream fails
+     */
+    public int saveSnapshot(OutputStream out) throws IOException {
+        DataOutputStream dout = new DataOutputStream(out);
+        dout.writeInt(SNAPSHOT_MAGIC);
+        dout.writeByte(SNAPSHOT_VERSION);
+        dout.writeShort(dclass.getValue());
+        int now = (int) (System.currentTimeMillis() / 1000);
+        int written = 0;
+        DNSOutput block = new DNSOutput();
+        for (Map.Entry<Name, NameEntry> entry : data.entrySet()) {
+            for (Element element : entry.getValue().elements) {
+                if ((long) element.getExpire() + maxStale <= now) {
+                    continue;
+                }
+                block.reset();
+                encode(block, entry.getKey(), element);
+                dout.writeInt(block.current());
+                dout.write(block.toByteArray());
+                written++;
+            }
+        }
+        dout.writeInt(0);
+        dout.flush();
+        return written;
+    }
+
+    private static void encode(DNSOutput out, Name name, Element element) {
+        if (element instanceof CacheRRset) {
+            CacheRRset crrset = (CacheRRset) element;
+            out.writeU8(SNAPSHOT_RRSET);
+            out.writeU8(crrset.credibility);
+            out.writeU32(crrset.created & 0xFFFFFFFFL);
+            out.writeU32(crrset.expire & 0xFFFFFFFFL);
+            name.toWire(out, null);
+            int countPosition = out.current();
+            out.writeU16(0); /* until we know better */
+            int count = 0;
+            for (Iterator<Record> it = crrset.rrs(false); it.hasNext(); count++) {
+                encode(out, it.next());
+            }
+            for (Iterator<Record> it = crrset.sigs(); it.hasNext(); count++) {
+                encode(out, it.next());
+            }
+            out.writeU16At(count, countPosition);
+        } else {
+            out.writeU8(SNAPSHOT_NEGATIVE);
+            out.writeU8(((NegativeElement) element).credibility);
+            out.writeU32(element.getExpire() & 0xFFFFFFFFL);
+            name.toWire(out, null);
+            out.writeU16(element.getType());
+        }
+    }
+
+    private static void encode(DNSOutput out, Record r) {
+        out.writeU16(r.getType());
+        out.writeU16(r.getDClass().getValue());
+        out.writeU32(r.getTTL());
+        int lengthPosition = out.current();
+        out.writeU16(0); /* until we know better */
+        r.rrToWire(out, null, false);
+        out.writeU16At(out.current() - lengthPosition - 2, lengthPosition);
+    }
+
+    /**
+     * Adds the contents of a snapshot written by
+     * {@link #saveSnapshot(OutputStream)} to the Cache, as the entries were
+     * when it was written: they keep their credibility and expire at the
+     * same time as they would have. Entries that have expired since, beyond
+     * the stale window, are skipped, and like any added entries, those read
+     * do not replace more credible entries already cached, and are subject
+     * to the limits on the size of the Cache.
+     * 
+     * @param in
+     *            The stream to read from. It is read up to the end of the
+     *            snapshot, but not closed.
+     * @return The number of RRsets and negative entries added.
+     * @throws IOException
+     *             if reading from the stream fails, or it does not hold a
+     *             valid snapshot for the class of the Cache
+     */
+    public int loadSnapshot(InputStream in) throws IOException {
+        DataInputStream din = new DataInputStream(in);
+        if (din.readInt() != SNAPSHOT_MAGIC) {
+            throw new IOException("not a cache snapshot");
+        }
+        int version = din.readUnsignedByte();
+        if (version != SNAPSHOT_VERSION) {
+            throw new IOException("unsupported cache snapshot version "
+                    + version);
+        }
+        int snapshotClass = din.readUnsignedShort();
+        if (snapshotClass != dclass.getValue()) {
+            throw new IOException("cache snapshot is for class "
+                    + DClass.valueOf(snapshotClass));
+        }
+        int now = (int) (System.currentTimeMillis() / 1000);
+        int loaded = 0;
+        int length;
+        while ((length = din.readInt()) != 0) {
+            if (length < 0) {
+                throw new WireParseException("invalid block length");
+            }
+            byte[] block = new byte[length];
+            din.readFully(block);
+            DNSInput decoder = new DNSInput(block);
+            int tag = decoder.readU8();
+            int cred = decoder.readU8();
+            if (tag == SNAPSHOT_RRSET) {
+                int created = (int) decoder.readU32();
+                int expire = (int) decoder.readU32();
+                Name name = new Name(decoder);
+                RRSet rrset = decodeRRset(decoder, name);
+                if ((long) expire + maxStale > now) {
+                    storeElement(name, rrset.getType(), new CacheRRset(rrset,
+                            cred, created, expire), cred);
+                    loaded++;
+                }
+            } else if (tag == SNAPSHOT_NEGATIVE) {
+                int expire = (int) decoder.readU32();
+                Name name = new Name(decoder);
+                int type = decoder.readU16();
+                if ((long) expire + maxStale > now) {
+                    storeElement(name, type, new NegativeElement(name, type,
+                            cred, expire), cred);
+                    loaded++;
+                }
+            } else {
+                throw new WireParseException("invalid entry type " + tag);
+            }
+        }
+        return loaded;
+    }
+
+    private static RRSet decodeRRset(DNSInput in, Name name)
+            throws IOException {
+        int count = in.readU16();
+        if (count == 0) {
+            throw new WireParseException("empty RRset");
+        }
+        RRSet rrset = new RRSet();
+        for (int i = 0; i < count; i++) {
+            int type = in.readU16();
+            int dclass = in.readU16();
+            long ttl = in.readU32();
+            int length = in.readU16();
+            byte[] rdata = in.readByteArray(length);
+            Record r;
+            try {
+                r = Record.newRecord(name, type, DClass.valueOf(dclass), ttl,
+                        length, rdata);
+            } catch (IllegalArgumentException e) {
+                throw new WireParseException("invalid record: "
+                        + e.getMessage());
+            }
+            if (r == null) {
+                throw new WireParseException("invalid record");
+            }
+            try {
+                rrset.addRR(r);
+            } catch (IllegalArgumentException e) {
+                throw new WireParseException("record does not match RRset");
+            }
+        }
+        return rrset;
+    }
+
     /**
      * Flushes an RRset from the cache
      * 
@@ -777,7 +1677,7 @@ public class Cache {
      * @see RRSet
      */
     public void flushSet(Name name, int type) {
-        removeElement(name, type);
+        removeElement(name, type, Integer.MAX_VALUE);
     }
 
     /**
@@ -838,7 +1738,7 @@ public class Cache {
      * infinite limit.
      */
     public int getMaxEntries() {
-        return data.getMaxSize();
+        return maxEntries;
     }
 
     /**
@@ -846,8 +1746,8 @@ public class Cache {
      * of all records with a specific Name. A negative value is treated as an
      * infinite limit.
      * 
-     * Note that setting this to a value lower than the current number of
-     * entries will not cause the Cache to shrink immediately.
+     * If the limit is lowered below the current number of entries, entries
+     * are evicted at once.
      * 
      * The default maximum number of entries is 50000.
      * 
@@ -855,7 +1755,208 @@ public class Cache {
      *            The maximum number of entries in the Cache.
      */
     public void setMaxEntries(int entries) {
-        data.setMaxSize(entries);
+        maxEntries = entries;
+        evict();
+    }
+
+    /**
+     * Gets the maximum size of the Cache in bytes, as estimated from the wire
+     * format size of the cached records and the cost of the objects holding
+     * them. A negative value indicates no limit.
+     */
+    public long getMaxBytes() {
+        return maxBytes;
+    }
+
+    /**
+     * Sets the maximum size of the Cache in bytes, as estimated from the wire
+     * format size of the cached records and the cost of the objects holding
+     * them. Once the limit is reached, entries are evicted in the same order
+     * as for the maximum number of entries, whichever limit is reached first.
+     * A negative value disables this feature (that is, sets no limit), which
+     * is the default.
+     * 
+     * @param bytes
+     *            The maximum size of the Cache in bytes.
+     */
+    public void setMaxBytes(long bytes) {
+        maxBytes = bytes;
+        evict();
+    }
+
+    /**
+     * Gets the estimated size of the Cache in bytes.
+     * 
+     * @see #setMaxBytes(long)
+     */
+    public long getBytes() {
+        return bytes.get();
+    }
+
+    /**
+     * Returns the number of entries evicted to keep the Cache within its
+     * maximum number of entries or bytes.
+     */
+    public long getEvictions() {
+        return evictions.get();
+    }
+
+    /**
+     * Returns the number of RRsets and negative entries removed because their
+     * TTL had passed, whether by a lookup or by the expiry sweep.
+     */
+    public long getExpirations() {
+        return expirations.get();
+    }
+
+    /**
+     * Starts removing expired RRsets and negative entries in the background,
+     * once a second, rather than only when a lookup finds them. Entries are
+     * kept on a wheel of expiry times, so each sweep only looks at the
+     * entries expiring since the previous one.
+     * 
+     * @param timer
+     *            The timer that runs the sweep.
+     */
+    public synchronized void startExpirySweep(Timer timer) {
+        if (sweepTimer != null) {
+            throw new IllegalStateException("expiry sweep already running");
+        }
+        Slot[] slots = new Slot[WHEEL_SLOTS];
+        for (int i = 0; i < slots.length; i++) {
+            slots[i] = new Slot();
+        }
+        wheel = slots;
+        for (Map.Entry<Name, NameEntry> e : data.entrySet()) {
+            NameEntry entry = e.getValue();
+            if (entry.expiry != null) {
+                continue; /* updated since the wheel was set */
+            }
+            int time = removalTime(entry.elements);
+            entry.expiry = new Expiry(e.getKey(), time,
+                    slots[time % WHEEL_SLOTS]);
+            link(entry.expiry);
+        }
+        lastSweep = 0;
+        sweepTimer = timer;
+        scheduleSweep(null);
+    }
+
+    /**
+     * Enables prefetching: when a lookup returns an RRset that has been
+     * returned more than a given number of times and is within the last part
+     * of its TTL, the RRset is queried for again in the background so that it
+     * is replaced before it expires, rather than all the lookups for it
+     * missing at once.
+     * 
+     * @param resolver
+     *            The resolver to query, or null to disable prefetching.
+     * @param percent
+     *            The last part of the TTL, in percent, in which RRsets are
+     *            prefetched.
+     * @param minHits
+     *            The number of hits an RRset must have exceeded to be
+     *            prefetched.
+     */
+    public void setPrefetch(Resolver resolver, int percent, int minHits) {
+        if (percent < 0 || percent > 100) {
+            throw new IllegalArgumentException("invalid percentage: "
+                    + percent);
+        }
+        prefetchPercent = percent;
+        prefetchHits = minHits;
+        prefetchResolver = resolver;
+    }
+
+    /**
+     * Returns the number of queries sent to prefetch RRsets.
+     */
+    public long getPrefetches() {
+        return prefetches.get();
+    }
+
+    /**
+     * Enables serving stale data: RRsets and negative entries are kept for a
+     * given time after they expire, and answer lookups, with a short TTL,
+     * when the query for them fails (RFC 8767). Lookups that do so refresh
+     * them in the background. This is disabled by default.
+     * 
+     * The expiry sweep removes entries at the end of the stale window in
+     * effect when they were added.
+     * 
+     * @param maxStale
+     *            How long entries are kept after they expire, in seconds, or
+     *            0 to disable serving stale data.
+     * @param ttl
+     *            The TTL of stale answers, in seconds; RFC 8767 suggests 30.
+     */
+    public void setServeStale(int maxStale, int ttl) {
+        if (maxStale < 0) {
+            throw new IllegalArgumentException("invalid stale window: "
+                    + maxStale);
+        }
+        TTL.check(ttl);
+        this.staleTtl = ttl;
+        this.maxStale = maxStale;
+    }
+
+    /**
+     * Gets how long entries are kept after they expire to be served stale,
+     * in seconds; 0 if serving stale data is disabled.
+     */
+    public int getMaxStale() {
+        return maxStale;
+    }
+
+    /**
+     * Gets the TTL of stale answers, in seconds.
+     */
+    public int getStaleTtl() {
+        return staleTtl;
+    }
+
+    /**
+     * Sets whether Lookups using this Cache that miss for the same name and
+     * type at the same time send a single query between them. The others wait
+     * for the response to the first, or to a prefetch for the name and type.
+     * This is disabled by default.
+     */
+    public void setCoalesceMisses(boolean coalesce) {
+        coalesceMisses = coalesce;
+    }
+
+    /**
+     * Stops the expiry sweep started by {@link #startExpirySweep(Timer)}.
+     */
+    public synchronized void stopExpirySweep() {
+        if (sweepTimeout != null) {
+            sweepTimeout.cancel();
+        }
+        sweepTimer = null;
+        sweepTimeout = null;
+        wheel = null;
+        for (NameEntry entry : data.values()) {
+            entry.expiry = null;
+        }
+        wheelSize.set(0);
+    }
+
+    /*
+     * Schedules the next sweep, unless the sweep has been stopped, or
+     * restarted since the previous one was scheduled.
+     */
+    private synchronized void scheduleSweep(Timeout previous) {
+        if (sweepTimer == null || sweepTimeout != previous) {
+            return;
+        }
+        sweepTimeout = sweepTimer.newTimeout(new TimerTask() {
+
+            @Override
+            public void run(final Timeout t) {
+                sweep();
+                scheduleSweep(t);
+            }
+        }, 1, TimeUnit.SECONDS);
     }
 
     /**
@@ -870,14 +1971,11 @@ public class Cache {
      */
     public String toString() {
         StringBuffer sb = new StringBuffer();
-        synchronized (this) {
-            Iterator<Object> it = data.values().iterator();
-            while (it.hasNext()) {
-                Element[] elements = allElements(it.next());
-                for (int i = 0; i < elements.length; i++) {
-                    sb.append(elements[i]);
-                    sb.append("\n");
-                }
+        for (NameEntry entry : data.values()) {
+            Element[] elements = entry.elements;
+            for (int i = 0; i < elements.length; i++) {
+                sb.append(elements[i]);
+                sb.append("\n");
             }
         }
         return sb.toString();
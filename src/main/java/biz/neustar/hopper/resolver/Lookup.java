@@ -514,8 +514,11 @@ public final class Lookup {
         Message query = Message.newQuery(question);
         Message response = null;
         try {
-            response = resolver.send(query);
+            response = cache.send(resolver, query);
         } catch (IOException e) {
+            if (serveStale(current)) {
+                return;
+            }
             // A network error occurred. Press on.
             if (e instanceof InterruptedIOException) {
                 timedout = true;
@@ -551,6 +554,28 @@ public final class Lookup {
         processResponse(current, sr);
     }
 
+    /*
+     * Answers from data the cache has kept past its expiry, if it serves
+     * stale data, once the query for current has failed, and refreshes it in
+     * the background.
+     */
+    private boolean serveStale(Name current) {
+        if (cache.getMaxStale() == 0) {
+            return false;
+        }
+        SetResponse sr = cache.lookupStaleRecords(current, type, credibility);
+        if (sr.isUnknown() || sr.isDelegation()) {
+            return false;
+        }
+        if (verbose) {
+            System.err.println("stale " + current + " " + Type.string(type));
+            System.err.println(sr);
+        }
+        cache.refresh(resolver, current, type);
+        processResponse(current, sr);
+        return true;
+    }
+
     private void resolve(Name current, Name suffix) {
         doneCurrent = false;
         Name tname = null;
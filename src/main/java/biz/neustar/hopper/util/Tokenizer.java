@@ -32,6 +32,7 @@ import java.nio.charset.StandardCharsets;
 import biz.neustar.hopper.exception.RelativeNameException;
 import biz.neustar.hopper.exception.TextParseException;
 import biz.neustar.hopper.message.Name;
+import biz.neustar.hopper.message.NamePool;
 import biz.neustar.hopper.message.TTL;
 import biz.neustar.hopper.record.impl.Address;
 
@@ -560,7 +561,8 @@ public class Tokenizer {
             if (!name.isAbsolute()) {
                 throw new RelativeNameException(name);
             }
-            return name;
+            NamePool pool = Name.getInternPool();
+            return pool == null ? name : pool.intern(name);
         } catch (TextParseException e) {
             throw exception(e.getMessage());
         }
@@ -34,10 +34,13 @@
 //
 package biz.neustar.hopper;
 
+import java.util.Arrays;
+
 import junit.framework.TestCase;
 import biz.neustar.hopper.config.Options;
 import biz.neustar.hopper.exception.TextParseException;
 import biz.neustar.hopper.message.Compression;
+import biz.neustar.hopper.message.DNSOutput;
 import biz.neustar.hopper.message.Name;
 
 public class CompressionTest extends TestCase {
@@ -57,4 +60,70 @@ public class CompressionTest extends TestCase {
         c.add(10, n2);
         assertEquals(10, c.get(n2));
     }
+
+    public void test_case_insensitive() throws TextParseException {
+        Compression c = new Compression();
+        c.add(12, Name.fromString("WWW.Example.COM."));
+        assertEquals(12, c.get(Name.fromString("www.example.com.")));
+        assertEquals(-1, c.get(Name.fromString("example.com.")));
+    }
+
+    public void test_pointer_range() throws TextParseException {
+        Compression c = new Compression();
+        Name n = Name.fromString("www.example.com.");
+        c.add(0x4000, n);
+        assertEquals(-1, c.get(n));
+    }
+
+    public void test_suffixes() throws TextParseException {
+        Options.unset("verbosecompression");
+        Compression c = new Compression();
+        DNSOutput out = new DNSOutput();
+        Name.fromString("www.Example.com.").toWire(out, c);
+        assertEquals(0, c.get(Name.fromString("www.example.com.")));
+        assertEquals(4, c.get(Name.fromString("example.com.")));
+        assertEquals(12, c.get(Name.fromString("COM.")));
+        assertEquals(-1, c.get(Name.root));
+        assertEquals(0, c.getBytesSaved());
+
+        Name.fromString("mail.example.com.").toWire(out, c);
+        byte[] expected = { 4, 'm', 'a', 'i', 'l', (byte) 0xC0, 4 };
+        byte[] wire = out.toByteArray();
+        assertTrue(Arrays.equals(expected, Arrays.copyOfRange(wire, 17,
+                wire.length)));
+        assertEquals(13 - 2, c.getBytesSaved());
+
+        c.reset();
+        assertEquals(0, c.getBytesSaved());
+        assertEquals(-1, c.get(Name.fromString("example.com.")));
+    }
+
+    public void test_case_sensitive() throws TextParseException {
+        Options.unset("verbosecompression");
+        Options.set("case-sensitive-compression");
+        try {
+            Compression c = new Compression();
+            Name.fromString("www.Example.com.").toWire(new DNSOutput(), c);
+            assertEquals(4, c.get(Name.fromString("Example.com.")));
+            assertEquals(-1, c.get(Name.fromString("example.com.")));
+        } finally {
+            Options.unset("case-sensitive-compression");
+        }
+    }
+
+    public void test_grow_and_reset() throws TextParseException {
+        Options.unset("verbosecompression");
+        Compression c = new Compression();
+        for (int i = 0; i < 1000; i++) {
+            c.add(i, Name.fromString("host" + i + ".example.com."));
+        }
+        for (int i = 0; i < 1000; i++) {
+            assertEquals(i, c.get(Name.fromString("host" + i + ".example.com.")));
+        }
+
+        c.reset();
+        assertEquals(-1, c.get(Name.fromString("host1.example.com.")));
+        c.add(20, Name.fromString("host1.example.com."));
+        assertEquals(20, c.get(Name.fromString("host1.example.com.")));
+    }
 }
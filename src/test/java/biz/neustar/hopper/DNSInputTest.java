@@ -34,6 +34,7 @@
 //
 package biz.neustar.hopper;
 
+import java.nio.ByteBuffer;
 import java.util.Arrays;
 
 import junit.framework.TestCase;
@@ -310,4 +311,66 @@ public class DNSInputTest extends TestCase
 	assertEquals( 3, m_di.current() );
 	assertEquals( out[0], 2 );
     }
+
+    public void test_region() throws WireParseException
+    {
+	DNSInput di = new DNSInput( m_raw, 2, 5 );
+	assertEquals( 0, di.current() );
+	assertEquals( 5, di.remaining() );
+	assertEquals( 2, di.readU8() );
+	assertEquals( 0x0304, di.readU16() );
+
+	di.jump( 0 );
+	byte[] out = di.readByteArray();
+	assertEquals( new byte[] { 2, 3, 4, 5, (byte)255 }, out );
+
+	try {
+	    di.readU8();
+	    fail( "WireParseException not thrown" );
+	}
+	catch( WireParseException e ){
+	    // pass
+	}
+    }
+
+    public void test_region_jump_invalid()
+    {
+	DNSInput di = new DNSInput( m_raw, 2, 5 );
+	try {
+	    di.jump( 5 );
+	    fail( "IllegalArgumentException not thrown" );
+	}
+	catch( IllegalArgumentException e ){
+	    // pass
+	}
+    }
+
+    public void test_region_invalid()
+    {
+	try {
+	    new DNSInput( m_raw, 8, 3 );
+	    fail( "IllegalArgumentException not thrown" );
+	}
+	catch( IllegalArgumentException e ){
+	    // pass
+	}
+    }
+
+    public void test_byteBuffer() throws WireParseException
+    {
+	ByteBuffer heap = ByteBuffer.wrap( m_raw );
+	heap.position( 4 );
+	DNSInput di = new DNSInput( heap );
+	assertEquals( 6, di.remaining() );
+	assertEquals( 0x0405, di.readU16() );
+	assertEquals( 4, heap.position() );
+
+	ByteBuffer direct = ByteBuffer.allocateDirect( m_raw.length );
+	direct.put( m_raw );
+	direct.flip();
+	di = new DNSInput( direct );
+	assertEquals( 10, di.remaining() );
+	assertEquals( 66051, di.readU32() );
+	assertEquals( 0, direct.position() );
+    }
 }
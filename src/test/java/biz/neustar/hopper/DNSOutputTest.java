@@ -266,4 +266,50 @@ public class DNSOutputTest extends TestCase
 	}
     }
 
+    public void test_region()
+    {
+	byte[] b = new byte[ 8 ];
+	m_do = new DNSOutput( b, 2, 4 );
+	m_do.writeU16( 0x0102 );
+	m_do.writeU16At( 0x0304, 0 );
+	m_do.writeU8( 5 );
+	assertEquals( 3, m_do.current() );
+	assertEquals( new byte[] { 0, 0, 3, 4, 5, 0, 0, 0 }, b );
+	assertEquals( new byte[] { 3, 4, 5 }, m_do.toByteArray() );
+
+	// growing past the region leaves the array alone
+	m_do.writeU32( 0x06070809L );
+	assertEquals( 7, m_do.current() );
+	assertEquals( new byte[] { 0, 0, 3, 4, 5, 0, 0, 0 }, b );
+	assertEquals( new byte[] { 3, 4, 5, 6, 7, 8, 9 }, m_do.toByteArray() );
+    }
+
+    public void test_region_invalid()
+    {
+	try {
+	    new DNSOutput( new byte[ 8 ], 6, 3 );
+	    fail( "IllegalArgumentException not thrown" );
+	}
+	catch( IllegalArgumentException e ){
+	    // pass
+	}
+    }
+
+    public void test_reset()
+    {
+	m_do.writeU32( 0x12345678L );
+	m_do.save();
+	m_do.reset();
+	assertEquals( 0, m_do.current() );
+	try {
+	    m_do.restore();
+	    fail( "IllegalStateException not thrown" );
+	}
+	catch( IllegalStateException e ){
+	    // pass
+	}
+	m_do.writeU8( 1 );
+	assertEquals( new byte[] { 1 }, m_do.toByteArray() );
+    }
+
 }
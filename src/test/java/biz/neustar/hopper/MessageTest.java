@@ -36,7 +36,10 @@ package biz.neustar.hopper;
 
 import java.net.InetAddress;
 import java.net.UnknownHostException;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
 import java.util.Arrays;
+import java.util.List;
 
 import org.junit.Assert;
 
@@ -45,17 +48,24 @@ import junit.framework.TestCase;
 import junit.framework.TestSuite;
 import biz.neustar.hopper.config.Options;
 import biz.neustar.hopper.exception.TextParseException;
+import biz.neustar.hopper.exception.WireParseException;
 import biz.neustar.hopper.message.DClass;
 import biz.neustar.hopper.message.Flag;
 import biz.neustar.hopper.message.Header;
 import biz.neustar.hopper.message.Message;
 import biz.neustar.hopper.message.Name;
 import biz.neustar.hopper.message.Opcode;
+import biz.neustar.hopper.message.Rcode;
 import biz.neustar.hopper.message.Section;
+import biz.neustar.hopper.message.TSIG;
+import biz.neustar.hopper.message.Type;
 import biz.neustar.hopper.record.ARecord;
 import biz.neustar.hopper.record.MXRecord;
+import biz.neustar.hopper.record.OPTRecord;
+import biz.neustar.hopper.record.RRSet;
 import biz.neustar.hopper.record.Record;
 import biz.neustar.hopper.record.SOARecord;
+import biz.neustar.hopper.record.TXTRecord;
 
 public class MessageTest {
     public static class Test_init extends TestCase {
@@ -150,6 +160,222 @@ public class MessageTest {
             assertEquals(true, h.isFlagSet(Flag.RD));
         }
 
+
+        private Message newResponse() throws TextParseException,
+                UnknownHostException {
+            Name n = Name.fromString("The.Name.");
+            Message m = Message.newQuery(Record.newRecord(n, Type.A, DClass.IN));
+            for (int i = 0; i < 40; i++) {
+                m.addRecord(new ARecord(n, DClass.IN, 1,
+                        InetAddress.getByName("192.168.101." + i)),
+                        Section.ANSWER);
+            }
+            return m;
+        }
+
+        public void test_toWire_byteBuffer() throws Exception {
+            Message m = newResponse();
+            byte[] expected = m.toWire();
+
+            ByteBuffer heap = ByteBuffer.allocate(expected.length + 10);
+            heap.position(3);
+            assertEquals(expected.length, m.toWire(heap));
+            assertEquals(expected.length + 3, heap.position());
+            assertTrue(Arrays.equals(expected, Arrays.copyOfRange(
+                    heap.array(), 3, 3 + expected.length)));
+
+            ByteBuffer direct = ByteBuffer.allocateDirect(expected.length);
+            assertEquals(expected.length, m.toWire(direct));
+            direct.flip();
+            byte[] rendered = new byte[direct.remaining()];
+            direct.get(rendered);
+            assertTrue(Arrays.equals(expected, rendered));
+        }
+
+        public void test_toWire_byteBuffer_overflow() throws Exception {
+            Message m = newResponse();
+            ByteBuffer buffer = ByteBuffer.allocate(100);
+            try {
+                m.toWire(buffer);
+                fail("BufferOverflowException not thrown");
+            } catch (BufferOverflowException e) {
+            }
+            assertEquals(0, buffer.position());
+        }
+
+        public void test_toWire_byteBuffer_truncated() throws Exception {
+            Message m = newResponse();
+            byte[] expected = m.toWire(512);
+
+            ByteBuffer buffer = ByteBuffer.allocate(4096);
+            assertEquals(expected.length, m.toWire(buffer, 512));
+            assertTrue(Arrays.equals(expected, Arrays.copyOf(
+                    buffer.array(), expected.length)));
+
+            buffer = ByteBuffer.allocate(512);
+            assertEquals(expected.length, m.toWire(buffer, Message.MAXLENGTH));
+            Message parsed = new Message(Arrays.copyOf(buffer.array(),
+                    buffer.position()));
+            assertTrue(parsed.getHeader().isFlagSet(Flag.TC));
+        }
+
+        public void test_toWire_truncated_keeps_OPT() throws Exception {
+            Message m = newResponse();
+            m.addRecord(new ARecord(Name.fromString("ns.Name."), DClass.IN, 1,
+                    InetAddress.getByName("10.0.0.1")), Section.ADDITIONAL);
+            m.addRecord(new OPTRecord(1232, 0, 0), Section.ADDITIONAL);
+
+            Message parsed = new Message(m.toWire(200));
+            assertTrue(parsed.getHeader().isFlagSet(Flag.TC));
+            // the answers are a single RRset
+            assertEquals(0, parsed.getHeader().getCount(Section.ANSWER));
+            assertEquals(1, parsed.getHeader().getCount(Section.ADDITIONAL));
+            assertEquals(1232, parsed.getOPT().getPayloadSize());
+
+            // only the glue is left out
+            int length = m.toWire().length;
+            parsed = new Message(m.toWire(length - 1));
+            assertFalse(parsed.getHeader().isFlagSet(Flag.TC));
+            assertEquals(40, parsed.getHeader().getCount(Section.ANSWER));
+            assertEquals(1, parsed.getHeader().getCount(Section.ADDITIONAL));
+            assertNotNull(parsed.getOPT());
+        }
+
+        public void test_toWire_truncated_signed() throws Exception {
+            Name key = Name.fromString("key.example.");
+            Message m = newResponse();
+            m.addRecord(new TXTRecord(key, DClass.IN, 1,
+                    "a string too long to fit in the message"),
+                    Section.ANSWER);
+            TSIG tsig = new TSIG(key, new byte[16]);
+            m.setTSIG(tsig, Rcode.NOERROR, null);
+
+            int length = newResponse().toWire().length;
+            byte[] wire = m.toWire(length + tsig.recordLength());
+            Message parsed = new Message(wire);
+            assertTrue(parsed.getHeader().isFlagSet(Flag.TC));
+            assertEquals(40, parsed.getHeader().getCount(Section.ANSWER));
+            assertEquals(key, parsed.getTSIG().getName());
+            assertEquals(Rcode.NOERROR, tsig.verify(parsed, wire, null));
+        }
+
+        public void test_getSection() throws Exception {
+            Message m = newResponse();
+            List<Record> answers = m.getSection(Section.ANSWER);
+            assertEquals(Arrays.asList(m.getSectionArray(Section.ANSWER)),
+                    answers);
+            assertTrue(m.getSection(Section.AUTHORITY).isEmpty());
+            try {
+                answers.clear();
+                fail("UnsupportedOperationException not thrown");
+            } catch (UnsupportedOperationException e) {
+            }
+            m.removeRecord(answers.get(0), Section.ANSWER);
+            assertEquals(39, answers.size());
+        }
+
+        public void test_getSectionRRsets() throws Exception {
+            Name a = Name.fromString("a.example.");
+            Name b = Name.fromString("B.example.");
+            Message m = new Message();
+            m.addRecord(new ARecord(a, DClass.IN, 1,
+                    InetAddress.getByName("10.0.0.1")), Section.ANSWER);
+            m.addRecord(new MXRecord(b, DClass.IN, 1, 10, a), Section.ANSWER);
+            m.addRecord(new ARecord(b, DClass.IN, 1,
+                    InetAddress.getByName("10.0.0.2")), Section.ANSWER);
+            m.addRecord(new ARecord(Name.fromString("A.example."), DClass.IN,
+                    1, InetAddress.getByName("10.0.0.3")), Section.ANSWER);
+            m.addRecord(new ARecord(a, DClass.CH, 1,
+                    InetAddress.getByName("10.0.0.4")), Section.ANSWER);
+            m.addRecord(new MXRecord(Name.fromString("b.example."), DClass.IN,
+                    1, 20, a), Section.ANSWER);
+
+            RRSet[] sets = m.getSectionRRsets(Section.ANSWER);
+            assertEquals(4, sets.length);
+            assertEquals(a, sets[0].getName());
+            assertEquals(Type.A, sets[0].getType());
+            assertEquals(2, sets[0].size());
+            assertEquals(Type.MX, sets[1].getType());
+            assertEquals(2, sets[1].size());
+            assertEquals(b, sets[2].getName());
+            assertEquals(Type.A, sets[2].getType());
+            assertEquals(DClass.CH, sets[3].getDClass());
+            assertEquals(0, m.getSectionRRsets(Section.AUTHORITY).length);
+        }
+
+        public void test_getOPT() throws Exception {
+            Message m = newResponse();
+            assertNull(m.getOPT());
+            OPTRecord opt = new OPTRecord(1232, 0, 0);
+            m.addRecord(opt, Section.ADDITIONAL);
+            assertSame(opt, m.getOPT());
+            m.removeRecord(opt, Section.ADDITIONAL);
+            assertNull(m.getOPT());
+            m.addRecord(opt, Section.ADDITIONAL);
+            assertSame(opt, ((Message) m.clone()).getOPT());
+        }
+
+        public void test_newLazy() throws Exception {
+            Message m = newResponse();
+            m.addRecord(new OPTRecord(4096, 0, 0), Section.ADDITIONAL);
+            byte[] wire = m.toWire();
+
+            Message lazy = Message.newLazy(wire);
+            Message eager = new Message(wire);
+            assertEquals(eager.getQuestion(), lazy.getQuestion());
+            assertEquals(4096, lazy.getOPT().getPayloadSize());
+            assertNull(lazy.getTSIG());
+            assertEquals(wire.length, lazy.numBytes());
+            assertTrue(Arrays.equals(wire, lazy.toWire()));
+
+            lazy.getHeader().setID(42);
+            byte[] rendered = lazy.toWire(Message.MAXLENGTH);
+            assertEquals(42, new Message(rendered).getHeader().getID());
+            assertTrue(Arrays.equals(Arrays.copyOfRange(wire, 2, wire.length),
+                    Arrays.copyOfRange(rendered, 2, rendered.length)));
+
+            for (int i = 0; i < 4; i++) {
+                assertTrue(Arrays.equals(eager.getSectionArray(i),
+                        lazy.getSectionArray(i)));
+            }
+            assertEquals(eager.getSectionRRsets(Section.ANSWER).length,
+                    lazy.getSectionRRsets(Section.ANSWER).length);
+        }
+
+        public void test_newLazy_changed() throws Exception {
+            Message m = newResponse();
+            byte[] wire = m.toWire();
+
+            Message lazy = Message.newLazy(wire);
+            Record extra = new ARecord(Name.fromString("The.Name."),
+                    DClass.IN, 1, InetAddress.getByName("10.0.0.1"));
+            lazy.addRecord(extra, Section.ADDITIONAL);
+            m.addRecord(extra, Section.ADDITIONAL);
+            assertTrue(Arrays.equals(m.toWire(), lazy.toWire()));
+
+            lazy = Message.newLazy(wire);
+            lazy.removeAllRecords(Section.ANSWER);
+            assertEquals(0, lazy.getSectionArray(Section.ANSWER).length);
+            Message parsed = new Message(lazy.toWire());
+            assertEquals(0, parsed.getHeader().getCount(Section.ANSWER));
+            assertEquals(m.getQuestion(), parsed.getQuestion());
+        }
+
+        public void test_newLazy_truncated() throws Exception {
+            Message m = newResponse();
+            m.getHeader().setFlag(Flag.TC);
+            byte[] wire = m.toWire();
+            Message lazy = Message.newLazy(Arrays.copyOf(wire,
+                    wire.length - 5));
+            assertEquals(39, lazy.getSectionArray(Section.ANSWER).length);
+
+            m.getHeader().unsetFlag(Flag.TC.getValue());
+            try {
+                Message.newLazy(Arrays.copyOf(m.toWire(), wire.length - 5));
+                fail("WireParseException not thrown");
+            } catch (WireParseException e) {
+            }
+        }
     }
 
     public static Test suite() {
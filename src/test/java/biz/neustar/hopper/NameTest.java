@@ -832,6 +832,36 @@ public class NameTest extends TestCase {
         assertEquals(exp, n);
     }
 
+    public void test_many_labels() throws TextParseException,
+            NameTooLongException {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < 32; i++) {
+            sb.append(Integer.toHexString(i % 16)).append('.');
+        }
+        Name n = Name.fromString(sb + "ip6.arpa.");
+        assertEquals(35, n.labels());
+        for (int i = 0; i < 32; i++) {
+            assertEquals(Integer.toHexString(i % 16), n.getLabelString(i));
+        }
+        assertEquals("arpa", n.getLabelString(33));
+
+        // names sharing the labels of a longer name
+        Name suffix = new Name(n, 3);
+        assertEquals(Name.fromString(sb.substring(6) + "ip6.arpa."), suffix);
+        Name suffix2 = new Name(suffix, 20);
+        assertEquals(Name.fromString(sb.substring(46) + "ip6.arpa."), suffix2);
+        assertEquals("7", suffix2.getLabelString(0));
+        assertEquals("ip6", suffix2.getLabelString(9));
+
+        Name relative = n.relativize(Name.fromString("ip6.arpa."));
+        assertEquals(32, relative.labels());
+        assertEquals("f", relative.getLabelString(31));
+        Name abs = Name.concatenate(relative, Name.fromString("ip6.arpa."));
+        assertEquals(n, abs);
+        assertEquals("ip6", abs.getLabelString(32));
+        assertEquals(Name.fromString("*.f.ip6.arpa."), n.wild(31));
+    }
+
     public void test_wild() throws TextParseException {
         Name sub = Name.fromString("a.b.c.");
         Name exp = Name.fromString("*.b.c.");
@@ -1216,6 +1246,36 @@ public class NameTest extends TestCase {
             assertTrue(n1.compareTo(n2) < 0);
             assertTrue(n2.compareTo(n1) > 0);
         }
+
+        public void test_unsigned_bytes() throws TextParseException {
+            Name n1 = new Name("z.a.");
+            Name n2 = new Name("\\200.a.");
+
+            assertTrue(n1.compareTo(n2) < 0);
+            assertTrue(n2.compareTo(n1) > 0);
+        }
+
+        public void test_escaped_bytes() throws TextParseException {
+            Name n1 = new Name("a.");
+            Name n2 = new Name("a\\000.");
+            Name n3 = new Name("a\\001.");
+            Name n4 = new Name("a\\002.");
+
+            assertTrue(n1.compareTo(n2) < 0);
+            assertTrue(n2.compareTo(n3) < 0);
+            assertTrue(n3.compareTo(n4) < 0);
+        }
+
+        public void test_canonical_key() throws TextParseException {
+            Name n1 = new Name("WWW.Example.com.");
+            Name n2 = new Name("www.example.COM.");
+
+            assertTrue(Arrays.equals(n1.toCanonicalKey(), n2.toCanonicalKey()));
+            assertTrue(Arrays.equals(new byte[] { 0, 'c', 'o', 'm', 0, 'e', 'x',
+                    'a', 'm', 'p', 'l', 'e', 0, 'w', 'w', 'w', 0 },
+                    n1.toCanonicalKey()));
+            assertEquals(n1, n2);
+        }
     }
 
     public static Test suite() {
@@ -0,0 +1,101 @@
+package biz.neustar.hopper.message;
+
+import java.io.ByteArrayInputStream;
+import java.net.InetAddress;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Test;
+
+import biz.neustar.hopper.exception.WireParseException;
+import biz.neustar.hopper.record.ARecord;
+import biz.neustar.hopper.record.Record;
+import biz.neustar.hopper.util.Tokenizer;
+
+public class NamePoolTest {
+
+    @After
+    public void tearDown() {
+        Name.setInternPool(null);
+    }
+
+    private static Message response() throws Exception {
+        Name name = Name.fromString("www.Example.com.");
+        Message message = Message.newQuery(Record.newRecord(name, Type.A, DClass.IN));
+        message.addRecord(new ARecord(name, DClass.IN, 300, InetAddress.getByName("10.0.0.1")),
+                Section.ANSWER);
+        message.addRecord(new ARecord(name, DClass.IN, 300, InetAddress.getByName("10.0.0.2")),
+                Section.ANSWER);
+        return message;
+    }
+
+    @Test
+    public void testDisabledByDefault() {
+        Assert.assertNull(Name.getInternPool());
+    }
+
+    @Test
+    public void testWireNamesShared() throws Exception {
+        NamePool pool = new NamePool(1000);
+        Assert.assertEquals(1024, pool.size());
+        Name.setInternPool(pool);
+        byte[] wire = response().toWire();
+
+        Message first = new Message(wire);
+        Message second = new Message(wire);
+        Record[] answers = first.getSectionArray(Section.ANSWER);
+        Name question = first.getQuestion().getName();
+        Assert.assertEquals("www.Example.com.", question.toString());
+        Assert.assertEquals(question, answers[0].getName());
+        Assert.assertEquals(question, second.getSectionArray(Section.ANSWER)[1].getName());
+        Assert.assertEquals(question.hashCode(), answers[1].getName().hashCode());
+        Assert.assertTrue(pool.getHits() >= 5);
+        Assert.assertArrayEquals(wire, second.toWire());
+    }
+
+    @Test
+    public void testCasePreserved() throws Exception {
+        Name.setInternPool(new NamePool(16));
+        Name lower = new Name(new DNSInput(Name.fromString("www.example.com.").toWire()));
+        Name upper = new Name(new DNSInput(Name.fromString("WWW.EXAMPLE.COM.").toWire()));
+        Assert.assertEquals(lower, upper);
+        Assert.assertEquals("www.example.com.", lower.toString());
+        Assert.assertEquals("WWW.EXAMPLE.COM.", upper.toString());
+    }
+
+    @Test
+    public void testCompressionErrors() throws Exception {
+        Name.setInternPool(new NamePool(16));
+        // a pointer to itself
+        byte[] raw = new byte[] { 3, 'w', 'w', 'w', (byte) 0xC0, 4 };
+        try {
+            new Name(new DNSInput(raw));
+            Assert.fail("WireParseException not thrown");
+        } catch (WireParseException e) {
+        }
+        byte[] labels = new byte[2 * 128 + 1];
+        for (int i = 0; i < 128; i++) {
+            labels[2 * i] = 1;
+            labels[2 * i + 1] = 'a';
+        }
+        try {
+            new Name(new DNSInput(labels));
+            Assert.fail("WireParseException not thrown");
+        } catch (WireParseException e) {
+        }
+    }
+
+    @Test
+    public void testTokenizer() throws Exception {
+        NamePool pool = new NamePool(16);
+        Name.setInternPool(pool);
+        Tokenizer t = new Tokenizer(new ByteArrayInputStream(
+                "www.example.com. www.example.com. WWW.example.com.".getBytes()));
+        Name first = t.getName(null);
+        Assert.assertSame(first, t.getName(null));
+        Name upper = t.getName(null);
+        Assert.assertNotSame(first, upper);
+        Assert.assertEquals("WWW.example.com.", upper.toString());
+        Assert.assertEquals(1, pool.getHits());
+    }
+}
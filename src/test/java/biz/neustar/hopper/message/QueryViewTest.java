@@ -0,0 +1,84 @@
+package biz.neustar.hopper.message;
+
+import java.net.InetAddress;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import biz.neustar.hopper.record.ARecord;
+import biz.neustar.hopper.record.OPTRecord;
+import biz.neustar.hopper.record.Record;
+
+public class QueryViewTest {
+
+    private static Message query(String name, int type) throws Exception {
+        Message query = Message.newQuery(Record.newRecord(
+                Name.fromString(name), type, DClass.IN));
+        query.getHeader().setID(0x1234);
+        return query;
+    }
+
+    @Test
+    public void testQuestion() throws Exception {
+        byte[] wire = query("www.Example.com.", Type.AAAA).toWire();
+        QueryView view = QueryView.parse(wire);
+        Assert.assertNotNull(view);
+        Assert.assertEquals(0x1234, view.getID());
+        Assert.assertTrue(view.isFlagSet(Flag.RD));
+        Assert.assertFalse(view.isFlagSet(Flag.QR));
+        Assert.assertEquals(Opcode.QUERY, view.getOpcode());
+        Assert.assertEquals(1, view.getCount(Section.QUESTION));
+        Assert.assertEquals(Name.fromString("www.Example.com."), view.getName());
+        Assert.assertEquals(Type.AAAA, view.getType());
+        Assert.assertEquals(DClass.IN, view.getDClass());
+        Assert.assertFalse(view.hasEDNS());
+        Assert.assertEquals(-1, view.getEDNSVersion());
+        Assert.assertEquals(wire.length, view.numBytes());
+        Assert.assertArrayEquals(wire, view.toMessage().toWire());
+    }
+
+    @Test
+    public void testEDNS() throws Exception {
+        Message query = query("example.com.", Type.A);
+        query.addRecord(new OPTRecord(4096, 0, 0, ExtendedFlag.DO.getValue()),
+                Section.ADDITIONAL);
+        byte[] wire = query.toWire();
+        byte[] padded = new byte[wire.length + 10];
+        System.arraycopy(wire, 0, padded, 5, wire.length);
+
+        QueryView view = QueryView.parse(padded, 5, wire.length);
+        Assert.assertNotNull(view);
+        Assert.assertTrue(view.hasEDNS());
+        Assert.assertEquals(4096, view.getPayloadSize());
+        Assert.assertEquals(0, view.getEDNSVersion());
+        Assert.assertTrue(view.isEDNSFlagSet(ExtendedFlag.DO));
+        Assert.assertEquals(0, view.getEDNSOptionsLength());
+        Assert.assertEquals(Name.fromString("example.com."), view.getName());
+        Assert.assertArrayEquals(wire, view.toWire());
+    }
+
+    @Test
+    public void testNotSimple() throws Exception {
+        Message response = query("example.com.", Type.A);
+        response.getHeader().setFlag(Flag.QR);
+        Assert.assertNull(QueryView.parse(response.toWire()));
+
+        Message answer = query("example.com.", Type.A);
+        answer.addRecord(new ARecord(Name.fromString("example.com."),
+                DClass.IN, 60, InetAddress.getByName("10.0.0.1")),
+                Section.ANSWER);
+        Assert.assertNull(QueryView.parse(answer.toWire()));
+
+        Message additional = query("example.com.", Type.A);
+        additional.addRecord(new ARecord(Name.fromString("example.com."),
+                DClass.IN, 60, InetAddress.getByName("10.0.0.1")),
+                Section.ADDITIONAL);
+        Assert.assertNull(QueryView.parse(additional.toWire()));
+
+        byte[] wire = query("example.com.", Type.A).toWire();
+        byte[] truncated = new byte[wire.length - 1];
+        System.arraycopy(wire, 0, truncated, 0, truncated.length);
+        Assert.assertNull(QueryView.parse(truncated));
+        Assert.assertNull(QueryView.parse(wire, 0, 11));
+    }
+}
@@ -0,0 +1,237 @@
+package biz.neustar.hopper.nio;
+
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.net.SocketTimeoutException;
+import java.nio.channels.ClosedChannelException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.jboss.netty.channel.ChannelHandlerContext;
+import org.jboss.netty.channel.ExceptionEvent;
+import org.jboss.netty.channel.MessageEvent;
+import org.junit.Assert;
+import org.junit.Test;
+
+import biz.neustar.hopper.message.Flag;
+import biz.neustar.hopper.message.Message;
+
+/**
+ * Test for the future based query API of the client
+ */
+public class DnsClientQueryTest {
+
+    private static Message response(Message request) {
+        Message response = (Message) request.clone();
+        response.getHeader().setFlag(Flag.QR);
+        return response;
+    }
+
+    /**
+     * Answers over UDP with a truncated response, and in full over TCP.
+     */
+    private static class TruncatingHandler implements AdvancedServerMessageHandler {
+        final AtomicInteger tcpRequests = new AtomicInteger();
+
+        @Override
+        public ChunkedStream<Message> handleRequestOnTcp(ChannelHandlerContext ctx, Message request,
+                MessageEvent e, ChannelType channelType) {
+            tcpRequests.incrementAndGet();
+            return new SingleMessageChunkedInput(response(request));
+        }
+
+        @Override
+        public Message handleRequestOnUdp(ChannelHandlerContext ctx, Message request,
+                MessageEvent e, ChannelType channelType) {
+            Message response = response(request);
+            response.getHeader().setFlag(Flag.TC);
+            return response;
+        }
+
+        @Override
+        public void handleException(ChannelHandlerContext ctx, Throwable throwable, ExceptionEvent e,
+                ChannelType channelType) {
+        }
+
+        @Override
+        public void setContext() {
+        }
+
+        @Override
+        public void clearContext() {
+        }
+    }
+
+    private static DnsServer echoServer() {
+        return echoServer(null);
+    }
+
+    /**
+     * Answers each request once the latch, if any, has been released.
+     */
+    private static DnsServer echoServer(final CountDownLatch release) {
+        return DnsServer.builder().port(0).serverMessageHandler(new ServerMessageHandler() {
+            @Override
+            public Message handleRequest(Message request) {
+                if (release != null) {
+                    try {
+                        release.await(2, TimeUnit.SECONDS);
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                }
+                return response(request);
+            }
+
+            @Override
+            public void handleException(Throwable throwable) {
+            }
+        }).build();
+    }
+
+    @Test
+    public void testQuery() throws Exception {
+        DnsServer server = echoServer();
+        DnsClient client = DnsClient.builder().build();
+        SocketAddress address = new InetSocketAddress("127.0.0.1", server.getLocalAddress().getPort());
+        try {
+            Message query = TCPClientTest.getQuery(1);
+            CompletableFuture<Message> first = client.query(query, address, 2000);
+            CompletableFuture<Message> second = client.query(query, address, 2000);
+            Message response1 = first.get(2, TimeUnit.SECONDS);
+            Message response2 = second.get(2, TimeUnit.SECONDS);
+            Assert.assertTrue(response1.getHeader().isFlagSet(Flag.QR));
+            Assert.assertEquals(query.getQuestion().getName(), response1.getQuestion().getName());
+            Assert.assertNotEquals(response1.getHeader().getID(), response2.getHeader().getID());
+        } finally {
+            client.stop();
+            server.stop();
+        }
+    }
+
+    @Test
+    public void testTimeout() throws Exception {
+        DnsServer server = DnsServer.builder().port(0).serverMessageHandler(new ServerMessageHandler() {
+            @Override
+            public Message handleRequest(Message request) {
+                return null;
+            }
+
+            @Override
+            public void handleException(Throwable throwable) {
+            }
+        }).build();
+        DnsClient client = DnsClient.builder().build();
+        SocketAddress address = new InetSocketAddress("127.0.0.1", server.getLocalAddress().getPort());
+        try {
+            client.query(TCPClientTest.getQuery(1), address, 200).get(2, TimeUnit.SECONDS);
+            Assert.fail("the query should time out");
+        } catch (ExecutionException e) {
+            Assert.assertTrue(e.getCause() instanceof SocketTimeoutException);
+        } finally {
+            client.stop();
+            server.stop();
+        }
+    }
+
+    @Test
+    public void testStopFailsPendingQueries() throws Exception {
+        DnsServer server = DnsServer.builder().port(0).serverMessageHandler(new ServerMessageHandler() {
+            @Override
+            public Message handleRequest(Message request) {
+                return null;
+            }
+
+            @Override
+            public void handleException(Throwable throwable) {
+            }
+        }).build();
+        DnsClient client = DnsClient.builder().build();
+        SocketAddress address = new InetSocketAddress("127.0.0.1", server.getLocalAddress().getPort());
+        try {
+            CompletableFuture<Message> future = client.query(TCPClientTest.getQuery(1), address, 60000);
+            client.stop();
+            future.get(2, TimeUnit.SECONDS);
+            Assert.fail("the query should fail");
+        } catch (ExecutionException e) {
+            Assert.assertTrue(e.getCause() instanceof ClosedChannelException);
+        } finally {
+            server.stop();
+        }
+    }
+
+    @Test
+    public void testTruncatedRetriedOverTcp() throws Exception {
+        TruncatingHandler handler = new TruncatingHandler();
+        DnsServer server = DnsServer.builder().port(0).advanced(true).advancedServerMessageHandler(handler).build();
+        DnsClient client = DnsClient.builder().build();
+        SocketAddress address = new InetSocketAddress("127.0.0.1", server.getLocalAddress().getPort());
+        try {
+            Message response = client.query(TCPClientTest.getQuery(1), address, 2000).get(2, TimeUnit.SECONDS);
+            Assert.assertFalse(response.getHeader().isFlagSet(Flag.TC));
+            Assert.assertEquals(1, handler.tcpRequests.get());
+        } finally {
+            client.stop();
+            server.stop();
+        }
+    }
+
+    @Test
+    public void testPipelinedOverPool() throws Exception {
+        DnsServer server = echoServer();
+        DnsClient client = DnsClient.builder().tcpMaxConnections(4).tcpMaxInFlight(10).build();
+        SocketAddress address = new InetSocketAddress("127.0.0.1", server.getLocalAddress().getPort());
+        try {
+            List<CompletableFuture<Message>> futures = new ArrayList<CompletableFuture<Message>>();
+            for (int i = 0; i < 200; i++) {
+                futures.add(client.queryTCP(TCPClientTest.getQuery(i), address, 5000));
+            }
+            int connections = client.getTcpConnectionCount(address);
+            Assert.assertTrue(connections > 1);
+            Assert.assertTrue(connections <= 4);
+            for (int i = 0; i < futures.size(); i++) {
+                Message response = futures.get(i).get(5, TimeUnit.SECONDS);
+                Assert.assertEquals(TCPClientTest.getQuery(i).getQuestion().getName(),
+                        response.getQuestion().getName());
+            }
+            Assert.assertTrue(client.getTcpConnectionCount(address) <= 4);
+        } finally {
+            client.stop();
+            server.stop();
+        }
+    }
+
+    @Test
+    public void testIdleConnectionsClosed() throws Exception {
+        // queries stay in flight until counted, so none of them shares a connection
+        CountDownLatch release = new CountDownLatch(1);
+        DnsServer server = echoServer(release);
+        DnsClient client = DnsClient.builder().tcpMinConnections(1).tcpMaxConnections(3)
+                .tcpMaxInFlight(1).tcpIdleTimeoutMillis(100).build();
+        SocketAddress address = new InetSocketAddress("127.0.0.1", server.getLocalAddress().getPort());
+        try {
+            List<CompletableFuture<Message>> futures = new ArrayList<CompletableFuture<Message>>();
+            for (int i = 0; i < 3; i++) {
+                futures.add(client.queryTCP(TCPClientTest.getQuery(i), address, 2000));
+            }
+            Assert.assertEquals(3, client.getTcpConnectionCount(address));
+            release.countDown();
+            for (CompletableFuture<Message> future : futures) {
+                future.get(2, TimeUnit.SECONDS);
+            }
+            long deadline = System.currentTimeMillis() + 2000;
+            while (client.getTcpConnectionCount(address) > 1 && System.currentTimeMillis() < deadline) {
+                Thread.sleep(20);
+            }
+            Assert.assertEquals(1, client.getTcpConnectionCount(address));
+        } finally {
+            client.stop();
+            server.stop();
+        }
+    }
+}
@@ -0,0 +1,218 @@
+package biz.neustar.hopper.nio;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.buffer.ChannelBuffers;
+import org.junit.Assert;
+import org.junit.Test;
+
+import biz.neustar.hopper.message.DClass;
+import biz.neustar.hopper.message.Flag;
+import biz.neustar.hopper.message.Message;
+import biz.neustar.hopper.message.Name;
+import biz.neustar.hopper.message.Rcode;
+import biz.neustar.hopper.message.Section;
+import biz.neustar.hopper.message.Type;
+import biz.neustar.hopper.message.Zone;
+import biz.neustar.hopper.record.ARecord;
+import biz.neustar.hopper.record.NSRecord;
+import biz.neustar.hopper.record.OPTRecord;
+import biz.neustar.hopper.record.Record;
+import biz.neustar.hopper.record.SOARecord;
+
+/**
+ * Test for the wire-format response cache
+ */
+public class ResponseCacheTest {
+
+    private static Message query(String name, int id) throws Exception {
+        Message query = Message.newQuery(Record.newRecord(
+                Name.fromString(name), Type.A, DClass.IN));
+        query.getHeader().setID(id);
+        return query;
+    }
+
+    private static Message response(Message query, long ttl)
+            throws Exception {
+        Message response = new Message(query.getHeader().getID());
+        response.getHeader().setFlag(Flag.QR);
+        response.addRecord(query.getQuestion(), Section.QUESTION);
+        response.addRecord(new ARecord(query.getQuestion().getName(),
+                DClass.IN, ttl, InetAddress.getByName("10.0.0.1")),
+                Section.ANSWER);
+        return response;
+    }
+
+    private static ChannelBuffer wire(Message message) {
+        return ChannelBuffers.wrappedBuffer(message.toWire());
+    }
+
+    @Test
+    public void testHit() throws Exception {
+        ResponseCache cache = new ResponseCache(100, 3600);
+        Message query = query("www.example.com.", 1);
+        ResponseCache.Query q = cache.parse(wire(query));
+        Assert.assertNotNull(q);
+        Assert.assertNull(cache.get(q, wire(query)));
+        Assert.assertTrue(cache.put(q, wire(response(query, 300))));
+        Assert.assertEquals(1, cache.size());
+
+        Message other = query("WWW.Example.COM.", 0xBEEF);
+        other.getHeader().unsetFlag(Flag.RD.getValue());
+        ResponseCache.Query q2 = cache.parse(wire(other));
+        ChannelBuffer hit = cache.get(q2, wire(other));
+        Assert.assertNotNull(hit);
+        Message answer = new Message(hit.array());
+        Assert.assertEquals(0xBEEF, answer.getHeader().getID());
+        Assert.assertFalse(answer.getHeader().isFlagSet(Flag.RD));
+        Assert.assertEquals("WWW.Example.COM.",
+                answer.getQuestion().getName().toString());
+        Assert.assertEquals(1, answer.getSectionArray(Section.ANSWER).length);
+        Assert.assertEquals(1, cache.getHits());
+        Assert.assertEquals(1, cache.getMisses());
+    }
+
+    @Test
+    public void testEdnsIsPartOfKey() throws Exception {
+        ResponseCache cache = new ResponseCache(100, 3600);
+        Message query = query("www.example.com.", 1);
+        ResponseCache.Query q = cache.parse(wire(query));
+        cache.put(q, wire(response(query, 300)));
+
+        Message edns = query("www.example.com.", 2);
+        edns.addRecord(new OPTRecord(4096, 0, 0), Section.ADDITIONAL);
+        ResponseCache.Query q2 = cache.parse(wire(edns));
+        Assert.assertNotNull(q2);
+        Assert.assertNull(cache.get(q2, wire(edns)));
+    }
+
+    @Test
+    public void testOtherEdnsVersionsNotCacheable() throws Exception {
+        ResponseCache cache = new ResponseCache(100, 3600);
+        Message query = query("www.example.com.", 1);
+        query.addRecord(new OPTRecord(4096, 0, 0), Section.ADDITIONAL);
+        Assert.assertNotNull(cache.parse(wire(query)));
+
+        // left to the handler, which answers BADVERS
+        Message version1 = query("www.example.com.", 2);
+        version1.addRecord(new OPTRecord(4096, 0, 1), Section.ADDITIONAL);
+        Assert.assertNull(cache.parse(wire(version1)));
+
+        Message extendedRcode = query("www.example.com.", 3);
+        extendedRcode.addRecord(new OPTRecord(4096, 1, 0), Section.ADDITIONAL);
+        Assert.assertNull(cache.parse(wire(extendedRcode)));
+    }
+
+    @Test
+    public void testNotCacheable() throws Exception {
+        ResponseCache cache = new ResponseCache(100, 3600);
+        Message query = query("www.example.com.", 1);
+        ResponseCache.Query q = cache.parse(wire(query));
+
+        Message servfail = response(query, 300);
+        servfail.getHeader().setRcode(Rcode.SERVFAIL);
+        Assert.assertFalse(cache.put(q, wire(servfail)));
+
+        Message truncated = response(query, 300);
+        truncated.getHeader().setFlag(Flag.TC);
+        Assert.assertFalse(cache.put(q, wire(truncated)));
+
+        Assert.assertFalse(cache.put(q, wire(response(query("other.com.", 1),
+                300))));
+        Assert.assertFalse(cache.put(q, wire(response(query, 0))));
+        Assert.assertEquals(0, cache.size());
+
+        Message response = response(query, 300);
+        Assert.assertNull(cache.parse(wire(response)));
+    }
+
+    @Test
+    public void testInvalidate() throws Exception {
+        ResponseCache cache = new ResponseCache(100, 3600);
+        Message query = query("www.example.com.", 1);
+        ResponseCache.Query q = cache.parse(wire(query));
+        Message other = query("www.example.net.", 1);
+        ResponseCache.Query q2 = cache.parse(wire(other));
+        Assert.assertTrue(cache.put(q, wire(response(query, 300))));
+        Assert.assertTrue(cache.put(q2, wire(response(other, 300))));
+
+        cache.invalidate(Name.fromString("example.com."));
+        Assert.assertNull(cache.get(q, wire(query)));
+        Assert.assertNotNull(cache.get(q2, wire(other)));
+
+        // a query parsed before the invalidation is not cached
+        Assert.assertFalse(cache.put(q, wire(response(query, 300))));
+    }
+
+    @Test
+    public void testZoneChanged() throws Exception {
+        Name origin = Name.fromString("example.com.");
+        Record[] records = new Record[] {
+            new SOARecord(origin, DClass.IN, 3600, Name.fromString("ns.example.com."),
+                    Name.fromString("admin.example.com."), 1, 3600, 600, 86400, 60),
+            new NSRecord(origin, DClass.IN, 3600, Name.fromString("ns.example.com."))
+        };
+        Zone zone = new Zone(origin, records);
+        ResponseCache cache = new ResponseCache(100, 3600);
+        zone.addChangeListener(cache);
+
+        Message www = query("www.example.com.", 1);
+        Message mail = query("mail.example.com.", 1);
+        ResponseCache.Query q1 = cache.parse(wire(www));
+        ResponseCache.Query q2 = cache.parse(wire(mail));
+        Assert.assertTrue(cache.put(q1, wire(response(www, 300))));
+        Assert.assertTrue(cache.put(q2, wire(response(mail, 300))));
+
+        zone.addRecord(new ARecord(Name.fromString("www.example.com."),
+                DClass.IN, 300, InetAddress.getByName("10.0.0.2")));
+        Assert.assertNull(cache.get(q1, wire(www)));
+        Assert.assertNotNull(cache.get(q2, wire(mail)));
+
+        q1 = cache.parse(wire(www));
+        Assert.assertTrue(cache.put(q1, wire(response(www, 300))));
+        zone.addRecord(new NSRecord(origin, DClass.IN, 3600,
+                Name.fromString("ns2.example.com.")));
+        Assert.assertEquals(0, cache.size());
+    }
+
+    @Test
+    public void testServer() throws Exception {
+        final AtomicInteger handled = new AtomicInteger();
+        ResponseCache cache = new ResponseCache(100, 3600);
+        DnsServer server = DnsServer.builder().port(0).responseCache(cache)
+                .serverMessageHandler(new ServerMessageHandler() {
+                    @Override
+                    public Message handleRequest(Message request) {
+                        handled.incrementAndGet();
+                        try {
+                            return response(request, 300);
+                        } catch (Exception e) {
+                            throw new RuntimeException(e);
+                        }
+                    }
+
+                    @Override
+                    public void handleException(Throwable throwable) {
+                    }
+                }).build();
+        try {
+            InetSocketAddress address = new InetSocketAddress("localhost",
+                    server.getLocalAddress().getPort());
+            for (int i = 0; i < 3; i++) {
+                MessageReceivedTrap trap = new MessageReceivedTrap(1);
+                DnsClient client = DnsClient.builder().clientMessageHandler(trap)
+                        .closeConnectionOnMessageReceipt(true).build();
+                client.sendUDP(query("www.example.com.", i), address);
+                Assert.assertTrue(trap.latch.await(2, TimeUnit.SECONDS));
+            }
+            Assert.assertEquals(1, handled.get());
+            Assert.assertEquals(2, cache.getHits());
+        } finally {
+            server.stop();
+        }
+    }
+}
@@ -24,6 +24,7 @@ import biz.neustar.hopper.message.DClass;
 import biz.neustar.hopper.message.Message;
 import biz.neustar.hopper.message.Name;
 import biz.neustar.hopper.nio.example.AdvancedEchoHandler;
+import biz.neustar.hopper.nio.example.AsyncEchoHandler;
 import biz.neustar.hopper.nio.example.EchoServerHandler;
 import biz.neustar.hopper.nio.example.LoggingClientHandler;
 import biz.neustar.hopper.record.ARecord;
@@ -135,6 +136,29 @@ public class TCPClientTest {
         }
     }
 
+    @Test
+    public void asyncChunkedResponsesTCP() throws TextParseException, UnknownHostException,
+            InterruptedException {
+
+        AsyncEchoHandler handler = new AsyncEchoHandler(10);
+        DnsServer server = DnsServer.builder().port(0).asyncServerMessageHandler(handler).build();
+        SocketAddress serverAddress = new InetSocketAddress("localhost", server.getLocalAddress().getPort());
+
+        MessageReceivedTrap responseReceivedTrap = new MessageReceivedTrap(20);
+        DnsClient client = DnsClient.builder().clientMessageHandler(responseReceivedTrap)
+                .closeConnectionOnMessageReceipt(false).build();
+        client.sendTCP(getQuery(0), serverAddress);
+        client.sendTCP(getQuery(1), serverAddress);
+
+        try {
+            Assert.assertTrue(responseReceivedTrap.latch.await(2, TimeUnit.SECONDS));
+        } finally {
+            client.stop();
+            server.stop();
+            handler.shutdown();
+        }
+    }
+
     @Test
     public void manyClientsOneServerTCP() throws TextParseException, UnknownHostException, InterruptedException {
 
@@ -0,0 +1,103 @@
+package biz.neustar.hopper.nio;
+
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.SocketAddress;
+
+import org.jboss.netty.bootstrap.ClientBootstrap;
+import org.jboss.netty.channel.socket.nio.NioClientSocketChannelFactory;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Test for the choice of connections in the TCP connection pool
+ */
+public class TcpConnectionPoolTest {
+
+    private ServerSocket server;
+    private SocketAddress address;
+    private ClientBootstrap bootstrap;
+
+    @Before
+    public void setUp() throws Exception {
+        // connections are accepted by the backlog, which is all we need
+        server = new ServerSocket(0);
+        address = new InetSocketAddress("127.0.0.1", server.getLocalPort());
+        bootstrap = new ClientBootstrap(new NioClientSocketChannelFactory());
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        bootstrap.releaseExternalResources();
+        server.close();
+    }
+
+    @Test
+    public void testInFlightCountedOnAcquire() {
+        TcpConnectionPool pool = new TcpConnectionPool(bootstrap, 1, 2, 1, 0, null);
+        try {
+            TcpConnectionPool.Connection first = pool.acquire(address, true);
+            TcpConnectionPool.Connection second = pool.acquire(address, true);
+            Assert.assertNotSame(first, second);
+            Assert.assertEquals(2, pool.size(address));
+            Assert.assertEquals(1, first.getInFlight());
+            Assert.assertEquals(1, second.getInFlight());
+
+            // the pool is full: queue on the least loaded connection
+            first.end();
+            Assert.assertSame(first, pool.acquire(address, true));
+            Assert.assertEquals(1, first.getInFlight());
+        } finally {
+            pool.close();
+        }
+    }
+
+    @Test
+    public void testStartIndexWraps() {
+        TcpConnectionPool pool = new TcpConnectionPool(bootstrap, 3, 3, 10, 0, null);
+        try {
+            pool.acquire(address, false);
+            pool.setNext(address, Integer.MAX_VALUE - 1);
+            int total = 0;
+            for (int i = 0; i < 6; i++) {
+                total += pool.acquire(address, true).getInFlight();
+            }
+            // each query went to a least loaded connection: 1 + 1 + 1 + 2 + 2 + 2
+            Assert.assertEquals(9, total);
+            Assert.assertEquals(3, pool.size(address));
+        } finally {
+            pool.close();
+        }
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void testAcquireAfterClose() {
+        TcpConnectionPool pool = new TcpConnectionPool(bootstrap, 0, 2, 1, 0, null);
+        pool.close();
+        pool.acquire(address, true);
+    }
+
+    @Test
+    public void testEmptyPoolRemoved() throws Exception {
+        TcpConnectionPool pool = new TcpConnectionPool(bootstrap, 0, 2, 1, 0, null);
+        try {
+            TcpConnectionPool.Connection connection = pool.acquire(address, true);
+            Assert.assertEquals(1, pool.destinations());
+            connection.getConnectFuture().getChannel().close().await();
+            // the close listener may run just after the close future completes
+            for (int i = 0; i < 100 && pool.destinations() > 0; i++) {
+                Thread.sleep(10);
+            }
+            Assert.assertEquals(0, pool.destinations());
+            Assert.assertEquals(0, pool.size(address));
+
+            // the destination gets a new pool on its next use
+            Assert.assertNotSame(connection, pool.acquire(address, true));
+            Assert.assertEquals(1, pool.destinations());
+        } finally {
+            pool.close();
+        }
+    }
+}
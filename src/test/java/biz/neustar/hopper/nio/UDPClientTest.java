@@ -2,14 +2,31 @@ package biz.neustar.hopper.nio;
 
 import java.net.InetSocketAddress;
 import java.net.UnknownHostException;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.junit.Assert;
 import org.junit.Test;
 
 import biz.neustar.hopper.exception.TextParseException;
+import biz.neustar.hopper.message.DClass;
+import biz.neustar.hopper.message.Flag;
+import biz.neustar.hopper.message.Message;
+import biz.neustar.hopper.message.Name;
+import biz.neustar.hopper.message.QueryView;
+import biz.neustar.hopper.message.Section;
+import biz.neustar.hopper.message.Type;
 import biz.neustar.hopper.nio.example.AdvancedEchoHandler;
+import biz.neustar.hopper.nio.example.AsyncEchoHandler;
 import biz.neustar.hopper.nio.example.EchoServerHandler;
+import biz.neustar.hopper.nio.handler.ReusePortHandler;
+import biz.neustar.hopper.record.Record;
 
 /**
  * Test for the UDP client
@@ -46,4 +63,133 @@ public class UDPClientTest {
             server.stop();
         }
     }
-}
\ No newline at end of file
+
+    @Test
+    public void testQueryView() throws TextParseException, UnknownHostException, InterruptedException {
+
+        final AtomicInteger views = new AtomicInteger();
+        DnsServer server = DnsServer.builder().port(0).serverMessageHandler(new QueryViewServerMessageHandler() {
+            @Override
+            public Message handleQuery(QueryView query) {
+                views.incrementAndGet();
+                Message response = new Message(query.getID());
+                response.getHeader().setFlag(Flag.QR);
+                response.addRecord(query.getQuestion(), Section.QUESTION);
+                return response;
+            }
+
+            @Override
+            public Message handleRequest(Message request) {
+                return request;
+            }
+
+            @Override
+            public void handleException(Throwable throwable) {
+            }
+        }).build();
+        MessageReceivedTrap messageReceivedTrap = new MessageReceivedTrap(1);
+        DnsClient client = DnsClient.builder().clientMessageHandler(messageReceivedTrap).closeConnectionOnMessageReceipt(true).build();
+        client.sendUDP(TCPClientTest.getQuery(0), new InetSocketAddress("localhost", server.getLocalAddress().getPort()));
+        try {
+            Assert.assertTrue(messageReceivedTrap.latch.await(2, TimeUnit.SECONDS));
+            Assert.assertEquals(1, views.get());
+        } finally {
+            server.stop();
+        }
+    }
+
+    @Test
+    public void testMultipleChannels() throws TextParseException, UnknownHostException, InterruptedException {
+
+        DnsServer server = DnsServer.builder().port(0).udpChannels(4).serverMessageHandler(new EchoServerHandler()).build();
+        MessageReceivedTrap messageReceivedTrap = new MessageReceivedTrap(100);
+        DnsClient client = DnsClient.builder().clientMessageHandler(messageReceivedTrap).closeConnectionOnMessageReceipt(false).build();
+        for (int i = 0; i< 100; i++) {
+            client.sendUDP(TCPClientTest.getQuery(0), new InetSocketAddress("localhost", server.getLocalAddress().getPort()));
+            Thread.sleep(10);
+        }
+        try {
+            Assert.assertTrue(messageReceivedTrap.latch.await(2, TimeUnit.SECONDS));
+            List<SocketCounters> counters = server.getUdpSocketCounters();
+            Assert.assertEquals(ReusePortHandler.isSupported() ? 4 : 1, counters.size());
+            long received = 0;
+            long sent = 0;
+            for (SocketCounters c : counters) {
+                received += c.getPacketsReceived();
+                sent += c.getPacketsSent();
+            }
+            Assert.assertEquals(100, received);
+            Assert.assertEquals(100, sent);
+        } finally {
+            server.stop();
+        }
+    }
+
+    /**
+     * Echo handler recording the thread each request was handled on, by the
+     * first label of the question name. Names starting with "b" may block.
+     */
+    private static class ThreadRecordingHandler implements ServerMessageHandler, BlockingRequestClassifier {
+        final Map<String, String> threads = new ConcurrentHashMap<String, String>();
+
+        @Override
+        public Message handleRequest(Message request) {
+            threads.put(request.getQuestion().getName().getLabelString(0), Thread.currentThread().getName());
+            return request;
+        }
+
+        @Override
+        public void handleException(Throwable throwable) {
+        }
+
+        @Override
+        public boolean mayBlock(Object request) {
+            return ((Message) request).getQuestion().getName().getLabelString(0).startsWith("b");
+        }
+    }
+
+    @Test
+    public void testInlineHandler() throws Exception {
+
+        ExecutorService executor = Executors.newFixedThreadPool(2, new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                return new Thread(r, "application");
+            }
+        });
+        ThreadRecordingHandler handler = new ThreadRecordingHandler();
+        DnsServer server = DnsServer.builder().port(0).inlineHandler(true).udpExecutor(executor).serverMessageHandler(handler).build();
+        MessageReceivedTrap messageReceivedTrap = new MessageReceivedTrap(2);
+        DnsClient client = DnsClient.builder().clientMessageHandler(messageReceivedTrap).closeConnectionOnMessageReceipt(false).build();
+        InetSocketAddress address = new InetSocketAddress("localhost", server.getLocalAddress().getPort());
+        client.sendUDP(Message.newQuery(Record.newRecord(new Name("a.example.biz."), Type.A, DClass.IN)), address);
+        client.sendUDP(Message.newQuery(Record.newRecord(new Name("b.example.biz."), Type.AXFR, DClass.IN)), address);
+        try {
+            Assert.assertTrue(messageReceivedTrap.latch.await(2, TimeUnit.SECONDS));
+            Assert.assertNotEquals("application", handler.threads.get("a"));
+            Assert.assertEquals("application", handler.threads.get("b"));
+        } finally {
+            server.stop();
+            executor.shutdown();
+        }
+    }
+
+    @Test
+    public void testAsync() throws TextParseException, UnknownHostException, InterruptedException {
+
+        AsyncEchoHandler handler = new AsyncEchoHandler(1);
+        DnsServer server = DnsServer.builder().port(0).inlineHandler(true).asyncServerMessageHandler(handler).build();
+        MessageReceivedTrap messageReceivedTrap = new MessageReceivedTrap(100);
+        DnsClient client = DnsClient.builder().clientMessageHandler(messageReceivedTrap).closeConnectionOnMessageReceipt(false).build();
+        for (int i = 0; i< 100; i++) {
+            client.sendUDP(TCPClientTest.getQuery(0), new InetSocketAddress("localhost", server.getLocalAddress().getPort()));
+            Thread.sleep(10);
+        }
+        try {
+            Assert.assertTrue(messageReceivedTrap.latch.await(2, TimeUnit.SECONDS));
+        } finally {
+            server.stop();
+            handler.shutdown();
+        }
+    }
+}
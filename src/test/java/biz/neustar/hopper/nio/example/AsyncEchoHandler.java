@@ -0,0 +1,76 @@
+package biz.neustar.hopper.nio.example;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import org.jboss.netty.channel.ChannelHandlerContext;
+import org.jboss.netty.channel.MessageEvent;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import biz.neustar.hopper.message.Message;
+import biz.neustar.hopper.nio.AsyncChunkedStream;
+import biz.neustar.hopper.nio.AsyncServerMessageHandler;
+import biz.neustar.hopper.nio.ChannelType;
+
+/**
+ * An asynchronous handler that echoes requests back after a delay, as a
+ * handler waiting on a backend would. Over TCP each request is echoed a
+ * number of times.
+ */
+public class AsyncEchoHandler implements AsyncServerMessageHandler {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(
+            AsyncEchoHandler.class);
+
+    private final ScheduledExecutorService timer =
+            Executors.newSingleThreadScheduledExecutor();
+
+    private final int tcpResponses;
+
+    public AsyncEchoHandler(int tcpResponses) {
+        this.tcpResponses = tcpResponses;
+    }
+
+    private CompletionStage<Message> later(final Message message) {
+        final CompletableFuture<Message> future = new CompletableFuture<Message>();
+        timer.schedule(new Runnable() {
+            @Override
+            public void run() {
+                future.complete(message);
+            }
+        }, 10, TimeUnit.MILLISECONDS);
+        return future;
+    }
+
+    @Override
+    public CompletionStage<Message> handleRequestOnUdp(ChannelHandlerContext ctx,
+            Message request, MessageEvent e) {
+        return later(request);
+    }
+
+    @Override
+    public AsyncChunkedStream<Message> handleRequestOnTcp(
+            ChannelHandlerContext ctx, final Message request, MessageEvent e) {
+        return new AsyncChunkedStream<Message>() {
+            private int count;
+
+            @Override
+            public CompletionStage<Message> nextChunk() {
+                return later(count++ < tcpResponses ? request : null);
+            }
+        };
+    }
+
+    @Override
+    public void handleException(Throwable throwable, ChannelType channelType) {
+        LOGGER.error("Exception!", throwable);
+    }
+
+    public void shutdown() {
+        timer.shutdown();
+    }
+}
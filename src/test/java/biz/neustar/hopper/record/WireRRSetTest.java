@@ -0,0 +1,150 @@
+package biz.neustar.hopper.record;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.Iterator;
+
+import junit.framework.TestCase;
+import biz.neustar.hopper.exception.InvalidTTLException;
+import biz.neustar.hopper.message.Compression;
+import biz.neustar.hopper.message.DClass;
+import biz.neustar.hopper.message.DNSOutput;
+import biz.neustar.hopper.message.DNSSEC;
+import biz.neustar.hopper.message.Name;
+import biz.neustar.hopper.message.Section;
+import biz.neustar.hopper.message.Type;
+
+public class WireRRSetTest extends TestCase {
+    private Name m_origin;
+    private Name m_name;
+
+    public void setUp() throws IOException {
+        m_origin = Name.fromString("example.com.");
+        m_name = Name.fromString("www", m_origin);
+    }
+
+    /* Renders the records of rrset one at a time after a record for prefix. */
+    private byte[] render(RRSet rrset, Record prefix, Compression c) {
+        DNSOutput out = new DNSOutput();
+        prefix.toWire(out, Section.ANSWER, c);
+        Iterator<Record> it = rrset.rrs(false);
+        while (it.hasNext()) {
+            it.next().toWire(out, Section.ANSWER, c);
+        }
+        it = rrset.sigs();
+        while (it.hasNext()) {
+            it.next().toWire(out, Section.ANSWER, c);
+        }
+        return out.toByteArray();
+    }
+
+    private byte[] render(WireRRSet rrset, Record prefix, Compression c) {
+        DNSOutput out = new DNSOutput();
+        prefix.toWire(out, Section.ANSWER, c);
+        rrset.toWire(out, c);
+        return out.toByteArray();
+    }
+
+    private void assertRendersAs(RRSet rrset) throws IOException {
+        WireRRSet wire = new WireRRSet(rrset);
+        Record prefix = new NSRecord(m_origin, DClass.IN, 3600,
+                Name.fromString("ns.example.com."));
+        assertTrue(Arrays.equals(render(rrset, prefix, null),
+                render(wire, prefix, null)));
+        assertTrue(Arrays.equals(render(rrset, prefix, new Compression()),
+                render(wire, prefix, new Compression())));
+    }
+
+    public void test_compressed_names() throws IOException {
+        RRSet rrset = new RRSet();
+        rrset.addRR(new MXRecord(m_origin, DClass.IN, 3600, 10,
+                Name.fromString("mx1", m_origin)));
+        rrset.addRR(new MXRecord(m_origin, DClass.IN, 3600, 20,
+                Name.fromString("MX2.Example.COM.")));
+        rrset.addRR(new MXRecord(m_origin, DClass.IN, 3600, 30,
+                Name.fromString("mx.example.net.")));
+        assertRendersAs(rrset);
+
+        assertRendersAs(new RRSet(new SOARecord(m_origin, DClass.IN, 3600,
+                Name.fromString("ns.example.com."),
+                Name.fromString("hostmaster.example.com."), 1, 3600, 600,
+                86400, 60)));
+        assertRendersAs(new RRSet(new CNAMERecord(m_name, DClass.IN, 60,
+                Name.fromString("web.example.com."))));
+    }
+
+    public void test_uncompressed_names() throws IOException {
+        RRSet rrset = new RRSet();
+        rrset.addRR(new ARecord(m_name, DClass.IN, 60,
+                InetAddress.getByName("192.0.2.1")));
+        rrset.addRR(new ARecord(m_name, DClass.IN, 60,
+                InetAddress.getByName("192.0.2.2")));
+        assertRendersAs(rrset);
+
+        assertRendersAs(new RRSet(new SRVRecord(
+                Name.fromString("_sip._udp", m_origin), DClass.IN, 60, 0, 5,
+                5060, Name.fromString("sip.example.com."))));
+    }
+
+    public void test_sigs() throws IOException {
+        RRSet rrset = new RRSet();
+        rrset.addRR(new ARecord(m_name, DClass.IN, 60,
+                InetAddress.getByName("192.0.2.1")));
+        rrset.addRR(new RRSIGRecord(m_name, DClass.IN, 60, Type.A,
+                DNSSEC.Algorithm.RSASHA1, 60, new Date(0), new Date(0), 1,
+                m_origin, new byte[] { 1, 2, 3 }));
+        assertRendersAs(rrset);
+
+        WireRRSet wire = new WireRRSet(rrset);
+        assertEquals(m_name, wire.getName());
+        assertEquals(Type.A, wire.getType());
+        assertEquals(DClass.IN, wire.getDClass());
+        assertEquals(60, wire.getTTL());
+        assertEquals(1, wire.size());
+        assertEquals(1, wire.sigCount());
+        assertEquals(rrset.first().toWire(Section.ANSWER).length
+                + rrset.sigs().next().toWire(Section.ANSWER).length,
+                wire.length());
+
+        assertEquals(rrset.first(), wire.first());
+        assertEquals(rrset.sigs().next(), wire.sigs().next());
+        RRSet decoded = wire.toRRSet();
+        assertEquals(1, decoded.size());
+        assertEquals(rrset.rrs().next(), decoded.rrs().next());
+        assertEquals(rrset.sigs().next(), decoded.sigs().next());
+    }
+
+    public void test_ttl() throws IOException {
+        RRSet rrset = new RRSet(new MXRecord(m_origin, DClass.IN, 3600, 10,
+                Name.fromString("mx1", m_origin)));
+        WireRRSet wire = new WireRRSet(rrset);
+        DNSOutput out = new DNSOutput();
+        wire.toWire(out, new Compression(), 42);
+        Record record = Record.fromWire(out.toByteArray(), Section.ANSWER);
+        assertEquals(42, record.getTTL());
+        assertEquals(rrset.first(), record);
+
+        try {
+            wire.toWire(out, null, -1);
+            fail("InvalidTTLException not thrown");
+        } catch (InvalidTTLException e) {
+        }
+    }
+
+    public void test_records_not_shared() throws IOException {
+        WireRRSet wire = new WireRRSet(new RRSet(new ARecord(m_name,
+                DClass.IN, 60, InetAddress.getByName("192.0.2.1"))));
+        wire.first().setTTL(5);
+        assertEquals(60, wire.first().getTTL());
+    }
+
+    public void test_empty() {
+        try {
+            new WireRRSet(new RRSet());
+            fail("IllegalArgumentException not thrown");
+        } catch (IllegalArgumentException e) {
+        }
+    }
+}
@@ -0,0 +1,773 @@
+package biz.neustar.hopper.resolver;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.InetAddress;
+import java.net.SocketTimeoutException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.jboss.netty.util.HashedWheelTimer;
+import org.junit.Assert;
+import org.junit.Test;
+
+import biz.neustar.hopper.message.DClass;
+import biz.neustar.hopper.message.DNSSEC;
+import biz.neustar.hopper.message.EDNSOption;
+import biz.neustar.hopper.message.ExtendedFlag;
+import biz.neustar.hopper.message.Flag;
+import biz.neustar.hopper.message.Message;
+import biz.neustar.hopper.message.Name;
+import biz.neustar.hopper.message.Section;
+import biz.neustar.hopper.message.TSIG;
+import biz.neustar.hopper.message.Type;
+import biz.neustar.hopper.record.ARecord;
+import biz.neustar.hopper.record.CNAMERecord;
+import biz.neustar.hopper.record.RRSIGRecord;
+import biz.neustar.hopper.record.RRSet;
+import biz.neustar.hopper.record.Record;
+import biz.neustar.hopper.record.SOARecord;
+
+/**
+ * Test for the resolver cache
+ */
+public class CacheTest {
+
+    private static final Name ORIGIN = name("example.");
+
+    private static Name name(String s) {
+        try {
+            return Name.fromString(s, Name.root);
+        } catch (Exception e) {
+            throw new IllegalArgumentException(e);
+        }
+    }
+
+    private static RRSet a(Name name, long ttl, int last) throws Exception {
+        return new RRSet(new ARecord(name, DClass.IN, ttl,
+                InetAddress.getByAddress(new byte[] { 10, 0, 0, (byte) last })));
+    }
+
+    private static SOARecord soa(long ttl) {
+        return new SOARecord(ORIGIN, DClass.IN, ttl, name("ns.example."),
+                name("hostmaster.example."), 1, 3600, 600, 86400, ttl);
+    }
+
+    /*
+     * Answers every query with an A record for 10.0.0.<answer>, after
+     * waiting for release to be counted down.
+     */
+    private static class StubResolver implements Resolver {
+        final AtomicInteger queries = new AtomicInteger();
+        final CountDownLatch release = new CountDownLatch(1);
+        volatile int answer = 1;
+        volatile boolean fail;
+
+        public Message send(Message query) throws IOException {
+            queries.incrementAndGet();
+            if (fail) {
+                throw new SocketTimeoutException("timed out");
+            }
+            try {
+                release.await();
+            } catch (InterruptedException e) {
+                throw new InterruptedIOException();
+            }
+            Message response = new Message(query.getHeader().getID());
+            response.getHeader().setFlag(Flag.QR);
+            response.addRecord(query.getQuestion(), Section.QUESTION);
+            try {
+                response.addRecord(a(query.getQuestion().getName(), 3600,
+                        answer).first(), Section.ANSWER);
+            } catch (Exception e) {
+                throw new IOException(e);
+            }
+            return response;
+        }
+
+        public Object sendAsync(Message query, ResolverListener listener) {
+            Object id = new Object();
+            try {
+                listener.receiveMessage(id, send(query));
+            } catch (IOException e) {
+                listener.handleException(id, e);
+            }
+            return id;
+        }
+
+        public void setPort(int port) {
+        }
+
+        public void setTCP(boolean flag) {
+        }
+
+        public void setIgnoreTruncation(boolean flag) {
+        }
+
+        public void setEDNS(int level) {
+        }
+
+        public void setEDNS(int level, int payloadSize, ExtendedFlag flags,
+                List<EDNSOption> options) {
+        }
+
+        public void setTSIGKey(TSIG key) {
+        }
+
+        public void setTimeout(int secs, int msecs) {
+        }
+
+        public void setTimeout(int secs) {
+        }
+
+        public void setConnectTimeout(int secs, int msecs) {
+        }
+
+        public void setConnectTimeout(int secs) {
+        }
+    }
+
+    @Test
+    public void testLookup() throws Exception {
+        Cache cache = new Cache();
+        Name www = name("www.example.");
+        RRSet rrset = a(www, 3600, 1);
+        cache.addRRset(rrset, Credibility.NORMAL);
+
+        SetResponse sr = cache.lookupRecords(www, Type.A, Credibility.NORMAL);
+        Assert.assertTrue(sr.isSuccessful());
+        Assert.assertEquals(rrset.first(), sr.answers()[0].first());
+        Assert.assertTrue(cache.lookupRecords(www, Type.A,
+                Credibility.AUTH_ANSWER).isUnknown());
+        Assert.assertTrue(cache.lookupRecords(www, Type.AAAA,
+                Credibility.NORMAL).isUnknown());
+
+        cache.addRRset(new RRSet(new CNAMERecord(name("web.example."),
+                DClass.IN, 3600, www)), Credibility.NORMAL);
+        Assert.assertTrue(cache.lookupRecords(name("web.example."), Type.A,
+                Credibility.NORMAL).isCNAME());
+        Assert.assertEquals(2, cache.getSize());
+    }
+
+    @Test
+    public void testCredibility() throws Exception {
+        Cache cache = new Cache();
+        Name www = name("www.example.");
+        cache.addRRset(a(www, 3600, 1), Credibility.AUTH_ANSWER);
+        cache.addRRset(a(www, 3600, 2), Credibility.ADDITIONAL);
+        RRSet[] answers = cache.findAnyRecords(www, Type.A);
+        Assert.assertEquals(a(www, 3600, 1).first(), answers[0].first());
+
+        cache.addRRset(a(www, 3600, 3), Credibility.AUTH_ANSWER);
+        answers = cache.findAnyRecords(www, Type.A);
+        Assert.assertEquals(a(www, 3600, 3).first(), answers[0].first());
+
+        /* A zero TTL removes entries that are no more credible. */
+        cache.addRRset(a(www, 0, 4), Credibility.ADDITIONAL);
+        Assert.assertNotNull(cache.findAnyRecords(www, Type.A));
+        cache.addRRset(a(www, 0, 4), Credibility.AUTH_ANSWER);
+        Assert.assertNull(cache.findAnyRecords(www, Type.A));
+        Assert.assertEquals(0, cache.getSize());
+    }
+
+    @Test
+    public void testNegative() throws Exception {
+        Cache cache = new Cache();
+        Name www = name("www.example.");
+        Name ftp = name("ftp.example.");
+        cache.addRRset(a(www, 3600, 1), Credibility.NORMAL);
+        cache.addNegative(www, Type.AAAA, soa(300), Credibility.NORMAL);
+        cache.addNegative(ftp, 0, soa(300), Credibility.NORMAL);
+
+        Assert.assertTrue(cache.lookupRecords(www, Type.AAAA,
+                Credibility.NORMAL).isNXRRSET());
+        Assert.assertTrue(cache.lookupRecords(www, Type.A,
+                Credibility.NORMAL).isSuccessful());
+        Assert.assertTrue(cache.lookupRecords(ftp, Type.A,
+                Credibility.NORMAL).isNXDOMAIN());
+    }
+
+    @Test
+    public void testFlush() throws Exception {
+        Cache cache = new Cache();
+        Name www = name("www.example.");
+        cache.addRRset(a(www, 3600, 1), Credibility.NORMAL);
+        cache.addNegative(www, Type.AAAA, soa(300), Credibility.NORMAL);
+
+        cache.flushSet(www, Type.A);
+        Assert.assertNull(cache.findRecords(www, Type.A));
+        Assert.assertTrue(cache.lookupRecords(www, Type.AAAA,
+                Credibility.NORMAL).isNXRRSET());
+        cache.flushName(www);
+        Assert.assertEquals(0, cache.getSize());
+    }
+
+    @Test
+    public void testExpired() throws Exception {
+        Cache cache = new Cache();
+        cache.setMaxCache(0);
+        Name www = name("www.example.");
+        cache.addRRset(a(www, 3600, 1), Credibility.NORMAL);
+        Assert.assertTrue(cache.lookupRecords(www, Type.A,
+                Credibility.NORMAL).isUnknown());
+        Assert.assertEquals(0, cache.getSize());
+    }
+
+    @Test
+    public void testMaxEntries() throws Exception {
+        Cache cache = new Cache();
+        cache.setMaxEntries(-1);
+        for (int i = 0; i < 1000; i++) {
+            cache.addRRset(a(name("host" + i + ".example."), 3600, 1),
+                    Credibility.NORMAL);
+        }
+        Assert.assertEquals(1000, cache.getSize());
+        cache.setMaxEntries(100);
+        Assert.assertEquals(100, cache.getMaxEntries());
+        Assert.assertTrue(cache.getSize() <= 100);
+        for (int i = 0; i < 1000; i++) {
+            cache.addRRset(a(name("other" + i + ".example."), 3600, 1),
+                    Credibility.NORMAL);
+        }
+        Assert.assertTrue(cache.getSize() <= 100);
+    }
+
+    @Test
+    public void testEvictionKeepsUsedNames() throws Exception {
+        Cache cache = new Cache();
+        cache.setMaxEntries(100);
+        for (int i = 0; i < 100; i++) {
+            cache.addRRset(a(name("host" + i + ".example."), 3600, 1),
+                    Credibility.NORMAL);
+        }
+        for (int i = 0; i < 10; i++) {
+            Assert.assertNotNull(cache.findRecords(
+                    name("host" + i + ".example."), Type.A));
+        }
+        for (int i = 0; i < 50; i++) {
+            cache.addRRset(a(name("other" + i + ".example."), 3600, 1),
+                    Credibility.NORMAL);
+        }
+        Assert.assertEquals(100, cache.getSize());
+        for (int i = 0; i < 10; i++) {
+            Assert.assertNotNull(cache.findRecords(
+                    name("host" + i + ".example."), Type.A));
+        }
+    }
+
+    @Test
+    public void testAddRecord() throws Exception {
+        Cache cache = new Cache();
+        Name www = name("www.example.");
+        cache.addRecord(a(www, 3600, 1).first(), Credibility.NORMAL, null);
+        long bytes = cache.getBytes();
+        cache.addRecord(a(www, 3600, 2).first(), Credibility.NORMAL, null);
+        Assert.assertEquals(2, cache.findRecords(www, Type.A)[0].size());
+        Assert.assertTrue(cache.getBytes() > bytes);
+    }
+
+    @Test
+    public void testMaxBytes() throws Exception {
+        Cache cache = new Cache();
+        Assert.assertEquals(-1, cache.getMaxBytes());
+        cache.addRRset(a(name("www.example."), 3600, 1), Credibility.NORMAL);
+        long entry = cache.getBytes();
+        Assert.assertTrue(entry > 0);
+
+        cache.setMaxBytes(100 * entry);
+        for (int i = 0; i < 1000; i++) {
+            cache.addRRset(a(name("host" + i + ".example."), 3600, 1),
+                    Credibility.NORMAL);
+            cache.addNegative(name("nx" + i + ".example."), 0, soa(300),
+                    Credibility.NORMAL);
+        }
+        Assert.assertTrue(cache.getBytes() <= 100 * entry);
+        Assert.assertTrue(cache.getSize() < 200);
+        Assert.assertEquals(2001 - cache.getSize(), cache.getEvictions());
+
+        cache.setMaxBytes(10 * entry);
+        Assert.assertTrue(cache.getBytes() <= 10 * entry);
+        cache.clearCache();
+        Assert.assertEquals(0, cache.getBytes());
+    }
+
+    @Test
+    public void testBytesAccounting() throws Exception {
+        Cache cache = new Cache();
+        Name www = name("www.example.");
+        cache.addRRset(a(www, 3600, 1), Credibility.NORMAL);
+        cache.addNegative(www, Type.AAAA, soa(300), Credibility.NORMAL);
+        cache.addRRset(a(www, 3600, 2), Credibility.NORMAL);
+        cache.flushSet(www, Type.A);
+        cache.flushSet(www, Type.AAAA);
+        Assert.assertEquals(0, cache.getSize());
+        Assert.assertEquals(0, cache.getBytes());
+    }
+
+    @Test
+    public void testExpirySweep() throws Exception {
+        Cache cache = new Cache();
+        cache.setMaxCache(1);
+        cache.setMaxNCache(1);
+        cache.addRRset(a(name("www.example."), 3600, 1), Credibility.NORMAL);
+        HashedWheelTimer timer = new HashedWheelTimer(100,
+                TimeUnit.MILLISECONDS);
+        try {
+            cache.startExpirySweep(timer);
+            cache.addRRset(a(name("ftp.example."), 3600, 1),
+                    Credibility.NORMAL);
+            cache.addNegative(name("nx.example."), 0, soa(300),
+                    Credibility.NORMAL);
+            long deadline = System.currentTimeMillis() + 5000;
+            while (cache.getSize() > 0
+                    && System.currentTimeMillis() < deadline) {
+                Thread.sleep(100);
+            }
+            Assert.assertEquals(0, cache.getSize());
+            Assert.assertEquals(0, cache.getBytes());
+            Assert.assertEquals(3, cache.getExpirations());
+            Assert.assertEquals(0, cache.getWheelSize());
+        } finally {
+            cache.stopExpirySweep();
+            timer.stop();
+        }
+    }
+
+    @Test
+    public void testExpiryWheelFollowsEntries() throws Exception {
+        Cache cache = new Cache();
+        cache.setMaxEntries(10);
+        HashedWheelTimer timer = new HashedWheelTimer(100,
+                TimeUnit.MILLISECONDS);
+        try {
+            cache.addRRset(a(name("www.example."), 3600, 1),
+                    Credibility.NORMAL);
+            cache.startExpirySweep(timer);
+            Assert.assertEquals(1, cache.getWheelSize());
+
+            /* Evicted names leave the wheel. */
+            for (int i = 0; i < 1000; i++) {
+                cache.addNegative(name("nx" + i + ".example."), 0,
+                        soa(3600), Credibility.NORMAL);
+            }
+            Assert.assertEquals(10, cache.getSize());
+            Assert.assertEquals(10, cache.getWheelSize());
+
+            /* So do replaced entries, and flushed ones. */
+            cache.clearCache();
+            Name www = name("www.example.");
+            for (int ttl = 100; ttl < 200; ttl++) {
+                cache.addRRset(a(www, ttl, 1), Credibility.NORMAL);
+                cache.addNegative(www, Type.MX, soa(ttl), Credibility.NORMAL);
+            }
+            Assert.assertEquals(1, cache.getWheelSize());
+            cache.flushName(www);
+            Assert.assertEquals(0, cache.getWheelSize());
+        } finally {
+            cache.stopExpirySweep();
+            timer.stop();
+        }
+    }
+
+    @Test
+    public void testPrefetch() throws Exception {
+        Cache cache = new Cache();
+        StubResolver resolver = new StubResolver();
+        resolver.release.countDown();
+        resolver.answer = 2;
+        Name www = name("www.example.");
+        cache.addRRset(a(www, 3600, 1), Credibility.NONAUTH_ANSWER);
+
+        /* A fresh RRset is not prefetched, however popular. */
+        cache.setPrefetch(resolver, 10, 0);
+        for (int i = 0; i < 10; i++) {
+            cache.lookupRecords(www, Type.A, Credibility.NORMAL);
+        }
+        Assert.assertEquals(0, resolver.queries.get());
+
+        cache.setPrefetch(resolver, 100, 2);
+        cache.flushName(www);
+        cache.addRRset(a(www, 3600, 1), Credibility.NONAUTH_ANSWER);
+        for (int i = 0; i < 2; i++) {
+            cache.lookupRecords(www, Type.A, Credibility.NORMAL);
+        }
+        Assert.assertEquals(0, resolver.queries.get());
+        cache.lookupRecords(www, Type.A, Credibility.NORMAL);
+        Assert.assertEquals(1, resolver.queries.get());
+        Assert.assertEquals(1, cache.getPrefetches());
+        Assert.assertEquals(a(www, 3600, 2).first(),
+                cache.findRecords(www, Type.A)[0].first());
+    }
+
+    @Test
+    public void testCoalesceMisses() throws Exception {
+        final Cache cache = new Cache();
+        cache.setCoalesceMisses(true);
+        final StubResolver resolver = new StubResolver();
+        final Message query = Message.newQuery(a(name("www.example."), 0, 0)
+                .first());
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        final List<Thread> threads = new CopyOnWriteArrayList<Thread>();
+        try {
+            List<Future<Message>> results = new ArrayList<Future<Message>>();
+            for (int t = 0; t < 4; t++) {
+                results.add(executor.submit(new Callable<Message>() {
+                    public Message call() throws Exception {
+                        threads.add(Thread.currentThread());
+                        return cache.send(resolver, query);
+                    }
+                }));
+            }
+            /* Release the query once every thread waits for it. */
+            long deadline = System.currentTimeMillis() + 5000;
+            while (!allWaiting(threads, 4)
+                    && System.currentTimeMillis() < deadline) {
+                Thread.sleep(10);
+            }
+            resolver.release.countDown();
+            Message first = results.get(0).get();
+            for (Future<Message> result : results) {
+                Assert.assertEquals(first.getSectionArray(Section.ANSWER)[0],
+                        result.get().getSectionArray(Section.ANSWER)[0]);
+            }
+        } finally {
+            executor.shutdown();
+        }
+        Assert.assertEquals(1, resolver.queries.get());
+
+        /* Once answered, the next miss sends another query. */
+        cache.send(resolver, query);
+        Assert.assertEquals(2, resolver.queries.get());
+    }
+
+    @Test
+    public void testServeStale() throws Exception {
+        Cache cache = new Cache();
+        cache.setMaxCache(0);
+        cache.setMaxNCache(0);
+        Name www = name("www.example.");
+        Name nx = name("nx.example.");
+
+        /* Without a stale window, expired entries are dropped. */
+        cache.addRRset(a(www, 3600, 1), Credibility.NORMAL);
+        Assert.assertTrue(cache.lookupStaleRecords(www, Type.A,
+                Credibility.NORMAL).isUnknown());
+        Assert.assertEquals(0, cache.getSize());
+
+        cache.setServeStale(3600, 30);
+        cache.addRRset(a(www, 3600, 1), Credibility.NORMAL);
+        cache.addNegative(nx, 0, soa(3600), Credibility.NORMAL);
+        Assert.assertTrue(cache.lookupRecords(www, Type.A,
+                Credibility.NORMAL).isUnknown());
+        Assert.assertTrue(cache.lookupRecords(nx, Type.A,
+                Credibility.NORMAL).isUnknown());
+        Assert.assertEquals(2, cache.getSize());
+
+        SetResponse sr = cache.lookupStaleRecords(www, Type.A,
+                Credibility.NORMAL);
+        Assert.assertTrue(sr.isSuccessful());
+        Assert.assertEquals(a(www, 3600, 1).first(), sr.answers()[0].first());
+        Assert.assertEquals(30, sr.answers()[0].getTTL());
+        Assert.assertTrue(cache.lookupStaleRecords(nx, Type.A,
+                Credibility.NORMAL).isNXDOMAIN());
+
+        /* Once served stale, ordinary lookups are answered too for a while. */
+        sr = cache.lookupRecords(www, Type.A, Credibility.NORMAL);
+        Assert.assertTrue(sr.isSuccessful());
+        Assert.assertEquals(30, sr.answers()[0].getTTL());
+        Assert.assertTrue(cache.lookupRecords(nx, Type.A,
+                Credibility.NORMAL).isNXDOMAIN());
+
+        /* Fresh data replaces stale data. */
+        cache.setMaxCache(-1);
+        cache.addRRset(a(www, 3600, 2), Credibility.NORMAL);
+        sr = cache.lookupRecords(www, Type.A, Credibility.NORMAL);
+        Assert.assertEquals(a(www, 3600, 2).first(), sr.answers()[0].first());
+        Assert.assertEquals(3600, sr.answers()[0].getTTL());
+    }
+
+    @Test
+    public void testLookupServesStale() throws Exception {
+        Cache cache = new Cache();
+        StubResolver resolver = new StubResolver();
+        resolver.fail = true;
+        resolver.release.countDown();
+        Name www = name("www.example.");
+        cache.setMaxCache(0);
+        cache.addRRset(a(www, 3600, 1), Credibility.NORMAL);
+
+        Lookup lookup = new Lookup(www, Type.A);
+        lookup.setCache(cache);
+        lookup.setResolver(resolver);
+        Assert.assertNull(lookup.run());
+        Assert.assertEquals(Lookup.TRY_AGAIN, lookup.getResult());
+
+        cache.setServeStale(3600, 30);
+        cache.addRRset(a(www, 3600, 1), Credibility.NORMAL);
+        int queries = resolver.queries.get();
+        Record[] answers = lookup.run();
+        Assert.assertEquals(Lookup.SUCCESSFUL, lookup.getResult());
+        Assert.assertEquals(1, answers.length);
+        Assert.assertEquals(30, answers[0].getTTL());
+        /* The failed query, and the refresh in the background. */
+        Assert.assertEquals(queries + 2, resolver.queries.get());
+
+        /* Meanwhile, lookups are answered stale without a query. */
+        Assert.assertNotNull(lookup.run());
+        Assert.assertEquals(queries + 2, resolver.queries.get());
+
+        /* Once the servers answer again, a refresh replaces the data. */
+        resolver.fail = false;
+        resolver.answer = 2;
+        cache.setMaxCache(-1);
+        Assert.assertTrue(cache.refresh(resolver, www, Type.A));
+        answers = lookup.run();
+        Assert.assertEquals(a(www, 3600, 2).first(), answers[0]);
+        Assert.assertEquals(3600, answers[0].getTTL());
+    }
+
+    @Test
+    public void testSnapshot() throws Exception {
+        Cache cache = new Cache();
+        Name www = name("www.example.");
+        Name alias = name("alias.example.");
+        Name nx = name("nx.example.");
+        RRSet signed = a(www, 3600, 1);
+        Record sig = new RRSIGRecord(www, DClass.IN, 3600, Type.A,
+                DNSSEC.Algorithm.RSASHA1, 3600, new Date(0), new Date(0), 1,
+                ORIGIN, new byte[] { 1, 2, 3 });
+        signed.addRR(sig);
+        cache.addRRset(signed, Credibility.AUTH_ANSWER);
+        cache.addRRset(new RRSet(new CNAMERecord(alias, DClass.IN, 3600, www)),
+                Credibility.NONAUTH_ANSWER);
+        cache.addNegative(nx, 0, soa(3600), Credibility.NORMAL);
+        cache.addNegative(www, Type.MX, soa(3600), Credibility.NORMAL);
+        cache.setMaxCache(0);
+        cache.addRRset(a(name("expired.example."), 3600, 1),
+                Credibility.NORMAL);
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        Assert.assertEquals(4, cache.saveSnapshot(out));
+
+        Cache restored = new Cache();
+        Assert.assertEquals(4, restored.loadSnapshot(
+                new ByteArrayInputStream(out.toByteArray())));
+        Assert.assertEquals(3, restored.getSize());
+        SetResponse sr = restored.lookupRecords(www, Type.A,
+                Credibility.AUTH_ANSWER);
+        Assert.assertTrue(sr.isSuccessful());
+        Assert.assertEquals(a(www, 3600, 1).first(), sr.answers()[0].first());
+        Assert.assertEquals(www, restored.lookupRecords(alias, Type.A,
+                Credibility.NORMAL).getCNAME().getTarget());
+        Assert.assertTrue(restored.lookupRecords(alias, Type.A,
+                Credibility.AUTH_ANSWER).isUnknown());
+        Assert.assertTrue(restored.lookupRecords(nx, Type.A,
+                Credibility.NORMAL).isNXDOMAIN());
+        Assert.assertTrue(restored.lookupRecords(www, Type.MX,
+                Credibility.NORMAL).isNXRRSET());
+        Assert.assertEquals(sig, sr.answers()[0].sigs().next());
+    }
+
+    @Test
+    public void testSnapshotKeepsCredibleEntries() throws Exception {
+        Cache cache = new Cache();
+        Name www = name("www.example.");
+        cache.addRRset(a(www, 3600, 1), Credibility.NONAUTH_ANSWER);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        cache.saveSnapshot(out);
+
+        Cache restored = new Cache();
+        restored.addRRset(a(www, 3600, 2), Credibility.AUTH_ANSWER);
+        restored.loadSnapshot(new ByteArrayInputStream(out.toByteArray()));
+        Assert.assertEquals(a(www, 3600, 2).first(),
+                restored.findRecords(www, Type.A)[0].first());
+    }
+
+    @Test
+    public void testInvalidSnapshot() throws Exception {
+        Cache cache = new Cache();
+        cache.addRRset(a(name("www.example."), 3600, 1), Credibility.NORMAL);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        cache.saveSnapshot(out);
+        byte[] snapshot = out.toByteArray();
+
+        byte[] truncated = Arrays.copyOf(snapshot, snapshot.length - 8);
+        assertInvalid(truncated);
+        byte[] corrupt = snapshot.clone();
+        corrupt[0] = 0;
+        assertInvalid(corrupt);
+        corrupt = snapshot.clone();
+        corrupt[11] = 9; /* the tag of the first entry */
+        assertInvalid(corrupt);
+        try {
+            new Cache(DClass.CH).loadSnapshot(new ByteArrayInputStream(
+                    snapshot));
+            Assert.fail("IOException not thrown");
+        } catch (IOException e) {
+        }
+    }
+
+    private static void assertInvalid(byte[] snapshot) {
+        try {
+            new Cache().loadSnapshot(new ByteArrayInputStream(snapshot));
+            Assert.fail("IOException not thrown");
+        } catch (IOException e) {
+        }
+    }
+
+    @Test
+    public void testLostQueriesForgotten() throws Exception {
+        Cache cache = new Cache();
+        cache.setCoalesceMisses(true);
+        cache.setPendingTimeout(100);
+        Name www = name("www.example.");
+        Message query = Message.newQuery(a(www, 0, 0).first());
+        StubResolver silent = new StubResolver() {
+            @Override
+            public Object sendAsync(Message query, ResolverListener listener) {
+                queries.incrementAndGet();
+                return new Object();
+            }
+        };
+        StubResolver broken = new StubResolver() {
+            @Override
+            public Object sendAsync(Message query, ResolverListener listener) {
+                throw new IllegalStateException("closed");
+            }
+        };
+
+        /*
+         * A refresh that never calls back holds the key until a lookup
+         * waiting for it times out.
+         */
+        Assert.assertTrue(cache.refresh(silent, www, Type.A));
+        Assert.assertFalse(cache.refresh(silent, www, Type.A));
+        try {
+            cache.send(silent, query);
+            Assert.fail("InterruptedIOException not thrown");
+        } catch (InterruptedIOException e) {
+        }
+        Assert.assertTrue(cache.refresh(silent, www, Type.A));
+        Assert.assertEquals(2, silent.queries.get());
+
+        /* A refresh that cannot be sent does not hold it at all. */
+        Name ftp = name("ftp.example.");
+        Assert.assertFalse(cache.refresh(broken, ftp, Type.A));
+        StubResolver resolver = new StubResolver();
+        resolver.release.countDown();
+        Assert.assertTrue(cache.refresh(resolver, ftp, Type.A));
+        Assert.assertEquals(1, resolver.queries.get());
+    }
+
+    @Test
+    public void testRefreshIgnoresUnrelatedResponse() throws Exception {
+        Cache cache = new Cache();
+        final Name other = name("other.example.");
+        StubResolver resolver = new StubResolver() {
+            @Override
+            public Message send(Message query) throws IOException {
+                queries.incrementAndGet();
+                Message response = new Message(query.getHeader().getID());
+                response.getHeader().setFlag(Flag.QR);
+                response.addRecord(Record.newRecord(other, Type.A, DClass.IN),
+                        Section.QUESTION);
+                try {
+                    response.addRecord(a(other, 3600, 1).first(),
+                            Section.ANSWER);
+                } catch (Exception e) {
+                    throw new IOException(e);
+                }
+                return response;
+            }
+        };
+        Name www = name("www.example.");
+        Assert.assertTrue(cache.refresh(resolver, www, Type.A));
+        Assert.assertEquals(1, resolver.queries.get());
+        Assert.assertEquals(0, cache.getSize());
+        Assert.assertTrue(cache.lookupRecords(other, Type.A,
+                Credibility.ANY).isUnknown());
+
+        /* The refresh completed, so the next one is sent. */
+        Assert.assertTrue(cache.refresh(resolver, www, Type.A));
+    }
+
+    private static boolean allWaiting(List<Thread> threads, int count) {
+        if (threads.size() < count) {
+            return false;
+        }
+        for (Thread thread : threads) {
+            Thread.State state = thread.getState();
+            if (state != Thread.State.WAITING
+                    && state != Thread.State.TIMED_WAITING) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    @Test
+    public void testConcurrentUpdates() throws Exception {
+        final Cache cache = new Cache();
+        final Name www = name("www.example.");
+        final Name pool = name("pool.example.");
+        ExecutorService executor = Executors.newFixedThreadPool(8);
+        try {
+            List<Future<Integer>> results = new ArrayList<Future<Integer>>();
+            for (int t = 0; t < 8; t++) {
+                final int thread = t;
+                results.add(executor.submit(new Callable<Integer>() {
+                    public Integer call() throws Exception {
+                        int hits = 0;
+                        for (int i = 0; i < 2000; i++) {
+                            Name name = name("host" + thread + "-" + i
+                                    + ".example.");
+                            cache.addRRset(a(name, 3600, i), Credibility.NORMAL);
+                            cache.addNegative(name, Type.AAAA, soa(300),
+                                    Credibility.NORMAL);
+                            cache.addRRset(a(www, 3600, i), Credibility.NORMAL);
+                            if (i < 200) {
+                                cache.addRecord(new ARecord(pool, DClass.IN,
+                                        3600, InetAddress.getByAddress(
+                                                new byte[] { 10, (byte) thread,
+                                                        0, (byte) i })),
+                                        Credibility.NORMAL, null);
+                            }
+                            if (cache.lookupRecords(name, Type.A,
+                                    Credibility.NORMAL).isSuccessful()) {
+                                hits++;
+                            }
+                        }
+                        return hits;
+                    }
+                }));
+            }
+            for (Future<Integer> result : results) {
+                Assert.assertEquals(2000, result.get().intValue());
+            }
+        } finally {
+            executor.shutdown();
+        }
+        Assert.assertEquals(8 * 2000 + 2, cache.getSize());
+        /* No record added to the shared RRset was lost. */
+        Assert.assertEquals(8 * 200, cache.findRecords(pool, Type.A)[0].size());
+        for (int t = 0; t < 8; t++) {
+            Name name = name("host" + t + "-1999.example.");
+            Assert.assertTrue(cache.lookupRecords(name, Type.A,
+                    Credibility.NORMAL).isSuccessful());
+            Assert.assertTrue(cache.lookupRecords(name, Type.AAAA,
+                    Credibility.NORMAL).isNXRRSET());
+        }
+    }
+}